@@ -15,10 +15,15 @@ import play.libs.Json;
 import util.*;
 
 import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 import static util.Constants.DOUBLE_BYTES;
 import static util.Constants.INT_BYTES;
@@ -32,29 +37,117 @@ public class Agent extends AbstractActor {
     // states of this agent
     private ActorRef out;
     private Config config;
-    private PostgreSQL postgreSQL;
-    private List<Point> batch;
 
     /**
-     * map of Algorithm instances
+     * map of Algorithm instances this agent holds a reference to in the AlgorithmRegistry
      * key - key
      * value - handle to Algorithm instance
      */
     private Map<String, IAlgorithm> algorithms;
     /**
-     * map of Algorithms visiting counters
+     * map of opened tile pyramids
      * key - key
-     * value - counter, number of visiting times of the algorithm
+     * value - TilePyramid, of the pyramid file last modified at pyramidsModified of the key
      */
-    private Map<String, Integer> algorithmsHits;
-    /**
-     * Maximum number of Algorithm instances being kept in memory
-     */
-    private final int MAX_ALGORITHMS = 30;
-    private static final DateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private Map<String, TilePyramid> pyramids;
+    private Map<String, Long> pyramidsModified;
+    // SimpleDateFormat is not thread safe, Agents are constructed on different threads
+    private final DateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
     private Date start;
     private Date end;
     private int intervalDays;
+    private int prefetchChunks;
+    private int fetchParallelism;
+    private boolean fetchOrdered;
+    /**
+     * map of keys being built on the build dispatcher
+     * key - key
+     * value - latest query request of the key arrived during the build, answered once it is done, null - none
+     */
+    private Map<String, Request> building;
+    /**
+     * map of the latest queries answered of each key
+     * key - key
+     * value - cancellation token of the latest query, set when a newer query of the key arrives
+     */
+    private Map<String, AtomicBoolean> latestQueries;
+    // answers queries off the agent in arrival order, so that the agent sees newer queries while an older one is searched
+    private ExecutorService answerer;
+    // keys acquired by builds but not yet received by this agent, released by postStop if this agent stops first
+    private final Set<String> acquired = new HashSet<>();
+    private boolean stopped = false; // guarded by acquired
+
+    // bounded pool running the builds of all agents, so that a build never blocks the agent
+    private static ThreadPoolExecutor buildDispatcher;
+
+    private static synchronized ThreadPoolExecutor buildDispatcher() {
+        if (buildDispatcher == null) {
+            int threads = dispatcherThreads();
+            System.out.println("[Agent] build dispatcher threads = " + threads + ", queue = " + Constants.DISPATCHER_QUEUE);
+            buildDispatcher = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(Math.max(Constants.DISPATCHER_QUEUE, 1)), runnable -> {
+                        Thread thread = new Thread(runnable, "build-dispatcher");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+        return buildDispatcher;
+    }
+
+    private static int dispatcherThreads() {
+        return Constants.DISPATCHER_THREADS > 0? Constants.DISPATCHER_THREADS: Runtime.getRuntime().availableProcessors();
+    }
+
+    // source of the points of builds and transfers, shared by all agents
+    private static IDataSource dataSource;
+
+    private static synchronized IDataSource dataSource() {
+        if (dataSource == null) {
+            if (Constants.DATA_SOURCE.equalsIgnoreCase("file")) {
+                try {
+                    dataSource = PointStore.open(Constants.DATA_SOURCE_FILE);
+                } catch (IOException e) {
+                    System.out.println("[Agent] open point store " + Constants.DATA_SOURCE_FILE + " failed, falling back to PostgreSQL!");
+                    e.printStackTrace();
+                }
+            }
+            if (dataSource == null) {
+                dataSource = new PostgreSQLSource();
+                // batches of a point store are read from local disk anyway
+                if (Constants.BATCH_CACHE) {
+                    dataSource = new CachedDataSource(dataSource, Constants.DB_TABLENAME, Constants.BATCH_CACHE_DIRECTORY,
+                            Constants.BATCH_CACHE_SIZE * 1024 * 1024);
+                }
+            }
+            System.out.println("[Agent] data source = " + dataSource.describe());
+        }
+        return dataSource;
+    }
+
+    /**
+     * messages from builds to the agent
+     */
+    // a frame of the progressive loading, to be sent to the client
+    static class BuildFrame {
+        final byte[] frame;
+
+        BuildFrame(byte[] frame) {
+            this.frame = frame;
+        }
+    }
+
+    // a build is done, algorithm is null if it failed
+    static class BuildDone {
+        final Request request;
+        final IAlgorithm algorithm;
+        final boolean progressive;
+
+        BuildDone(Request request, IAlgorithm algorithm, boolean progressive) {
+            this.request = request;
+            this.algorithm = algorithm;
+            this.progressive = progressive;
+        }
+    }
 
 
     @Inject
@@ -62,7 +155,10 @@ public class Agent extends AbstractActor {
         this.out = out;
         this.config = config;
         this.algorithms = new HashMap<>();
-        this.algorithmsHits = new HashMap<>();
+        this.pyramids = new HashMap<>();
+        this.pyramidsModified = new HashMap<>();
+        this.building = new HashMap<>();
+        this.latestQueries = new HashMap<>();
 
         try {
             this.start = sdf.parse(this.config.getString("progressive.start"));
@@ -71,6 +167,9 @@ public class Agent extends AbstractActor {
             e.printStackTrace();
         }
         this.intervalDays = this.config.getInt("progressive.interval");
+        this.prefetchChunks = this.config.getInt("progressive.prefetch");
+        this.fetchParallelism = this.config.getInt("progressive.fetchParallelism");
+        this.fetchOrdered = this.config.getBoolean("progressive.fetchOrdered");
 
 
         // initialize constants
@@ -100,6 +199,14 @@ public class Agent extends AbstractActor {
         Constants.DB_USERNAME = this.config.getString("db.username");
         Constants.DB_PASSWORD = this.config.getString("db.password");
         Constants.DB_TABLENAME = this.config.getString("db.tablename");
+        Constants.DB_FETCH_SIZE = this.config.getInt("db.fetchSize");
+        Constants.DB_CHUNK_SIZE = this.config.getInt("db.chunkSize");
+        Constants.DB_POOL_SIZE = this.config.getInt("db.poolSize");
+        Constants.DATA_SOURCE = this.config.getString("source.type");
+        Constants.DATA_SOURCE_FILE = this.config.getString("source.file");
+        Constants.BATCH_CACHE = this.config.getBoolean("batchCache.enabled");
+        Constants.BATCH_CACHE_DIRECTORY = this.config.getString("batchCache.directory");
+        Constants.BATCH_CACHE_SIZE = this.config.getLong("batchCache.size");
 
         Constants.DATASET_NAME = this.config.getString("dataset.name");
 
@@ -113,12 +220,85 @@ public class Agent extends AbstractActor {
 
         Constants.RENDERING_FUNCTION = this.config.getString("rendering.function");
         Constants.ERROR_FUNCTION = this.config.getString("error.function");
+
+        Constants.BULK_LOAD = this.config.getBoolean("load.bulk");
+        Constants.LOAD_COPY = this.config.getBoolean("load.copy");
+
+        Constants.BUILD_PARALLEL = this.config.getBoolean("build.parallel");
+        Constants.BUILD_PARALLEL_DEPTH = this.config.getInt("build.parallelDepth");
+        Constants.BUILD_PARALLEL_THRESHOLD = this.config.getInt("build.parallelThreshold");
+        Constants.BUILD_THREADS = this.config.getInt("build.threads");
+        Constants.BUILD_SELECT_THRESHOLD = this.config.getInt("build.selectThreshold");
+
+        Constants.LAZY_LOADING = this.config.getBoolean("lazy.enabled");
+        Constants.LAZY_EAGER_LEVELS = this.config.getInt("lazy.eagerLevels");
+        Constants.LAZY_PAGE_LEVELS = this.config.getInt("lazy.pageLevels");
+        Constants.LAZY_MEMORY_BUDGET = this.config.getLong("lazy.memoryBudget");
+
+        Constants.RESULT_CACHE = this.config.getBoolean("cache.enabled");
+        Constants.RESULT_CACHE_SIZE = this.config.getLong("cache.size");
+
+        Constants.TILE_PARALLEL = this.config.getBoolean("tile.parallel");
+        Constants.TILE_CACHE_SIZE = this.config.getLong("tile.cacheSize");
+
+        Constants.PYRAMID_BUILD = this.config.getBoolean("pyramid.build");
+        Constants.PYRAMID_MAX_ZOOM = this.config.getInt("pyramid.maxZoom");
+        Constants.PYRAMID_SAMPLE_BUDGET = this.config.getInt("pyramid.sampleBudget");
+
+        Constants.SEARCH_PARALLEL = this.config.getBoolean("search.parallel");
+        Constants.SEARCH_PARALLEL_FRONTIER = this.config.getInt("search.parallelFrontier");
+        Constants.SEARCH_PARALLEL_THRESHOLD = this.config.getInt("search.parallelThreshold");
+        Constants.SEARCH_PARALLEL_MAX_SKEW = this.config.getDouble("search.parallelMaxSkew");
+        Constants.SEARCH_PARALLEL_MAX_SPARE = this.config.getDouble("search.parallelMaxSpare");
+
+        Constants.REFINE_FIRST_FRAME = this.config.getInt("refine.firstFrame");
+
+        Constants.REGISTRY_MEMORY_BUDGET = this.config.getLong("registry.memoryBudget");
+        Constants.REGISTRY_HALF_LIFE = this.config.getLong("registry.halfLife");
+
+        Constants.DISPATCHER_THREADS = this.config.getInt("dispatcher.threads");
+        Constants.DISPATCHER_QUEUE = this.config.getInt("dispatcher.queue");
+
+        // a build streams up to fetchParallelism sub-ranges at the same time, each holding a pooled connection
+        // while it waits for the build to drain its buffer, so with fewer connections than all builds can hold,
+        // the sub-range a build waits for may never get one
+        int connections = dispatcherThreads() * Math.max(this.fetchParallelism, 1);
+        if (this.prefetchChunks > 0 && Constants.DB_POOL_SIZE < connections) {
+            System.out.println("[Agent] db.poolSize = " + Constants.DB_POOL_SIZE + " is less than dispatcher threads x fetchParallelism = "
+                    + connections + ", raised to " + connections + ".");
+            Constants.DB_POOL_SIZE = connections;
+        }
     }
 
     public static Props getProps() {
         return Props.create(Agent.class);
     }
 
+    @Override
+    public void postStop() {
+        // give back references to the shared algorithms
+        for (String key: algorithms.keySet()) {
+            AlgorithmRegistry.getInstance().release(key);
+        }
+        algorithms.clear();
+        if (answerer != null) {
+            answerer.shutdownNow();
+        }
+        // builds still going on give back their references themselves
+        List<String> keys;
+        synchronized (acquired) {
+            stopped = true;
+            keys = new ArrayList<>(acquired);
+            acquired.clear();
+        }
+        for (String key: keys) {
+            AlgorithmRegistry.getInstance().release(key);
+        }
+        for (String key: new ArrayList<>(pyramids.keySet())) {
+            closePyramid(key);
+        }
+    }
+
     @Override
     public Receive createReceive() {
         return receiveBuilder()
@@ -129,11 +309,13 @@ public class Agent extends AbstractActor {
                     }
                     handleRequest(request);
                 })
+                .match(BuildFrame.class, message -> respond(message.frame))
+                .match(BuildDone.class, this::handleBuildDone)
                 .matchAny(object -> MyLogger.error(this.getClass(), "Received unknown message: " + object.getClass()))
                 .build();
     }
 
-    private void buildGeoJsonArrayOfPoint(List<Point> points, ArrayNode geoJsonArray) {
+    private void buildGeoJsonArrayOfPoint(PointBuffer points, ArrayNode geoJsonArray) {
         for (int i = 0; i < points.size(); i ++) {
             ObjectNode feature = JsonNodeFactory.instance.objectNode();
             feature.put("type", "Feature");
@@ -143,8 +325,8 @@ public class Agent extends AbstractActor {
 
             ObjectNode geometry = JsonNodeFactory.instance.objectNode();
             ArrayNode coordinates = geometry.putArray("coordinates");
-            coordinates.add(points.get(i).getX());
-            coordinates.add(points.get(i).getY());
+            coordinates.add(points.getX(i));
+            coordinates.add(points.getY(i));
             geometry.put("type", "Point");
             feature.set("geometry", geometry);
 
@@ -152,11 +334,11 @@ public class Agent extends AbstractActor {
         }
     }
 
-    private void buildDataArrayOfPoint(List<Point> points, ArrayNode dataArray) {
+    private void buildDataArrayOfPoint(PointBuffer points, ArrayNode dataArray) {
         for (int i = 0; i < points.size(); i ++) {
             ArrayNode pointTuple = JsonNodeFactory.instance.arrayNode();
-            pointTuple.add(points.get(i).getY());
-            pointTuple.add(points.get(i).getX());
+            pointTuple.add(points.getY(i));
+            pointTuple.add(points.getX(i));
             dataArray.add(pointTuple);
         }
     }
@@ -181,17 +363,29 @@ public class Agent extends AbstractActor {
         }
         String clusterKey = query.key;
 
-        // if given cluster key does NOT exists, do the loadData and clusterData first,
+        // precomputed tiles do not need the algorithm at all
+        if ("pyramid".equalsIgnoreCase(query.mode) && answerPyramidQuery(query)) {
+            return;
+        }
+
+        // if given cluster key does NOT exists in this agent, get it from the registry on the build dispatcher,
+        // which does the loadData and clusterData first if no other agent has built it
         if (!algorithms.containsKey(clusterKey)) {
-            // first check if we can load file to algorithm
-            boolean success = loadFileToAlgorithm(query);
-            if (success) {
-                answerQuery(query, 100);
+            // the key is being built, answer the latest query once the build is done
+            if (building.containsKey(clusterKey)) {
+                if (building.put(clusterKey, _request) != null) {
+                    System.out.println("[Agent] query of " + clusterKey + " is superseded during the build, dropped.");
+                }
+                return;
             }
-            // otherwise, we can only do progressive data loading from DB
-            else {
-                handleQueryProgressively(_request);
+            try {
+                buildDispatcher().execute(new Build(_request, self()));
+            } catch (RejectedExecutionException e) {
+                System.out.println("[Agent] build dispatcher is full, build algorithm " + query.algorithm + " for " + clusterKey + " rejected!");
+                respond(buildCmdResponse(_request, "query", "build algorithm " + query.algorithm + " for " + clusterKey + " rejected", "error"));
+                return;
             }
+            building.put(clusterKey, null);
         }
         // otherwise, answer the query directly
         else {
@@ -199,39 +393,191 @@ public class Agent extends AbstractActor {
         }
     }
 
+    /**
+     * receive the algorithm of a build from the build dispatcher
+     *
+     * @param _done
+     */
+    private void handleBuildDone(BuildDone _done) {
+        Query query = _done.request.query;
+        Request waiting = building.remove(query.key);
+        if (_done.algorithm == null) {
+            System.out.println("[Agent] build algorithm " + query.algorithm + " for " + query.key + " failed!");
+            // neither the query of the build nor the one waiting for it can be answered
+            respond(buildCmdResponse(_done.request, "query", "build algorithm " + query.algorithm + " for " + query.key + " failed", "error"));
+            if (waiting != null) {
+                respond(buildCmdResponse(waiting, "query", "build algorithm " + query.algorithm + " for " + query.key + " failed", "error"));
+            }
+            return;
+        }
+        synchronized (acquired) {
+            acquired.remove(query.key);
+        }
+        algorithms.put(query.key, _done.algorithm);
+        // the pyramid file of the key may be rebuilt
+        closePyramid(query.key);
+        // progressive loading has already answered the query
+        if (!_done.progressive) {
+            answerQuery(query, 100);
+        }
+        // the latest query arrived during the build
+        if (waiting != null) {
+            handleQuery(waiting);
+        }
+    }
+
+    /**
+     * answer the query on the answerer, a newer query of the same key supersedes it,
+     * it is dropped if it has not started yet, or its search is cancelled and its result is not sent
+     *
+     * @param query
+     * @param progress
+     */
     private void answerQuery(Query query, int progress) {
-        MyTimer.temporaryTimer.clear();
-        MyTimer.temporaryTimer.put("treeTIme", 0.0);
-        MyTimer.temporaryTimer.put("aggregateTime", 0.0);
+        IAlgorithm algorithm = algorithms.get(query.key);
+        query.cancelled = new AtomicBoolean(false);
+        AtomicBoolean previous = latestQueries.put(query.key, query.cancelled);
+        if (previous != null) {
+            previous.set(true);
+        }
+        if (answerer == null) {
+            answerer = Executors.newSingleThreadExecutor();
+        }
+        ActorRef out = this.out;
+        ActorRef self = self();
+        answerer.execute(() -> {
+            if (query.cancelled.get()) {
+                System.out.println("[Agent] query of " + query.key + " is superseded before it starts, dropped.");
+                return;
+            }
+            answerQuery(algorithm, query, progress, binaryData -> {
+                if (!query.cancelled.get()) {
+                    out.tell(ByteString.fromArray(binaryData), self);
+                }
+            });
+            if (query.cancelled.get()) {
+                System.out.println("[Agent] query of " + query.key + " is superseded while it is searched, cancelled.");
+            }
+        });
+    }
+
+    /**
+     * answer the query by the algorithm, touches no state of the agent, so that builds call it too
+     *
+     * @param algorithm
+     * @param query
+     * @param progress
+     * @param sink - receives the binary messages, intermediate frames of a refinement before the final one
+     */
+    private static void answerQuery(IAlgorithm algorithm, Query query, int progress, Consumer<byte[]> sink) {
+        MyTimer.temporaryTimer().clear();
+        MyTimer.temporaryTimer().put("treeTIme", 0.0);
+        MyTimer.temporaryTimer().put("aggregateTime", 0.0);
         MyTimer.startTimer();
 
         // Add hit to querying super cluster
-        algorithmsHits.put(query.key, algorithmsHits.get(query.key) + 1);
+        AlgorithmRegistry.getInstance().hit(query.key);
 
         // query the algorithm
-        IAlgorithm algorithm = algorithms.get(query.key);
-        byte[] binaryData = algorithm.answerQuery(query);
+        IAlgorithm target = algorithm instanceof CachedAlgorithm? ((CachedAlgorithm) algorithm).getAlgorithm(): algorithm;
+        byte[] binaryData;
+        // refinement streams frames of a single query, not for progressive loading
+        if (progress == 100 && "refine".equalsIgnoreCase(query.mode) && target instanceof IRefinable) {
+            long startTime = System.nanoTime();
+            binaryData = ((IRefinable) target).refineQuery(query, (frame, frameProgress) -> {
+                buildBinaryHeader(frame, frameProgress, (double) (System.nanoTime() - startTime) / 1000000000.0, 0.0, 0.0);
+                sink.accept(frame);
+            });
+        }
+        else {
+            binaryData = algorithm.answerQuery(query);
+        }
 
         MyTimer.stopTimer();
         double totalTime = MyTimer.durationSeconds();
-        double treeTime = MyTimer.temporaryTimer.get("treeTime");
-        double aggregateTime = MyTimer.temporaryTimer.get("aggregateTime");
+        double treeTime = MyTimer.temporaryTimer().get("treeTime");
+        double aggregateTime = MyTimer.temporaryTimer().get("aggregateTime");
 
         buildBinaryHeader(binaryData, progress, totalTime, treeTime, aggregateTime);
 
+        sink.accept(binaryData);
+    }
+
+    /**
+     * answer the query with tiles of the pyramid file of query.key
+     *
+     * @param query
+     * @return false - if there is no pyramid for query.key or query.zoom is deeper than the pyramid
+     */
+    private boolean answerPyramidQuery(Query query) {
+        TilePyramid pyramid = getPyramid(query);
+        if (pyramid == null || query.zoom < 0 || query.zoom > pyramid.maxZoom) {
+            return false;
+        }
+        MyTimer.temporaryTimer().clear();
+        MyTimer.startTimer();
+
+        byte[] binaryData = pyramid.answerQuery(query.bbox, query.zoom);
+
+        MyTimer.stopTimer();
+        double totalTime = MyTimer.durationSeconds();
+        System.out.println("[Agent] answered query of " + query.key + " with tile pyramid, "
+                + (binaryData.length - Constants.HEADER_SIZE) / (2 * DOUBLE_BYTES) + " points, time: " + totalTime + " seconds.");
+
+        buildBinaryHeader(binaryData, 100, totalTime, 0.0, totalTime);
+
         respond(binaryData);
+        return true;
     }
 
-    private void finishLoad(Query query) {
-        // query the algorithm
-        IAlgorithm algorithm = algorithms.get(query.key);
-        algorithm.finishLoad();
+    /**
+     * @param query
+     * @return the tile pyramid of the key, null - if the key has no pyramid file
+     */
+    private TilePyramid getPyramid(Query query) {
+        // the file may be built or rebuilt any time, by the build of another agent or offline by TilePyramidBuilder,
+        // so an opened pyramid is kept only while the file is not modified
+        String fileName = Constants.DATASET_NAME + "-" + query.key + ".pyramid";
+        File file = new File(fileName);
+        long modified = file.exists()? file.lastModified(): 0L;
+        TilePyramid pyramid = pyramids.get(query.key);
+        if (pyramid != null && pyramidsModified.get(query.key) == modified) {
+            return pyramid;
+        }
+        closePyramid(query.key);
+        if (modified == 0L) {
+            return null;
+        }
+        try {
+            pyramid = TilePyramid.open(fileName);
+            System.out.println("[Agent] opened tile pyramid " + fileName + " = " + pyramid.describe());
+        } catch (IOException e) {
+            System.out.println("[Agent] open tile pyramid " + fileName + " failed!");
+            e.printStackTrace();
+            return null;
+        }
+        pyramids.put(query.key, pyramid);
+        pyramidsModified.put(query.key, modified);
+        return pyramid;
+    }
+
+    private void closePyramid(String key) {
+        TilePyramid pyramid = pyramids.remove(key);
+        pyramidsModified.remove(key);
+        if (pyramid != null) {
+            try {
+                pyramid.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
-    private void buildBinaryHeader(byte[] binaryData, int progress, double totalTime, double treeTime, double aggregateTime) {
+    private static void buildBinaryHeader(byte[] binaryData, int progress, double totalTime, double treeTime, double aggregateTime) {
         // construct final response
-        //  progress  totalTime  treeTime   aggTime  msgType   binary data payload
-        // | 4 BYTES | 8 BYTES | 8 BYTES | 8 BYTES | 4 BYTES | ...
+        //  progress  totalTime  treeTime   aggTime  msgType   flags     binary data payload
+        // | 4 BYTES | 8 BYTES | 8 BYTES | 8 BYTES | 4 BYTES | 4 BYTES | ...
+        // msgType and flags are written by the algorithm
         // header 1: progress
         int j = 0;
         binaryData[j+0] = (byte)((progress >> 24) & 0xff);
@@ -271,91 +617,6 @@ public class Agent extends AbstractActor {
         binaryData[j+7] = (byte) ((aggregateTimeL >>  0) & 0xff);
     }
 
-    private void handleQueryProgressively(Request _request) {
-
-        // for experiments analysis
-        MyTimer.progressTimer.clear();
-        MyTimer.progressTimer.put("clusterTime",  new ArrayList<>());
-        MyTimer.progressTimer.put("treeTime", new ArrayList<>());
-        MyMemory.progressUsedMemory.clear();
-        MyMemory.porgressTotalMemory.clear();
-
-        Query query = _request.query;
-        if (_request.keyword == null) {
-            // TODO - exception
-        }
-        this.batch = null;
-
-        // initialize query slicing parameters
-        Date currentStart = new Date(this.start.getTime());
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTime(currentStart);
-        calendar.add(Calendar.DATE, this.intervalDays);
-        Date currentEnd = calendar.getTime();
-        long totalDays = (this.end.getTime() - this.start.getTime()) / (24 * 3600 * 1000);
-
-        // start query slicing cycles
-        while (currentStart.before(this.end)) {
-            long progress = (currentEnd.getTime() - this.start.getTime()) / (24 * 3600 * 1000);
-            progress = 100 * progress / totalDays;
-
-            // (1) fetch a batch of data from database
-            boolean success = fetchBatchFromDB(_request.keyword, currentStart, currentEnd);
-            if (!success) {
-                // TODO - exception
-            }
-
-            // (2) load the batch into algorithm
-            MyTimer.startTimer();
-            success = loadBatchToAlgorithm(query);
-            MyTimer.stopTimer();
-            MyTimer.progressTimer.get("clusterTime").add(MyTimer.durationSeconds());
-            MyMemory.progressUsedMemory.add(MyMemory.getUsedMemory());
-            MyMemory.porgressTotalMemory.add(MyMemory.getTotalMemory());
-            if (!success) {
-                // TODO - exception
-            }
-
-            // (3) answer current query with partial data loaded
-            MyTimer.startTimer();
-            answerQuery(query, (int) progress);
-            MyTimer.stopTimer();
-            MyTimer.progressTimer.get("treeTime").add(MyTimer.durationSeconds());
-
-            // prepare query slicing parameters for next cycle
-            currentStart = currentEnd;
-            calendar = Calendar.getInstance();
-            calendar.setTime(currentStart);
-            calendar.add(Calendar.DATE, this.intervalDays);
-            currentEnd = calendar.getTime();
-        }
-
-        // notify algorithm that data loading is done.
-        finishLoad(query);
-
-        // save algorithm to file.
-        saveAlgorithmToFile(query);
-
-        // for experiments analysis
-        System.out.println("========== Experiment Analysis ==========");
-        System.out.println("Progressive Query: ");
-        System.out.println("keyword: " + _request.keyword);
-        System.out.println("algorithm: " + _request.query.algorithm);
-        System.out.println("clustering time for each batch: ");
-        for (double time: MyTimer.progressTimer.get("clusterTime")) {
-            System.out.println(time);
-        }
-        System.out.println("Tree-cut time for each batch: ");
-        for (double time: MyTimer.progressTimer.get("treeTime")) {
-            System.out.println(time);
-        }
-        System.out.println("memory usage until each batch (MB): ");
-        for (int i = 0; i < MyMemory.progressUsedMemory.size(); i ++) {
-            System.out.println(MyMemory.progressUsedMemory.get(i) + ",  " + MyMemory.porgressTotalMemory.get(i));
-        }
-        System.out.println("========== =================== ==========");
-    }
-
     private void handleCmds(Request _request) {
         Command[] cmds = _request.cmds;
 
@@ -375,123 +636,72 @@ public class Agent extends AbstractActor {
     }
 
     /**
-     * fetch batch for given keyword and time range from database
+     * fetch batch for given keyword and time range from the data source,
+     * each chunk is added to the data array as it arrives
      *
      * @param keyword
      * @param start
      * @param end
+     * @param dataArray
      * @return
      */
-    private boolean fetchBatchFromDB(String keyword, Date start, Date end) {
-        if (postgreSQL == null) {
-            postgreSQL = new PostgreSQL();
-        }
-        List<Point> batchPoints;
-        if (keyword.equals("%")) {
-            batchPoints = postgreSQL.queryPointsForTime(start, end);
-        }
-        else {
-            batchPoints = postgreSQL.queryPointsForKeywordAndTime(keyword, start, end);
-        }
-        if (batchPoints == null) {
-            return false;
-        }
-
-        batch = batchPoints;
+    private boolean fetchBatch(String keyword, Date start, Date end, ArrayNode dataArray) {
+        return dataSource().streamPoints(keyword, start, end, true, chunk -> buildDataArrayOfPoint(chunk, dataArray)) >= 0;
+    }
 
-        return true;
+    private static String algorithmFileName(Query query) {
+        return Constants.DATASET_NAME + "-" + query.key + ".raqt";
     }
 
     /**
-     * load current batch into the algorithm
-     *
-     * @param query - Query
-     * @return
+     * @param query
+     * @return a new empty Algorithm instance of query.algorithm, null - if the algorithm is unknown
      */
-    private boolean loadBatchToAlgorithm(Query query) {
-
-        if (this.batch == null || this.batch.isEmpty()) {
-            return false;
-        }
-        else {
-            IAlgorithm algorithm = getAlgorithm(query);
-            algorithm.load(this.batch);
-        }
-
-        return true;
-    }
-
-    private boolean loadFileToAlgorithm(Query query) {
-        String fileName = Constants.DATASET_NAME + "-" + query.key + ".raqt";
-        IAlgorithm algorithm = getAlgorithm(query);
-        return algorithm.readFromFile(fileName);
-    }
-
-    private boolean saveAlgorithmToFile(Query query) {
-        String fileName = Constants.DATASET_NAME + "-" + query.key + ".raqt";
-        IAlgorithm algorithm = getAlgorithm(query);
-        return algorithm.writeToFile(fileName);
-    }
-
-    private IAlgorithm getAlgorithm(Query query) {
+    private static IAlgorithm newAlgorithm(Query query) {
         IAlgorithm algorithm;
-        if (algorithms.containsKey(query.key)) {
-            algorithm = algorithms.get(query.key);
+        switch (query.algorithm.toLowerCase()) {
+            case "dataexplorer":
+            case "de":
+                algorithm = new DataExplorer();
+                break;
+            case "dataaggregator":
+            case "da":
+                algorithm = new DataAggregator(query.aggregator);
+                break;
+            case "quadtree":
+            case "qt":
+                algorithm = new QuadTreeAggregator(query.resX, query.resY);
+                break;
+            case "gquadtree":
+            case "gqt":
+                algorithm = new GQuadTree();
+                break;
+            case "raquadtree":
+            case "raqt":
+                algorithm = new RAQuadTree();
+                break;
+            case "raquadtreeflat":
+            case "raqtf":
+                algorithm = new RAQuadTreeFlat();
+                break;
+            case "raquadtreesnap":
+            case "raqts":
+                algorithm = new RAQuadTreeSnap();
+                break;
+            case "raquadtreedistance":
+            case "raqtd":
+                algorithm = new RAQuadTreeDistance();
+                break;
+            case "raquadtreedistancev2":
+            case "raqtdv2":
+                algorithm = new RAQuadTreeDistanceV2();
+                break;
+            default:
+                return null;
         }
-        else {
-            // if too many cached clusters, replace the least used one
-            if (algorithms.size() > MAX_ALGORITHMS) {
-                String leastUsedAlgorithmKey = null;
-                int leastHit = Integer.MAX_VALUE;
-                for (Map.Entry<String, Integer> map: this.algorithmsHits.entrySet()) {
-                    if (map.getValue() < leastHit) {
-                        leastHit = map.getValue();
-                        leastUsedAlgorithmKey = map.getKey();
-                    }
-                }
-                if (leastUsedAlgorithmKey != null) {
-                    algorithms.remove(leastUsedAlgorithmKey);
-                }
-            }
-
-            switch (query.algorithm.toLowerCase()) {
-                case "dataexplorer":
-                case "de":
-                    algorithm = new DataExplorer();
-                    break;
-                case "dataaggregator":
-                case "da":
-                    algorithm = new DataAggregator(query.aggregator);
-                    break;
-                case "quadtree":
-                case "qt":
-                    algorithm = new QuadTreeAggregator(query.resX, query.resY);
-                    break;
-                case "gquadtree":
-                case "gqt":
-                    algorithm = new GQuadTree();
-                    break;
-                case "raquadtree":
-                case "raqt":
-                    algorithm = new RAQuadTree();
-                    break;
-                case "raquadtreesnap":
-                case "raqts":
-                    algorithm = new RAQuadTreeSnap();
-                    break;
-                case "raquadtreedistance":
-                case "raqtd":
-                    algorithm = new RAQuadTreeDistance();
-                    break;
-                case "raquadtreedistancev2":
-                case "raqtdv2":
-                    algorithm = new RAQuadTreeDistanceV2();
-                    break;
-                default:
-                    return null;
-            }
-            algorithms.put(query.key, algorithm);
-            algorithmsHits.put(query.key, 0);
+        // results of DataAggregator are rendered for the exact viewport
+        if (Constants.RESULT_CACHE && !(algorithm instanceof DataAggregator)) {
+            algorithm = new CachedAlgorithm(algorithm, Constants.RESULT_CACHE_SIZE);
         }
         return algorithm;
     }
@@ -524,18 +734,12 @@ public class Agent extends AbstractActor {
         if (_request.keyword == null) {
             // TODO - exception
         }
-        if (postgreSQL == null) {
-            postgreSQL = new PostgreSQL();
-        }
-        batch = postgreSQL.queryPointsForKeyword(_request.keyword);
-        if (batch == null) {
-            // TODO - exception
-        }
-
         ObjectNode result = JsonNodeFactory.instance.objectNode();
         result.put("type", "FeatureCollection");
         ArrayNode features = result.putArray("features");
-        buildGeoJsonArrayOfPoint(batch, features);
+        if (dataSource().streamPoints(_request.keyword, chunk -> buildGeoJsonArrayOfPoint(chunk, features)) < 0) {
+            // TODO - exception
+        }
         respond(result);
     }
 
@@ -543,7 +747,6 @@ public class Agent extends AbstractActor {
         if (_request.keyword == null) {
             // TODO - exception
         }
-        this.batch = null;
 
         // initialize query slicing parameters
         Date currentStart = new Date(this.start.getTime());
@@ -560,16 +763,15 @@ public class Agent extends AbstractActor {
             progress = 100 * progress / totalDays;
 
             // query delta data, pointTuples only keep delta data
-            boolean success = fetchBatchFromDB(_request.keyword, currentStart, currentEnd);
+            JsonNode response = Json.toJson(_request);
+            ObjectNode result = JsonNodeFactory.instance.objectNode();
+            ArrayNode data = result.putArray("data");
+            boolean success = fetchBatch(_request.keyword, currentStart, currentEnd, data);
             if (!success) {
                 // TODO - exception
             }
 
             // construct the response Json and return
-            JsonNode response = Json.toJson(_request);
-            ObjectNode result = JsonNodeFactory.instance.objectNode();
-            ArrayNode data = result.putArray("data");
-            buildDataArrayOfPoint(batch, data);
             ((ObjectNode) response).put("progress", progress);
             ((ObjectNode) response).set("result", result);
             respond(response);
@@ -651,4 +853,265 @@ public class Agent extends AbstractActor {
         MyLogger.info(this.getClass(), "responding in Binary format.");
         out.tell(response, self());
     }
+
+    /**
+     * build of the algorithm of a query key on the build dispatcher
+     *  - gets the algorithm from the AlgorithmRegistry,
+     *    which reads it from file or loads it progressively from the data source if no other agent has built it
+     *  - frames of the progressive loading and the built algorithm are sent back to the agent as messages
+     *  - fetches from the data source shared by all agents, touches no state of the agent other than acquired
+     */
+    private class Build implements Runnable {
+        Request request;
+        Query query;
+        ActorRef agent;
+        IAlgorithm algorithm;
+        boolean progressive = false;
+        // runs the sub-range fetches of the progressive loading, fetchParallelism threads
+        ExecutorService fetcher;
+
+        Build(Request request, ActorRef agent) {
+            this.request = request;
+            this.query = request.query;
+            this.agent = agent;
+        }
+
+        @Override
+        public void run() {
+            IAlgorithm shared = null;
+            try {
+                shared = AlgorithmRegistry.getInstance().acquire(query.key, algorithmFileName(query), this::build);
+            } finally {
+                if (fetcher != null) {
+                    fetcher.shutdownNow();
+                }
+                // hand the reference over to the agent, or give it back if the agent has stopped
+                boolean release;
+                synchronized (acquired) {
+                    release = stopped && shared != null;
+                    if (!stopped) {
+                        if (shared != null) acquired.add(query.key);
+                        agent.tell(new BuildDone(request, shared, progressive), ActorRef.noSender());
+                    }
+                }
+                if (release) {
+                    AlgorithmRegistry.getInstance().release(query.key);
+                }
+            }
+        }
+
+        // builder of the registry, runs only if no other agent has built or is building the key
+        IAlgorithm build() {
+            algorithm = newAlgorithm(query);
+            if (algorithm == null) {
+                return null;
+            }
+            // first check if we can load file to algorithm
+            if (algorithm.readFromFile(algorithmFileName(query))) {
+                return algorithm;
+            }
+            // otherwise, load all points at once from the data source (a binary COPY export for PostgreSQL)
+            if (Constants.LOAD_COPY) {
+                return loadAtOnce()? algorithm: null;
+            }
+            // or do progressive data loading from the data source
+            progressive = true;
+            return loadProgressively()? algorithm: null;
+        }
+
+        /**
+         * load all points of the keyword at once, without progressive results
+         *
+         * @return false - if the data source failed
+         */
+        boolean loadAtOnce() {
+            long begin = System.nanoTime();
+            long[] loadTime = new long[1];
+            long count = dataSource().streamPoints(request.keyword, chunk -> loadTime[0] += loadChunk(chunk));
+            if (count < 0) {
+                System.out.println("[Agent] loading keyword [" + request.keyword + "] from " + dataSource().describe() + " failed!");
+                return false;
+            }
+            double totalTime = (double) (System.nanoTime() - begin) / 1000000000.0;
+            System.out.println("[Agent] loaded " + count + " points of keyword [" + request.keyword + "] at once in " + totalTime
+                    + " seconds, loading into " + query.algorithm + ": " + (double) loadTime[0] / 1000000000.0 + " seconds.");
+
+            algorithm.finishLoad();
+            algorithm.writeToFile(algorithmFileName(query));
+            if (Constants.PYRAMID_BUILD) {
+                buildPyramid();
+            }
+            return true;
+        }
+
+        /**
+         * load the points of the keyword slice by slice, answering the query after each slice
+         *
+         * @return false - if the data source failed, the algorithm is partial and is neither finished nor saved
+         */
+        boolean loadProgressively() {
+
+            // for experiments analysis
+            MyTimer.progressTimer().clear();
+            MyTimer.progressTimer().put("fetchTime",  new ArrayList<>());
+            MyTimer.progressTimer().put("clusterTime",  new ArrayList<>());
+            MyTimer.progressTimer().put("treeTime", new ArrayList<>());
+            // MyMemory lists are shared by all threads, builds may run at the same time
+            List<Integer> usedMemory = new ArrayList<>();
+            List<Integer> totalMemory = new ArrayList<>();
+
+            if (request.keyword == null) {
+                // TODO - exception
+            }
+
+            // initialize query slicing parameters
+            List<Date[]> slices = new ArrayList<>();
+            Date currentStart = new Date(start.getTime());
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTime(currentStart);
+            calendar.add(Calendar.DATE, intervalDays);
+            Date currentEnd = calendar.getTime();
+            long totalDays = (end.getTime() - start.getTime()) / (24 * 3600 * 1000);
+            while (currentStart.before(end)) {
+                slices.add(new Date[]{currentStart, currentEnd});
+                currentStart = currentEnd;
+                calendar = Calendar.getInstance();
+                calendar.setTime(currentStart);
+                calendar.add(Calendar.DATE, intervalDays);
+                currentEnd = calendar.getTime();
+            }
+
+            // pipeline: the slice being loaded and the next slice are fetched by ParallelFetch,
+            // each split into fetchParallelism sub-ranges streamed at the same time from the data source,
+            // at most prefetchChunks chunks are buffered per sub-range (ordered) or per slice (unordered)
+            List<ParallelFetch> fetches = new ArrayList<>();
+            if (prefetchChunks > 0) {
+                fetcher = Executors.newFixedThreadPool(Math.max(fetchParallelism, 1));
+            }
+
+            // start query slicing cycles
+            for (int i = 0; i < slices.size(); i ++) {
+                currentEnd = slices.get(i)[1];
+                long progress = (currentEnd.getTime() - start.getTime()) / (24 * 3600 * 1000);
+                progress = 100 * progress / totalDays;
+
+                // (1) stream the slice from the data source and (2) load its chunks into algorithm
+                // times[0] - waiting for the data source, times[1] - loading, in nanoseconds
+                long[] times = new long[2];
+                if (prefetchChunks == 0) {
+                    long begin = System.nanoTime();
+                    long count = dataSource().streamPoints(request.keyword, slices.get(i)[0], slices.get(i)[1], true,
+                            chunk -> times[1] += loadChunk(chunk));
+                    times[0] = System.nanoTime() - begin - times[1];
+                    if (count < 0) {
+                        System.out.println("[Agent] loading keyword [" + request.keyword + "] of slice [" + slices.get(i)[0] + ", "
+                                + slices.get(i)[1] + "] from " + dataSource().describe() + " failed!");
+                        return false;
+                    }
+                }
+                else {
+                    while (fetches.size() < Math.min(i + 2, slices.size())) {
+                        Date[] slice = slices.get(fetches.size());
+                        fetches.add(new ParallelFetch(fetcher, dataSource(), request.keyword, slice[0], slice[1], fetchParallelism, fetchOrdered, prefetchChunks));
+                    }
+                    ParallelFetch fetch = fetches.get(i);
+                    while (true) {
+                        long begin = System.nanoTime();
+                        PointBuffer chunk;
+                        try {
+                            chunk = fetch.next();
+                        } catch (IOException e) {
+                            System.out.println("[Agent] loading keyword [" + request.keyword + "] of slice [" + slices.get(i)[0] + ", "
+                                    + slices.get(i)[1] + "] from " + dataSource().describe() + " failed: " + e.getMessage());
+                            return false;
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return false;
+                        }
+                        times[0] += System.nanoTime() - begin;
+                        if (chunk == null) {
+                            break;
+                        }
+                        times[1] += loadChunk(chunk);
+                    }
+                    fetches.set(i, null);
+                }
+                MyTimer.progressTimer().get("fetchTime").add((double) times[0] / 1000000000.0);
+                MyTimer.progressTimer().get("clusterTime").add((double) times[1] / 1000000000.0);
+                usedMemory.add(MyMemory.getUsedMemory());
+                totalMemory.add(MyMemory.getTotalMemory());
+
+                // (3) answer current query with partial data loaded
+                MyTimer.startTimer();
+                answerQuery(algorithm, query, (int) progress, frame -> agent.tell(new BuildFrame(frame), ActorRef.noSender()));
+                MyTimer.stopTimer();
+                MyTimer.progressTimer().get("treeTime").add(MyTimer.durationSeconds());
+            }
+
+            // notify algorithm that data loading is done.
+            algorithm.finishLoad();
+
+            // save algorithm to file.
+            algorithm.writeToFile(algorithmFileName(query));
+
+            // materialize tiles for pyramid queries.
+            if (Constants.PYRAMID_BUILD) {
+                buildPyramid();
+            }
+
+            // for experiments analysis
+            System.out.println("========== Experiment Analysis ==========");
+            System.out.println("Progressive Query: ");
+            System.out.println("keyword: " + request.keyword);
+            System.out.println("algorithm: " + query.algorithm);
+            System.out.println("prefetch chunks: " + prefetchChunks + " x " + Constants.DB_CHUNK_SIZE + " points, fetch parallelism: "
+                    + fetchParallelism + (fetchOrdered? " (ordered)": " (unordered)"));
+            System.out.println("waiting for data source time for each batch: ");
+            for (double time: MyTimer.progressTimer().get("fetchTime")) {
+                System.out.println(time);
+            }
+            System.out.println("clustering time for each batch: ");
+            for (double time: MyTimer.progressTimer().get("clusterTime")) {
+                System.out.println(time);
+            }
+            System.out.println("Tree-cut time for each batch: ");
+            for (double time: MyTimer.progressTimer().get("treeTime")) {
+                System.out.println(time);
+            }
+            System.out.println("memory usage until each batch (MB): ");
+            for (int i = 0; i < usedMemory.size(); i ++) {
+                System.out.println(usedMemory.get(i) + ",  " + totalMemory.get(i));
+            }
+            System.out.println("========== =================== ==========");
+            return true;
+        }
+
+        /**
+         * load a chunk into the algorithm
+         *
+         * @param chunk
+         * @return loading time in nanoseconds
+         */
+        long loadChunk(PointBuffer chunk) {
+            long begin = System.nanoTime();
+            algorithm.load(chunk);
+            return System.nanoTime() - begin;
+        }
+
+        boolean buildPyramid() {
+            IAlgorithm target = algorithm instanceof CachedAlgorithm? ((CachedAlgorithm) algorithm).getAlgorithm(): algorithm;
+            if (!(target instanceof TilePyramid.TileSource)) {
+                return false;
+            }
+            String fileName = Constants.DATASET_NAME + "-" + query.key + ".pyramid";
+            try {
+                TilePyramid.build((TilePyramid.TileSource) target, fileName, Constants.PYRAMID_MAX_ZOOM, Constants.PYRAMID_SAMPLE_BUDGET);
+                return true;
+            } catch (IOException e) {
+                System.out.println("[Agent] build tile pyramid " + fileName + " failed!");
+                e.printStackTrace();
+            }
+            return false;
+        }
+    }
 }
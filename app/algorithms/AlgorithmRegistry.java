@@ -0,0 +1,235 @@
+package algorithms;
+
+import util.Constants;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Process wide registry of built algorithms, shared by all Agents (WebSocket sessions)
+ *
+ *  - key is query.key, every key is built (read from file or loaded from DB) only once,
+ *    concurrent first acquires of the same key wait for the one build (single flight)
+ *  - every acquire of a session holds a reference until the session releases it,
+ *    an algorithm without references stays in the registry for later sessions
+ *  - if the estimated bytes of all algorithms exceed Constants.REGISTRY_MEMORY_BUDGET,
+ *    algorithms without references are dropped, lowest score first,
+ *    score = hits decayed by half every Constants.REGISTRY_HALF_LIFE seconds (LRU / LFU hybrid)
+ *  - a dropped algorithm is spilled to its file by writeToFile if the file does not exist,
+ *    so that a later build reads the file instead of loading from DB again
+ */
+public class AlgorithmRegistry {
+
+    public interface Builder {
+        /**
+         * @return the built algorithm, null - if the build failed
+         */
+        IAlgorithm build();
+    }
+
+    static class Entry {
+        CompletableFuture<IAlgorithm> future = new CompletableFuture<>();
+        IAlgorithm algorithm; // null until the build is done
+        String fileName; // file the algorithm is read from and spilled to
+        int references = 0;
+        double score = 0.0; // decayed hits at lastHit
+        long lastHit = System.nanoTime();
+
+        double score(long now) {
+            double idle = (double) (now - lastHit) / 1000000000.0;
+            return score * Math.pow(0.5, idle / Math.max(Constants.REGISTRY_HALF_LIFE, 1));
+        }
+    }
+
+    private static final AlgorithmRegistry instance = new AlgorithmRegistry();
+
+    public static AlgorithmRegistry getInstance() {
+        return instance;
+    }
+
+    Map<String, Entry> entries = new HashMap<>();
+    // key -> spill of a dropped algorithm in progress, a new build of the key waits for it
+    Map<String, CompletableFuture<Void>> spills = new HashMap<>();
+
+    /** registry stats */
+    long builds = 0;
+    long shares = 0;
+    long evictions = 0;
+    long spilled = 0;
+
+    /**
+     * get the algorithm of given key and hold a reference to it,
+     * build it by the builder if no one has built or is building it
+     *
+     * @param key
+     * @param fileName - file of the algorithm to spill to if it is dropped, null - never spill
+     * @param builder - runs on the calling thread, not holding the registry lock
+     * @return the algorithm, null - if the build failed
+     */
+    public IAlgorithm acquire(String key, String fileName, Builder builder) {
+        Entry entry;
+        boolean build = false;
+        CompletableFuture<Void> spill;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                entry.fileName = fileName;
+                entries.put(key, entry);
+                build = true;
+                builds ++;
+            }
+            else {
+                shares ++;
+            }
+            entry.references ++;
+            spill = spills.get(key);
+        }
+
+        if (build) {
+            // the file of a just dropped algorithm is still being written
+            if (spill != null) spill.join();
+            IAlgorithm algorithm = null;
+            try {
+                algorithm = builder.build();
+            } finally {
+                List<Map.Entry<String, Entry>> victims;
+                synchronized (this) {
+                    entry.algorithm = algorithm;
+                    if (algorithm == null) {
+                        entries.remove(key);
+                    }
+                    victims = evict();
+                }
+                // wake up sessions waiting for this build
+                entry.future.complete(algorithm);
+                // even if the build threw, sessions acquiring a victim wait for its spill
+                spill(victims);
+            }
+            System.out.println("[Registry] built " + key + (algorithm == null? " failed": "") + ", " + describe() + ".");
+            return algorithm;
+        }
+
+        System.out.println("[Registry] " + key + " is shared, " + describe() + ".");
+        IAlgorithm algorithm;
+        try {
+            algorithm = entry.future.join();
+        } catch (CompletionException e) {
+            algorithm = null;
+        }
+        if (algorithm == null) {
+            synchronized (this) {
+                entry.references --;
+            }
+        }
+        return algorithm;
+    }
+
+    /**
+     * give back a reference got by acquire
+     *
+     * @param key
+     */
+    public void release(String key) {
+        List<Map.Entry<String, Entry>> victims;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) return;
+            entry.references --;
+            victims = evict();
+        }
+        spill(victims);
+    }
+
+    /**
+     * count a query on the algorithm of given key, for choosing algorithms to drop
+     *
+     * @param key
+     */
+    public synchronized void hit(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) return;
+        long now = System.nanoTime();
+        entry.score = entry.score(now) + 1.0;
+        entry.lastHit = now;
+    }
+
+    /**
+     * drop built algorithms without references, lowest score first, until all algorithms fit in the memory budget
+     *
+     * @return dropped entries, to be spilled after the registry lock is released
+     */
+    List<Map.Entry<String, Entry>> evict() {
+        List<Map.Entry<String, Entry>> victims = new ArrayList<>();
+        long budget = Constants.REGISTRY_MEMORY_BUDGET * 1024 * 1024;
+        long bytes = 0;
+        for (Entry entry: entries.values()) {
+            if (entry.algorithm != null) bytes += entry.algorithm.estimatedBytes();
+        }
+        long now = System.nanoTime();
+        while (bytes > budget) {
+            Map.Entry<String, Entry> victim = null;
+            double lowestScore = Double.MAX_VALUE;
+            for (Map.Entry<String, Entry> entry: entries.entrySet()) {
+                Entry value = entry.getValue();
+                if (value.references <= 0 && value.algorithm != null && value.score(now) < lowestScore) {
+                    lowestScore = value.score(now);
+                    victim = entry;
+                }
+            }
+            if (victim == null) {
+                System.out.println("[Registry] " + bytes / 1024 / 1024 + " MB of algorithms exceed the budget, but all are referenced.");
+                break;
+            }
+            entries.remove(victim.getKey());
+            bytes -= victim.getValue().algorithm.estimatedBytes();
+            evictions ++;
+            victims.add(victim);
+            spills.put(victim.getKey(), new CompletableFuture<>());
+        }
+        return victims;
+    }
+
+    // write dropped algorithms to their files if they are not there yet
+    void spill(List<Map.Entry<String, Entry>> victims) {
+        try {
+            for (Map.Entry<String, Entry> victim: victims) {
+                String key = victim.getKey();
+                Entry entry = victim.getValue();
+                if (entry.fileName != null && !new File(entry.fileName).exists()) {
+                    if (entry.algorithm.writeToFile(entry.fileName)) {
+                        synchronized (this) {
+                            spilled ++;
+                        }
+                    }
+                }
+                System.out.println("[Registry] dropped " + key + " (" + entry.algorithm.estimatedBytes() / 1024 / 1024 + " MB), " + describe() + ".");
+            }
+        } finally {
+            // complete the spills of all victims, even if writing one of them failed
+            for (Map.Entry<String, Entry> victim: victims) {
+                CompletableFuture<Void> spill;
+                synchronized (this) {
+                    spill = spills.remove(victim.getKey());
+                }
+                if (spill != null) spill.complete(null);
+            }
+        }
+    }
+
+    public synchronized String describe() {
+        int referenced = 0;
+        long bytes = 0;
+        for (Entry entry: entries.values()) {
+            if (entry.references > 0) referenced ++;
+            if (entry.algorithm != null) bytes += entry.algorithm.estimatedBytes();
+        }
+        return entries.size() + " algorithms (" + referenced + " referenced, " + bytes / 1024 / 1024 + " MB), builds = " + builds
+                + ", shares = " + shares + ", evictions = " + evictions + ", spilled = " + spilled;
+    }
+}
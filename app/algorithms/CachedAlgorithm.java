@@ -0,0 +1,231 @@
+package algorithms;
+
+import model.Point;
+import model.Query;
+import util.BinaryMessageBuilder;
+import util.Constants;
+import util.MyTimer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static util.Mercator.*;
+
+/**
+ * Result cache in front of an IAlgorithm
+ *
+ *  - the bbox of a query is snapped outward to the tile grid of its zoom level,
+ *    so slightly different viewports of the same area share one cache entry,
+ *    and the algorithm is asked for the snapped bbox, which covers every viewport of the entry,
+ *    at the pixel density and sample density of the viewport, i.e. resX, resY and sampleSize are scaled
+ *    by the ratio of the snapped bbox to the viewport, so the viewport gets about the samples of an uncached answer
+ *  - a cached answer is cropped to the viewport before it is returned, points off-screen are not sent
+ *  - only for algorithms whose results are points in map coordinates,
+ *    not for images / bitmaps of the viewport
+ *  - cache key is (zoom, snapped bbox, scaled resX, resY and sampleSize, samplePercentage, aggregator),
+ *    viewports of the same size panned within the snapped bbox share it
+ *  - encoded result messages are kept in LRU order until their total size exceeds the budget
+ *  - any load (progressive batch, finishLoad, readFromFile) invalidates all entries
+ */
+public class CachedAlgorithm implements IAlgorithm {
+
+    static final int TILE_SIZE = 256; // pixels
+
+    IAlgorithm algorithm;
+    long budget; // bytes
+    long bytes = 0;
+    LinkedHashMap<String, byte[]> results = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** cache stats */
+    long hits = 0;
+    long misses = 0;
+    long evictions = 0;
+
+    /**
+     * @param algorithm
+     * @param budget - size limit of cached results in MB
+     */
+    public CachedAlgorithm(IAlgorithm algorithm, long budget) {
+        this.algorithm = algorithm;
+        this.budget = budget * 1024 * 1024;
+    }
+
+    public IAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public void load(List<Point> points) {
+        algorithm.load(points);
+        invalidate();
+    }
+
+    @Override
+    public void finishLoad() {
+        algorithm.finishLoad();
+        invalidate();
+    }
+
+    @Override
+    public byte[] answerQuery(Query query) {
+        // tiles are cached by the algorithm itself
+        if ("tile".equalsIgnoreCase(query.mode)) {
+            return algorithm.answerQuery(query);
+        }
+
+        Query snapped = snap(query);
+        String key = cacheKey(query, snapped);
+
+        byte[] result;
+        synchronized (this) {
+            result = results.get(key);
+            if (result != null) hits ++;
+            else misses ++;
+        }
+        if (result != null) {
+            MyTimer.temporaryTimer().put("treeTime", 0.0);
+            MyTimer.temporaryTimer().put("aggregateTime", 0.0);
+            System.out.println("[Cache] hit " + key + ", hits = " + hits + ", misses = " + misses + ".");
+            // header of the message is written by the caller, crop returns a new copy
+            return crop(result, query.bbox);
+        }
+
+        result = algorithm.answerQuery(snapped);
+        // a partial result would hide the complete one from later queries
+        boolean partial = (BinaryMessageBuilder.getFlags(result) & Constants.FLAG_PARTIAL) != 0;
+        if (!partial && result.length <= budget) {
+            synchronized (this) {
+                byte[] old = results.put(key, Arrays.copyOf(result, result.length));
+                if (old != null) bytes -= old.length;
+                bytes += result.length;
+                evict();
+            }
+        }
+        System.out.println("[Cache] miss " + key + ", hits = " + hits + ", misses = " + misses
+                + ", " + results.size() + " results (" + bytes / 1024 + " KB) cached, " + evictions + " evicted.");
+        return crop(result, query.bbox);
+    }
+
+    @Override
+    public boolean readFromFile(String fileName) {
+        boolean success = algorithm.readFromFile(fileName);
+        invalidate();
+        return success;
+    }
+
+    @Override
+    public boolean writeToFile(String fileName) {
+        return algorithm.writeToFile(fileName);
+    }
+
+    @Override
+    public long estimatedBytes() {
+        return algorithm.estimatedBytes() + bytes;
+    }
+
+    public synchronized void invalidate() {
+        if (!results.isEmpty()) {
+            System.out.println("[Cache] invalidated " + results.size() + " results.");
+        }
+        results.clear();
+        bytes = 0;
+    }
+
+    // drop least recently used results until the cache fits in the budget
+    void evict() {
+        Iterator<Map.Entry<String, byte[]>> iterator = results.entrySet().iterator();
+        while (bytes > budget && iterator.hasNext()) {
+            bytes -= iterator.next().getValue().length;
+            iterator.remove();
+            evictions ++;
+        }
+    }
+
+    /**
+     * @param query
+     * @return a copy of the query with the bbox expanded to the tile grid of its zoom level,
+     *         resX, resY and sampleSize scaled to keep the pixel and sample density of the viewport
+     */
+    static Query snap(Query query) {
+        Query snapped = new Query();
+        snapped.key = query.key;
+        snapped.zoom = query.zoom;
+        snapped.algorithm = query.algorithm;
+        snapped.aggregator = query.aggregator;
+        snapped.sampleSize = query.sampleSize;
+        snapped.samplePercentage = query.samplePercentage;
+        snapped.mode = query.mode;
+        snapped.timeBudget = query.timeBudget;
+        snapped.cancelled = query.cancelled;
+
+        // tiles of zoom level z are 1 / 2^z wide in the [0, 1] mercator plane
+        double tiles = Math.pow(2, Math.max(query.zoom, 0));
+        double x0 = Math.floor(lngX(query.bbox[0]) * tiles) / tiles;
+        double x1 = Math.ceil(lngX(query.bbox[2]) * tiles) / tiles;
+        // latitude -> y is reversed
+        double y0 = Math.ceil(latY(query.bbox[1]) * tiles) / tiles;
+        double y1 = Math.floor(latY(query.bbox[3]) * tiles) / tiles;
+        snapped.bbox = new double[]{xLng(x0), yLat(y0), xLng(x1), yLat(y1)};
+        double width = lngX(query.bbox[2]) - lngX(query.bbox[0]);
+        double height = latY(query.bbox[1]) - latY(query.bbox[3]);
+        if (width <= 0 || height <= 0 || query.resX <= 0 || query.resY <= 0) {
+            // no viewport to scale by, the pixels of the tiles
+            snapped.resX = (int) Math.round((x1 - x0) * tiles) * TILE_SIZE;
+            snapped.resY = (int) Math.round((y0 - y1) * tiles) * TILE_SIZE;
+            return snapped;
+        }
+        double scaleX = (x1 - x0) / width;
+        double scaleY = (y0 - y1) / height;
+        snapped.resX = (int) Math.round(query.resX * scaleX);
+        snapped.resY = (int) Math.round(query.resY * scaleY);
+        if (query.sampleSize > 0) {
+            snapped.sampleSize = (int) Math.round(query.sampleSize * scaleX * scaleY);
+        }
+        return snapped;
+    }
+
+    /**
+     * @param message - a binary message of the snapped bbox
+     * @param bbox - [lng0, lat0, lng1, lat1] of the viewport
+     * @return a copy of the message with only the points inside the bbox
+     */
+    static byte[] crop(byte[] message, double[] bbox) {
+        int record = Constants.DOUBLE_BYTES + Constants.DOUBLE_BYTES;
+        byte[] cropped = new byte[message.length];
+        System.arraycopy(message, 0, cropped, 0, Constants.HEADER_SIZE);
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        int j = Constants.HEADER_SIZE;
+        for (int i = Constants.HEADER_SIZE; i + record <= message.length; i += record) {
+            double lat = buffer.getDouble(i);
+            double lng = buffer.getDouble(i + Constants.DOUBLE_BYTES);
+            if (lng >= bbox[0] && lng <= bbox[2] && lat >= bbox[1] && lat <= bbox[3]) {
+                System.arraycopy(message, i, cropped, j, record);
+                j += record;
+            }
+        }
+        return Arrays.copyOf(cropped, j);
+    }
+
+    /**
+     * @param query - original query
+     * @param snapped
+     * @return
+     */
+    static String cacheKey(Query query, Query snapped) {
+        return snapped.zoom + "/" + snapped.bbox[0] + "," + snapped.bbox[1] + "," + snapped.bbox[2] + "," + snapped.bbox[3]
+                + "/" + snapped.resX + "x" + snapped.resY + "/" + snapped.sampleSize + "/" + snapped.samplePercentage
+                + "/" + snapped.aggregator;
+    }
+}
@@ -14,6 +14,7 @@ public class DataAggregator implements IAlgorithm {
 
     I2DIndex index;
     int totalNumberOfPoints = 0;
+    static final int POINT_BYTES = 72; // estimated heap size of one point in the index (KDTree node + Point)
 
     //-Timing-//
     static final boolean keepTiming = true;
@@ -38,7 +39,7 @@ public class DataAggregator implements IAlgorithm {
         MyMemory.printMemory();
     }
 
-    public void load(List<Point> points) {
+    public synchronized void load(List<Point> points) {
         this.totalNumberOfPoints += points.size();
         System.out.println("[Data Aggregator] loading " + points.size() + " points ... ...");
 
@@ -58,7 +59,7 @@ public class DataAggregator implements IAlgorithm {
     }
 
     @Override
-    public void finishLoad() {
+    public synchronized void finishLoad() {
 
     }
 
@@ -128,7 +129,7 @@ public class DataAggregator implements IAlgorithm {
         return this.index.range(leftBottom, rightTop, nodeHandler);
     }
 
-    public byte[] answerQuery(Query query) {
+    public synchronized byte[] answerQuery(Query query) {
         double lng0 = query.bbox[0];
         double lat0 = query.bbox[1];
         double lng1 = query.bbox[2];
@@ -148,7 +149,7 @@ public class DataAggregator implements IAlgorithm {
             List<Point> allPoints = getPoints(lng0, lat0, lng1, lat1);
             MyTimer.stopTimer();
             double treeTime = MyTimer.durationSeconds();
-            MyTimer.temporaryTimer.put("treeTime", treeTime);
+            MyTimer.temporaryTimer().put("treeTime", treeTime);
             System.out.println("[Data Aggregator] tree search got " + allPoints.size() + " raw data points.");
             System.out.println("[Data Aggregator] tree search time: " + treeTime + " seconds.");
 
@@ -199,7 +200,7 @@ public class DataAggregator implements IAlgorithm {
             }
             MyTimer.stopTimer();
             double aggregateTime = MyTimer.durationSeconds();
-            MyTimer.temporaryTimer.put("aggregateTime", aggregateTime);
+            MyTimer.temporaryTimer().put("aggregateTime", aggregateTime);
             System.out.println("[Data Aggregator] after aggregation, reduced to " + resultSize + " points.");
             System.out.println("[Data Aggregator] aggregation time: " + aggregateTime + " seconds.");
 
@@ -221,7 +222,7 @@ public class DataAggregator implements IAlgorithm {
 
             MyTimer.stopTimer();
             double treeTime = MyTimer.durationSeconds();
-            MyTimer.temporaryTimer.put("treeTime", treeTime);
+            MyTimer.temporaryTimer().put("treeTime", treeTime);
             System.out.println("[Data Aggregator] tree search got " + resultSize + " raw data points, and directly aggregates into a bitmap");
             System.out.println("[Data Aggregator] tree search time: " + treeTime + " seconds.");
 
@@ -243,15 +244,20 @@ public class DataAggregator implements IAlgorithm {
     }
 
     @Override
-    public boolean readFromFile(String fileName) {
+    public synchronized boolean readFromFile(String fileName) {
         return false;
     }
 
     @Override
-    public boolean writeToFile(String fileName) {
+    public synchronized boolean writeToFile(String fileName) {
         return false;
     }
 
+    @Override
+    public long estimatedBytes() {
+        return (long) totalNumberOfPoints * POINT_BYTES;
+    }
+
     private void printTiming() {
         System.out.println("[Total Time] " + timing.get("total") + " seconds.");
     }
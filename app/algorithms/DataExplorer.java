@@ -13,6 +13,7 @@ import static util.Mercator.*;
 public class DataExplorer implements IAlgorithm {
     I2DIndex index;
     int totalNumberOfPoints = 0;
+    static final int POINT_BYTES = 72; // estimated heap size of one point in the index (KDTree node + Point)
 
     //-Timing-//
     static final boolean keepTiming = true;
@@ -31,7 +32,7 @@ public class DataExplorer implements IAlgorithm {
         MyMemory.printMemory();
     }
 
-    public void load(List<Point> points) {
+    public synchronized void load(List<Point> points) {
         System.out.println("[Data Explorer] loading " + points.size() + " points ... ...");
         this.totalNumberOfPoints += points.size();
 
@@ -51,7 +52,7 @@ public class DataExplorer implements IAlgorithm {
     }
 
     @Override
-    public void finishLoad() {
+    public synchronized void finishLoad() {
 
     }
 
@@ -90,7 +91,7 @@ public class DataExplorer implements IAlgorithm {
         return a;
     }
 
-    public byte[] answerQuery(Query query) {
+    public synchronized byte[] answerQuery(Query query) {
         double lng0 = query.bbox[0];
         double lat0 = query.bbox[1];
         double lng1 = query.bbox[2];
@@ -108,7 +109,7 @@ public class DataExplorer implements IAlgorithm {
         List<Point> allPoints = getPoints(lng0, lat0, lng1, lat1);
         MyTimer.stopTimer();
         double treeTime = MyTimer.durationSeconds();
-        MyTimer.temporaryTimer.put("treeTime", treeTime);
+        MyTimer.temporaryTimer().put("treeTime", treeTime);
         System.out.println("[Data Explorer] tree search got " + allPoints.size() + " data points.");
         System.out.println("[Data Explorer] tree search time: " + treeTime + " seconds.");
 
@@ -125,7 +126,7 @@ public class DataExplorer implements IAlgorithm {
         }
         MyTimer.stopTimer();
         double buildBinaryTime = MyTimer.durationSeconds();
-        MyTimer.temporaryTimer.put("aggregateTime", buildBinaryTime);
+        MyTimer.temporaryTimer().put("aggregateTime", buildBinaryTime);
         System.out.println("[Data Explorer] build binary result with " + resultSize + " points.");
         System.out.println("[Data Explorer] build binary result time: " + buildBinaryTime + " seconds.");
 
@@ -135,15 +136,20 @@ public class DataExplorer implements IAlgorithm {
     }
 
     @Override
-    public boolean readFromFile(String fileName) {
+    public synchronized boolean readFromFile(String fileName) {
         return false;
     }
 
     @Override
-    public boolean writeToFile(String fileName) {
+    public synchronized boolean writeToFile(String fileName) {
         return false;
     }
 
+    @Override
+    public long estimatedBytes() {
+        return (long) totalNumberOfPoints * POINT_BYTES;
+    }
+
     private void printTiming() {
         System.out.println("[Total Time] " + timing.get("total") + " seconds.");
     }
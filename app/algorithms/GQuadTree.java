@@ -16,11 +16,11 @@ import static util.Mercator.*;
 
 public class GQuadTree implements IAlgorithm {
 
-    public static double highestLevelNodeDimension;
+    public double highestLevelNodeDimension;
     // resolution of each node (similar to a tile in map systems), e.g. 512
-    public static int oneNodeResolution;
+    public int oneNodeResolution;
 
-    public static IRenderer renderer;
+    public IRenderer renderer;
 
     public class QuadTree {
         // Store count of the sub-tree
@@ -377,11 +377,12 @@ public class GQuadTree implements IAlgorithm {
     QuadTree quadTree;
     int totalNumberOfPoints = 0;
     int totalStoredNumberOfPoints = 0;
-    static long nodesCount = 0; // count quad-tree nodes
-    static int lowestLevelForQuery = Integer.MAX_VALUE; // the lowest level of range searching for a query
-    static double lowestPixelScale = Double.MAX_VALUE; // the lowest pixel scale of range searching for a query
-    static int highestLevelForQuery = 0; // the highest level of range searching for a query
-    static double highestPixelScale = 0.0; // the highest pixel scale of range searching for a query
+    long nodesCount = 0; // count quad-tree nodes
+    static final int NODE_BYTES = 96; // estimated heap size of one node (QuadTree + list of samples)
+    int lowestLevelForQuery = Integer.MAX_VALUE; // the lowest level of range searching for a query
+    double lowestPixelScale = Double.MAX_VALUE; // the lowest pixel scale of range searching for a query
+    int highestLevelForQuery = 0; // the highest level of range searching for a query
+    double highestPixelScale = 0.0; // the highest pixel scale of range searching for a query
 
     //-Timing-//
     static final boolean keepTiming = true;
@@ -407,13 +408,15 @@ public class GQuadTree implements IAlgorithm {
         MyMemory.printMemory();
     }
 
-    public void load(List<Point> points) {
+    public synchronized void load(List<Point> points) {
         System.out.println("[General QuadTree Aggregator] loading " + points.size() + " points ... ...");
 
         MyTimer.startTimer();
         this.totalNumberOfPoints += points.size();
         int count = 0;
         int skip = 0;
+        // every node renders each point inserted into it, and keeps the point if the rendering changes,
+        // so the result depends on the insert order, which Constants.BULK_LOAD must not change
         for (Point point: points) {
             if (this.quadTree.insert(0.5, 0.5, 0.5, lngLatToXY(point), renderer, 0))
                 count ++;
@@ -444,11 +447,11 @@ public class GQuadTree implements IAlgorithm {
     }
 
     @Override
-    public void finishLoad() {
+    public synchronized void finishLoad() {
 
     }
 
-    public byte[] answerQuery(Query query) {
+    public synchronized byte[] answerQuery(Query query) {
         double lng0 = query.bbox[0];
         double lat0 = query.bbox[1];
         double lng1 = query.bbox[2];
@@ -486,7 +489,7 @@ public class GQuadTree implements IAlgorithm {
         MyTimer.stopTimer();
         double treeTime = MyTimer.durationSeconds();
 
-        MyTimer.temporaryTimer.put("treeTime", treeTime);
+        MyTimer.temporaryTimer().put("treeTime", treeTime);
         System.out.println("[General QuadTree Aggregator] tree search got " + points.size() + " data points.");
         System.out.println("[General QuadTree Aggregator] tree search time: " + treeTime + " seconds.");
 
@@ -503,7 +506,7 @@ public class GQuadTree implements IAlgorithm {
         }
         MyTimer.stopTimer();
         double buildBinaryTime = MyTimer.durationSeconds();
-        MyTimer.temporaryTimer.put("aggregateTime", buildBinaryTime);
+        MyTimer.temporaryTimer().put("aggregateTime", buildBinaryTime);
 
         System.out.println("[General QuadTree Aggregator] build binary result with  " + resultSize + " points.");
         System.out.println("[General QuadTree Aggregator] build binary result time: " + buildBinaryTime + " seconds.");
@@ -518,15 +521,22 @@ public class GQuadTree implements IAlgorithm {
     }
 
     @Override
-    public boolean readFromFile(String fileName) {
+    public synchronized boolean readFromFile(String fileName) {
         return false;
     }
 
     @Override
-    public boolean writeToFile(String fileName) {
+    public synchronized boolean writeToFile(String fileName) {
         return false;
     }
 
+    @Override
+    public long estimatedBytes() {
+        // every leaf keeps a rendering of oneNodeResolution pixels (RGB)
+        long leaves = nodesCount * 3 / 4 + 1;
+        return nodesCount * NODE_BYTES + leaves * oneNodeResolution * oneNodeResolution * 3;
+    }
+
     private void printTiming() {
         System.out.println("[Total Time] " + timing.get("total") + " seconds.");
     }
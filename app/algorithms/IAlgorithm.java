@@ -17,7 +17,8 @@ public interface IAlgorithm {
     void finishLoad();
 
     /**
-     * answer a query
+     * answer a query,
+     * may be called from multiple threads at the same time, the timings of a query are in MyTimer of the calling thread
      *
      * @param - Query query
      * @return - byte[] binary format result message (including preserved HEADER_SIZE header)
@@ -27,4 +28,9 @@ public interface IAlgorithm {
     boolean readFromFile(String fileName);
 
     boolean writeToFile(String fileName);
+
+    /**
+     * @return estimated heap size retained by the algorithm in bytes, for the memory budget of AlgorithmRegistry
+     */
+    long estimatedBytes();
 }
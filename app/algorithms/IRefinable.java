@@ -0,0 +1,28 @@
+package algorithms;
+
+import model.Query;
+
+/**
+ * An algorithm that answers a query progressively,
+ * sending a coarse result first and refining it with delta frames
+ */
+public interface IRefinable {
+
+    interface FrameListener {
+        /**
+         * @param frame - binary format message (including preserved HEADER_SIZE header),
+         *                flagged Constants.FLAG_DELTA if its samples add to the previous frames
+         * @param progress - 0 ~ 100, percentage of the sample budget reached by this frame
+         */
+        void onFrame(byte[] frame, int progress);
+    }
+
+    /**
+     * answer a query, intermediate frames are sent to the listener as the search goes on
+     *
+     * @param query
+     * @param listener
+     * @return - the final frame
+     */
+    byte[] refineQuery(Query query, FrameListener listener);
+}
@@ -10,7 +10,7 @@ import static util.Mercator.*;
 
 public class QuadTreeAggregator implements IAlgorithm {
 
-    public static double highestResScale;
+    public double highestResScale;
 
     public class QuadTree {
         // Store count of the sub-tree
@@ -103,6 +103,82 @@ public class QuadTreeAggregator implements IAlgorithm {
             return false;
         }
 
+        /**
+         * Insert the points of keys[from, to) of a Morton sorted batch into the subtree of this node,
+         * the result is the same as inserting them one by one in their original order
+         *
+         *  - keys are normalized to the domain of the quadtree, whose north is the higher y,
+         *    so key quadrants 0, 1, 2, 3 are southWest, southEast, northWest, northEast
+         *
+         * @param cX
+         * @param cY
+         * @param halfWidth
+         * @param halfHeight
+         * @param batch
+         * @param from
+         * @param to
+         * @param level
+         * @return number of points stored on some node, the rest are dropped
+         */
+        public int bulkInsert(double cX, double cY, double halfWidth, double halfHeight, MortonBatch batch, int from, int to, int level) {
+            int n = to - from;
+            if (n == 0) return 0;
+            // keys can not split this node any more, insert the points one by one in their original order
+            if (level > MortonCode.MAX_LEVEL) {
+                int[] indexes = Arrays.copyOfRange(batch.order, from, to);
+                Arrays.sort(indexes);
+                int stored = 0;
+                for (int index: indexes) {
+                    if (this.insert(cX, cY, halfWidth, halfHeight, batch.points[index])) stored ++;
+                }
+                return stored;
+            }
+            // If this node is leaf and empty, the earliest point is put on this node
+            if (this.point == null && this.northWest == null) {
+                if (n == 1 || Math.max(halfWidth, halfHeight) * 2 < highestResScale) {
+                    this.point = batch.points[batch.first(from, to)];
+                    this.count = n;
+                    // the other points are dropped if this node can not be split
+                    return 1;
+                }
+                this.count = n;
+                this.subdivide();
+            }
+            else {
+                // Else, add count into this node
+                this.count += n;
+
+                // if boundary is smaller than highestResScale, drop these points
+                if (Math.max(halfWidth, halfHeight) * 2 < highestResScale) {
+                    return 0;
+                }
+
+                // Otherwise, subdivide
+                if (this.northWest == null) {
+                    this.subdivide();
+                    // insert current node's point into corresponding quadrant
+                    this.insertNorthWest(cX, cY, halfWidth, halfHeight, this.point);
+                    this.insertNorthEast(cX, cY, halfWidth, halfHeight, this.point);
+                    this.insertSouthWest(cX, cY, halfWidth, halfHeight, this.point);
+                    this.insertSouthEast(cX, cY, halfWidth, halfHeight, this.point);
+                    this.point = null;
+                }
+            }
+
+            // split the range into the four quadrants and merge each into the corresponding child
+            int se = MortonCode.lowerBound(batch.keys, from, to, level, 1);
+            int nw = MortonCode.lowerBound(batch.keys, se, to, level, 2);
+            int ne = MortonCode.lowerBound(batch.keys, nw, to, level, 3);
+            double qHalfWidth = halfWidth / 2;
+            double qHalfHeight = halfHeight / 2;
+            int stored = 0;
+            stored += this.southWest.bulkInsert(cX - qHalfWidth, cY - qHalfHeight, qHalfWidth, qHalfHeight, batch, from, se, level + 1);
+            stored += this.southEast.bulkInsert(cX + qHalfWidth, cY - qHalfHeight, qHalfWidth, qHalfHeight, batch, se, nw, level + 1);
+            stored += this.northWest.bulkInsert(cX - qHalfWidth, cY + qHalfHeight, qHalfWidth, qHalfHeight, batch, nw, ne, level + 1);
+            stored += this.northEast.bulkInsert(cX + qHalfWidth, cY + qHalfHeight, qHalfWidth, qHalfHeight, batch, ne, to, level + 1);
+            return stored;
+        }
+
         boolean insertNorthWest(double _cX, double _cY, double _halfWidth, double _halfHeight, Point point) {
             double halfWidth = _halfWidth / 2;
             double halfHeight = _halfHeight / 2;
@@ -264,7 +340,8 @@ public class QuadTreeAggregator implements IAlgorithm {
     double quadTreeHalfHeight;
     int totalNumberOfPoints = 0;
     int totalStoredNumberOfPoints = 0;
-    static long nodesCount = 0; // count quad-tree nodes
+    long nodesCount = 0; // count quad-tree nodes
+    static final int NODE_BYTES = 80; // estimated heap size of one node (QuadTree + point)
 
     //-Timing-//
     static final boolean keepTiming = true;
@@ -291,18 +368,26 @@ public class QuadTreeAggregator implements IAlgorithm {
         MyMemory.printMemory();
     }
 
-    public void load(List<Point> points) {
+    public synchronized void load(List<Point> points) {
         System.out.println("[QuadTree Aggregator] loading " + points.size() + " points ... ...");
 
         MyTimer.startTimer();
         int count = 0;
         int skip = 0;
         this.totalNumberOfPoints += points.size();
-        for (Point point: points) {
-            if (this.quadTree.insert(this.quadTreeCX, this.quadTreeCY, this.quadTreeHalfWidth, this.quadTreeHalfHeight, lngLatToXY(point)))
-                count ++;
-            else
-                skip ++;
+        if (Constants.BULK_LOAD) {
+            MortonBatch batch = MortonBatch.build(points, Constants.MIN_X, Constants.MIN_Y, Constants.MAX_X, Constants.MAX_Y);
+            count = this.quadTree.bulkInsert(this.quadTreeCX, this.quadTreeCY, this.quadTreeHalfWidth, this.quadTreeHalfHeight,
+                    batch, 0, batch.size, 0);
+            skip = points.size() - count;
+        }
+        else {
+            for (Point point: points) {
+                if (this.quadTree.insert(this.quadTreeCX, this.quadTreeCY, this.quadTreeHalfWidth, this.quadTreeHalfHeight, lngLatToXY(point)))
+                    count ++;
+                else
+                    skip ++;
+            }
         }
         this.totalStoredNumberOfPoints += count;
         MyTimer.stopTimer();
@@ -326,11 +411,11 @@ public class QuadTreeAggregator implements IAlgorithm {
     }
 
     @Override
-    public void finishLoad() {
+    public synchronized void finishLoad() {
 
     }
 
-    public byte[] answerQuery(Query query) {
+    public synchronized byte[] answerQuery(Query query) {
         double lng0 = query.bbox[0];
         double lat0 = query.bbox[1];
         double lng1 = query.bbox[2];
@@ -365,7 +450,7 @@ public class QuadTreeAggregator implements IAlgorithm {
             MyTimer.stopTimer();
             double treeTime = MyTimer.durationSeconds();
 
-            MyTimer.temporaryTimer.put("treeTime", treeTime);
+            MyTimer.temporaryTimer().put("treeTime", treeTime);
             System.out.println("[QuadTree Aggregator] tree search got " + points.size() + " data points.");
             System.out.println("[QuadTree Aggregator] tree search time: " + treeTime + " seconds.");
 
@@ -382,7 +467,7 @@ public class QuadTreeAggregator implements IAlgorithm {
             }
             MyTimer.stopTimer();
             double buildBinaryTime = MyTimer.durationSeconds();
-            MyTimer.temporaryTimer.put("aggregateTime", buildBinaryTime);
+            MyTimer.temporaryTimer().put("aggregateTime", buildBinaryTime);
             System.out.println("[QuadTree Aggregator] build binary result with  " + resultSize + " points.");
             System.out.println("[QuadTree Aggregator] build binary result time: " + buildBinaryTime + " seconds.");
 
@@ -420,7 +505,7 @@ public class QuadTreeAggregator implements IAlgorithm {
             MyTimer.stopTimer();
             double treeTime = MyTimer.durationSeconds();
 
-            MyTimer.temporaryTimer.put("treeTime", treeTime);
+            MyTimer.temporaryTimer().put("treeTime", treeTime);
             System.out.println("[QuadTree Aggregator] tree search got " + resultSize + " data points, and directly aggregates into a bitmap.");
             System.out.println("[QuadTree Aggregator] tree search time: " + treeTime + " seconds.");
 
@@ -442,15 +527,20 @@ public class QuadTreeAggregator implements IAlgorithm {
     }
 
     @Override
-    public boolean readFromFile(String fileName) {
+    public synchronized boolean readFromFile(String fileName) {
         return false;
     }
 
     @Override
-    public boolean writeToFile(String fileName) {
+    public synchronized boolean writeToFile(String fileName) {
         return false;
     }
 
+    @Override
+    public long estimatedBytes() {
+        return nodesCount * NODE_BYTES;
+    }
+
     private void printTiming() {
         System.out.println("[Total Time] " + timing.get("total") + " seconds.");
     }
@@ -6,21 +6,40 @@ import util.*;
 import util.render.*;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static util.Mercator.*;
 
-public class RAQuadTree implements IAlgorithm {
+public class RAQuadTree implements IAlgorithm, IRefinable, TilePyramid.TileSource {
 
     public class QuadTree {
         public Point sample;
         public int count; // count of subtree
         public double[] errors; // errors between this sample and four children's samples for all zoom levels
+        public Flags flag; // NONE - sample and errors of this subtree are up to date, otherwise this node is on a dirty path
 
         public QuadTree() {
             this.sample = null;
             this.count = 0;
             this.errors = new double[Constants.MAX_ZOOM + 1];
+            this.flag = Flags.INSERTED;
+        }
+
+        void markUpdated() {
+            if (this.flag == Flags.NONE) this.flag = Flags.UPDATED;
         }
 
         // children
@@ -30,64 +49,109 @@ public class RAQuadTree implements IAlgorithm {
         public QuadTree southEast;
 
         /**
-         * Pre-order traverse the quadtree and write each node to one line in the buffered writer
-         *
-         * each node format:
-         *   level (int), cx (double), cy (double), halfDimension (double), count (int),
-         *   sample.x (double), sample.y (double), errors[0] (double), errors[1] (double), ...
+         * Pre-order traverse the quadtree and write each node as one record of the binary snapshot
          *
-         * @param bufferedWriter
-         * @param _cX
-         * @param _cY
-         * @param _halfDimension
-         * @param _level
+         * @param snapshot
+         * @param index - record index of this node
+         * @param nextErrorsIndex - [0] is the next free errors index of the snapshot
+         * @return size of the subtree rooted at this node
          */
-        public void writeToFile(BufferedWriter bufferedWriter, double _cX, double _cY, double _halfDimension, int _level) throws IOException {
-            // write current node
-            bufferedWriter.write(String.valueOf(this.count));
-            bufferedWriter.write(",");
-            if (this.sample != null) {
-                bufferedWriter.write(String.valueOf(this.sample.getX()));
-                bufferedWriter.write(",");
-                bufferedWriter.write(String.valueOf(this.sample.getY()));
+        public int writeToSnapshot(RAQTSnapshot snapshot, long index, int[] nextErrorsIndex) {
+            int errorsIndex = -1;
+            int subtreeSize = 1;
+            if (this.northWest != null) {
+                errorsIndex = nextErrorsIndex[0] ++;
+                for (int zoom = 0; zoom <= Constants.MAX_ZOOM; zoom ++) {
+                    snapshot.putError(errorsIndex, zoom, this.errors[zoom]);
+                }
+                // recursively write the children
+                subtreeSize += this.northWest.writeToSnapshot(snapshot, index + subtreeSize, nextErrorsIndex);
+                subtreeSize += this.northEast.writeToSnapshot(snapshot, index + subtreeSize, nextErrorsIndex);
+                subtreeSize += this.southWest.writeToSnapshot(snapshot, index + subtreeSize, nextErrorsIndex);
+                subtreeSize += this.southEast.writeToSnapshot(snapshot, index + subtreeSize, nextErrorsIndex);
             }
-            else {
-                bufferedWriter.write(",");
+            // write current node
+            snapshot.putNode(index, this.count, subtreeSize,
+                    this.sample == null? Double.NaN: this.sample.getX(),
+                    this.sample == null? Double.NaN: this.sample.getY(),
+                    errorsIndex);
+            return subtreeSize;
+        }
+
+        /**
+         * Pre-order read the subtree rooted at given record of the binary snapshot
+         *
+         * @param snapshot
+         * @param index - record index of the node to read
+         * @return
+         */
+        public QuadTree readFromSnapshot(RAQTSnapshot snapshot, long index) {
+            return this.readFromSnapshot(snapshot, index, Integer.MAX_VALUE, null);
+        }
+
+        /**
+         * Pre-order read the subtree rooted at given record of the binary snapshot down to given depth,
+         * an internal node at the depth is read without its children and registered as a stub,
+         * which is paged in the first time bfs reaches it
+         *
+         * @param snapshot
+         * @param index - record index of the node to read
+         * @param depth - number of levels to read below this node
+         * @param page - the page being read, null for the eagerly loaded top levels
+         * @return
+         */
+        public QuadTree readFromSnapshot(RAQTSnapshot snapshot, long index, int depth, Page page) {
+            QuadTree node = new QuadTree();
+            node.flag = Flags.NONE;
+            node.count = snapshot.count(index);
+            double x = snapshot.sampleX(index);
+            if (!Double.isNaN(x)) {
+                node.sample = new Point(x, snapshot.sampleY(index));
             }
-            for (int zoom = 0; zoom <= Constants.MAX_ZOOM; zoom ++) {
-                bufferedWriter.write(",");
-                bufferedWriter.write(String.valueOf(this.errors[zoom]));
+            if (page != null) page.nodes ++;
+            if (!snapshot.isLeaf(index)) {
+                int errorsIndex = snapshot.errorsIndex(index);
+                for (int zoom = 0; zoom <= Constants.MAX_ZOOM; zoom ++) {
+                    node.errors[zoom] = snapshot.error(errorsIndex, zoom);
+                }
+                // leave the children on disk
+                if (depth == 0) {
+                    stubs.put(node, new Stub(index, page));
+                    if (page != null) page.stubs.add(node);
+                    return node;
+                }
+                // recursively read the children
+                long child = index + 1;
+                node.northWest = this.readFromSnapshot(snapshot, child, depth - 1, page);
+                child += snapshot.subtreeSize(child);
+                node.northEast = this.readFromSnapshot(snapshot, child, depth - 1, page);
+                child += snapshot.subtreeSize(child);
+                node.southWest = this.readFromSnapshot(snapshot, child, depth - 1, page);
+                child += snapshot.subtreeSize(child);
+                node.southEast = this.readFromSnapshot(snapshot, child, depth - 1, page);
             }
-            bufferedWriter.newLine();
+            return node;
+        }
 
-            // leaf node write an empty line for each child
-            if (this.northWest == null) {
-                // nw
-                bufferedWriter.write("");
-                bufferedWriter.newLine();
-                // ne
-                bufferedWriter.write("");
-                bufferedWriter.newLine();
-                // sw
-                bufferedWriter.write("");
-                bufferedWriter.newLine();
-                // se
-                bufferedWriter.write("");
-                bufferedWriter.newLine();
-                return;
-            }
-            else {
-                // recursively write the children
-                double halfDimension = _halfDimension / 2;
-                this.northWest.writeToFile(bufferedWriter, _cX - halfDimension, _cY - halfDimension, halfDimension, _level + 1);
-                this.northEast.writeToFile(bufferedWriter, _cX + halfDimension, _cY - halfDimension, halfDimension, _level + 1);
-                this.southWest.writeToFile(bufferedWriter, _cX - halfDimension, _cY + halfDimension, halfDimension, _level + 1);
-                this.southEast.writeToFile(bufferedWriter, _cX + halfDimension, _cY + halfDimension, halfDimension, _level + 1);
+        /**
+         * count nodes of the subtree rooted at this node
+         *
+         * @param counts - [0] number of nodes, [1] number of internal nodes
+         */
+        public void countNodes(long[] counts) {
+            counts[0] ++;
+            if (this.northWest != null) {
+                counts[1] ++;
+                this.northWest.countNodes(counts);
+                this.northEast.countNodes(counts);
+                this.southWest.countNodes(counts);
+                this.southEast.countNodes(counts);
             }
         }
 
         /**
          * Pre-order traverse the quadtree and read each node from one line in the buffered reader
+         *   (legacy text format)
          *
          * each node format:
          *   level (int), cx (double), cy (double), halfDimension (double), count (int),
@@ -113,6 +177,7 @@ public class RAQuadTree implements IAlgorithm {
             try {
                 // read current node
                 QuadTree node = new QuadTree();
+                node.flag = Flags.NONE;
                 String[] attributes = line.split(",");
                 int i = 0;
                 node.count = Integer.valueOf(attributes[i++]);
@@ -182,7 +247,7 @@ public class RAQuadTree implements IAlgorithm {
             return true;
         }
 
-        public boolean insert(double cX, double cY, double halfDimension, Point point, int level) {
+        public boolean insert(double cX, double cY, double halfDimension, Point point, int level, long[] created) {
             // Ignore objects that do not belong in this quad tree
             if (!containsPoint(cX, cY, halfDimension, point)) {
                 return false;
@@ -191,89 +256,219 @@ public class RAQuadTree implements IAlgorithm {
             if (this.sample == null && this.northWest == null) {
                 this.sample = point;
                 this.count = 1;
+                this.markUpdated();
                 return true;
             }
             // Else, add count into this node
             this.count ++;
+            this.markUpdated();
 
             // if boundary is smaller than highestLevelNodeDimension,
             // stop splitting, and make current node a leaf node.
-            if (halfDimension * 2 < highestLevelNodeDimension) {
+            if (halfDimension * 2 < highestLevelNodeDimension()) {
                 // at this moment, this node must already have a sample
                 return false; // skip this point
             }
 
             // Otherwise, subdivide
             if (this.northWest == null) {
-                this.subdivide();
+                this.createChildren();
+                created[0] += 4;
                 // descend current node's point into corresponding quadrant
-                this.insertNorthWest(cX, cY, halfDimension, this.sample, level + 1);
-                this.insertNorthEast(cX, cY, halfDimension, this.sample, level + 1);
-                this.insertSouthWest(cX, cY, halfDimension, this.sample, level + 1);
-                this.insertSouthEast(cX, cY, halfDimension, this.sample, level + 1);
+                this.insertNorthWest(cX, cY, halfDimension, this.sample, level + 1, created);
+                this.insertNorthEast(cX, cY, halfDimension, this.sample, level + 1, created);
+                this.insertSouthWest(cX, cY, halfDimension, this.sample, level + 1, created);
+                this.insertSouthEast(cX, cY, halfDimension, this.sample, level + 1, created);
                 this.sample = null;
             }
 
             // insert new point into corresponding quadrant
-            if (insertNorthWest(cX, cY, halfDimension, point, level + 1)) return true;
-            if (insertNorthEast(cX, cY, halfDimension, point, level + 1)) return true;
-            if (insertSouthWest(cX, cY, halfDimension, point, level + 1)) return true;
-            if (insertSouthEast(cX, cY, halfDimension, point, level + 1)) return true;
+            if (insertNorthWest(cX, cY, halfDimension, point, level + 1, created)) return true;
+            if (insertNorthEast(cX, cY, halfDimension, point, level + 1, created)) return true;
+            if (insertSouthWest(cX, cY, halfDimension, point, level + 1, created)) return true;
+            if (insertSouthEast(cX, cY, halfDimension, point, level + 1, created)) return true;
 
             return false;
         }
 
-        boolean insertNorthWest(double _cX, double _cY, double _halfDimension, Point point, int level) {
+        /**
+         * Insert the points of keys[from, to) of a Morton sorted batch into the subtree of this node,
+         * the result is the same as inserting them one by one in their original order
+         *
+         * @param cX
+         * @param cY
+         * @param halfDimension
+         * @param batch
+         * @param from
+         * @param to
+         * @param level
+         * @param created - [0] counts the nodes created by this call
+         * @return number of points stored as a sample of some node, the rest are skipped
+         */
+        public int bulkInsert(double cX, double cY, double halfDimension, MortonBatch batch, int from, int to, int level,
+                              long[] created) {
+            int n = to - from;
+            if (n == 0) return 0;
+            // If this node is leaf and empty, the earliest point is put on this node
+            if (this.sample == null && this.northWest == null) {
+                this.markUpdated();
+                if (n == 1 || halfDimension * 2 < highestLevelNodeDimension()) {
+                    this.sample = batch.points[batch.first(from, to)];
+                    this.count = n;
+                    // the other points are skipped if this node can not be split
+                    return 1;
+                }
+                this.count = n;
+                this.createChildren();
+                created[0] += 4;
+            }
+            else {
+                // Else, add count into this node
+                this.count += n;
+                this.markUpdated();
+
+                // if boundary is smaller than highestLevelNodeDimension,
+                // stop splitting, and make current node a leaf node.
+                if (halfDimension * 2 < highestLevelNodeDimension()) {
+                    return 0; // skip these points
+                }
+
+                // Otherwise, subdivide
+                if (this.northWest == null) {
+                    this.createChildren();
+                    created[0] += 4;
+                    // descend current node's point into corresponding quadrant
+                    this.insertNorthWest(cX, cY, halfDimension, this.sample, level + 1, created);
+                    this.insertNorthEast(cX, cY, halfDimension, this.sample, level + 1, created);
+                    this.insertSouthWest(cX, cY, halfDimension, this.sample, level + 1, created);
+                    this.insertSouthEast(cX, cY, halfDimension, this.sample, level + 1, created);
+                    this.sample = null;
+                }
+            }
+
+            // split the range into the four quadrants and merge each into the corresponding child
+            int ne = MortonCode.lowerBound(batch.keys, from, to, level, 1);
+            int sw = MortonCode.lowerBound(batch.keys, ne, to, level, 2);
+            int se = MortonCode.lowerBound(batch.keys, sw, to, level, 3);
+            double half = halfDimension / 2;
+
+            // the four subtrees are disjoint, merge them in parallel near the root
+            if (inBuildPool() && level < Constants.BUILD_PARALLEL_DEPTH && n >= Constants.BUILD_PARALLEL_THRESHOLD) {
+                BulkInsertTask[] tasks = new BulkInsertTask[] {
+                        new BulkInsertTask(this.northWest, cX - half, cY - half, half, batch, from, ne, level + 1),
+                        new BulkInsertTask(this.northEast, cX + half, cY - half, half, batch, ne, sw, level + 1),
+                        new BulkInsertTask(this.southWest, cX - half, cY + half, half, batch, sw, se, level + 1),
+                        new BulkInsertTask(this.southEast, cX + half, cY + half, half, batch, se, to, level + 1)
+                };
+                ForkJoinTask.invokeAll(tasks);
+                int stored = 0;
+                for (BulkInsertTask task: tasks) {
+                    stored += task.join();
+                    created[0] += task.created[0];
+                }
+                return stored;
+            }
+
+            int stored = 0;
+            stored += this.northWest.bulkInsert(cX - half, cY - half, half, batch, from, ne, level + 1, created);
+            stored += this.northEast.bulkInsert(cX + half, cY - half, half, batch, ne, sw, level + 1, created);
+            stored += this.southWest.bulkInsert(cX - half, cY + half, half, batch, sw, se, level + 1, created);
+            stored += this.southEast.bulkInsert(cX + half, cY + half, half, batch, se, to, level + 1, created);
+            return stored;
+        }
+
+        boolean insertNorthWest(double _cX, double _cY, double _halfDimension, Point point, int level, long[] created) {
             double halfDimension = _halfDimension / 2;
             double cX = _cX - halfDimension;
             double cY = _cY - halfDimension;
-            return this.northWest.insert(cX, cY, halfDimension, point, level);
+            return this.northWest.insert(cX, cY, halfDimension, point, level, created);
         }
 
-        boolean insertNorthEast(double _cX, double _cY, double _halfDimension, Point point, int level) {
+        boolean insertNorthEast(double _cX, double _cY, double _halfDimension, Point point, int level, long[] created) {
             double halfDimension = _halfDimension / 2;
             double cX = _cX + halfDimension;
             double cY = _cY - halfDimension;
-            return this.northEast.insert(cX, cY, halfDimension, point, level);
+            return this.northEast.insert(cX, cY, halfDimension, point, level, created);
         }
 
-        boolean insertSouthWest(double _cX, double _cY, double _halfDimension, Point point, int level) {
+        boolean insertSouthWest(double _cX, double _cY, double _halfDimension, Point point, int level, long[] created) {
             double halfDimension = _halfDimension / 2;
             double cX = _cX - halfDimension;
             double cY = _cY + halfDimension;
-            return this.southWest.insert(cX, cY, halfDimension, point, level);
+            return this.southWest.insert(cX, cY, halfDimension, point, level, created);
         }
 
-        boolean insertSouthEast(double _cX, double _cY, double _halfDimension, Point point, int level) {
+        boolean insertSouthEast(double _cX, double _cY, double _halfDimension, Point point, int level, long[] created) {
             double halfDimension = _halfDimension / 2;
             double cX = _cX + halfDimension;
             double cY = _cY + halfDimension;
-            return this.southEast.insert(cX, cY, halfDimension, point, level);
+            return this.southEast.insert(cX, cY, halfDimension, point, level, created);
         }
 
-        void subdivide() {
+        void createChildren() {
             this.northWest = new QuadTree();
             this.northEast = new QuadTree();
             this.southWest = new QuadTree();
             this.southEast = new QuadTree();
-            nodesCount += 4;
         }
 
-        class QEntry {
-            int level;
-            double ncX;
-            double ncY;
-            double nhalfDimension;
+        /**
+         * Bulk insert a range of the batch into one subtree on the build pool,
+         * nodes created are counted per task and summed up by the parent task
+         */
+        class BulkInsertTask extends RecursiveTask<Integer> {
+            private static final long serialVersionUID = 1L;
+
             QuadTree node;
-            double benefit; // the benefit value if the take the best move
+            double cX;
+            double cY;
+            double halfDimension;
+            MortonBatch batch;
+            int from;
+            int to;
+            int level;
+            long[] created = new long[1];
 
-            QEntry(int _level, double _ncX, double _ncY, double _nhalfDimension, QuadTree _node, double _benefit) {
+            BulkInsertTask(QuadTree _node, double _cX, double _cY, double _halfDimension, MortonBatch _batch, int _from, int _to, int _level) {
+                node = _node;
+                cX = _cX;
+                cY = _cY;
+                halfDimension = _halfDimension;
+                batch = _batch;
+                from = _from;
+                to = _to;
                 level = _level;
-                ncX = _ncX;
-                ncY = _ncY;
-                nhalfDimension = _nhalfDimension;
+            }
+
+            @Override
+            protected Integer compute() {
+                return node.bulkInsert(cX, cY, halfDimension, batch, from, to, level, created);
+            }
+        }
+
+        /**
+         * selectSamples of one subtree on the build pool
+         */
+        class SelectSamplesTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            QuadTree node;
+            double cX;
+            double cY;
+            double halfDimension;
+            int level;
+
+            SelectSamplesTask(QuadTree _node, double _cX, double _cY, double _halfDimension, int _level) {
                 node = _node;
-                benefit = _benefit;
+                cX = _cX;
+                cY = _cY;
+                halfDimension = _halfDimension;
+                level = _level;
+            }
+
+            @Override
+            protected void compute() {
+                node.selectSamples(selectContexts.get(), cX, cY, halfDimension, level);
             }
         }
 
@@ -283,64 +478,90 @@ public class RAQuadTree implements IAlgorithm {
          * explore nodes with higher estimated benefit first
          * - benefit = gain of quality / cost of sample size
          *
+         * the queue lives in the search context and samples are written straight into the message builder,
+         * so a query does not allocate once the context has grown to the size of the search
+         *
          * @param _ncX
          * @param _ncY
          * @param _nhalfDimension
+         * @param _level - level of this node
          * @param _rcX
          * @param _rcY
          * @param _rhalfWidth
          * @param _rhalfHeight
          * @param _zoom - zoom level of current query
          * @param _targetSampleSize
-         * @return
+         * @param _frontierSize - > 0, stop as soon as the queue holds this many nodes while there is budget left,
+         *                        leaving them in the queue of the context
+         * @param _context - search context of current thread
+         * @param _messageBuilder - result samples are added in (lng, lat)
+         * @return number of result samples
          */
-        public List<Point> bfs(double _ncX, double _ncY, double _nhalfDimension,
-                               double _rcX, double _rcY, double _rhalfWidth, double _rhalfHeight,
-                               int _zoom, int _targetSampleSize) {
+        public int bfs(double _ncX, double _ncY, double _nhalfDimension, int _level,
+                       double _rcX, double _rcY, double _rhalfWidth, double _rhalfHeight,
+                       int _zoom, int _targetSampleSize, int _frontierSize,
+                       SearchContext _context, BinaryMessageBuilder _messageBuilder) {
 
-            List<Point> result = new ArrayList<>();
+            int resultSize = 0;
 
             // explore larger estimatedProfit node first
-            PriorityQueue<QEntry> queue = new PriorityQueue<>(new Comparator<QEntry>() {
-                @Override
-                public int compare(QEntry o1, QEntry o2) {
-                    if (o2.benefit > o1.benefit)
-                        return 1;
-                    else if (o2.benefit < o1.benefit)
-                        return -1;
-                    else
-                        return 0;
-                }
-            });
+            MaxHeap queue = _context.queue;
 
-            double rootBenefit = computeBenefit(_zoom, 0, this);
-            QEntry rootEntry = new QEntry(0, _ncX, _ncY, _nhalfDimension, this, rootBenefit);
+            // in refinement mode, samples are sent as soon as they enter the cut
+            boolean refine = _context.frameListener != null;
+
+            if (lazy) touch(this);
+            double rootBenefit = computeBenefit(_context, _zoom, _level, this);
             // add root node
-            queue.add(rootEntry);
+            _context.push(rootBenefit, this, _level, _ncX, _ncY, _nhalfDimension);
             int availableSampleSize = _targetSampleSize - Constants.NODE_SAMPLE_SIZE;
+            if (refine && this.sample != null) resultSize += refineSample(null, this, _context, _messageBuilder);
+
+            int pops = 0;
+            boolean expired = false;
 
             while (queue.size() > 0) {
 
+                if (_frontierSize > 0 && queue.size() >= _frontierSize && availableSampleSize > 0 && !expired) break;
+
                 // pick the largest benefit node
-                QEntry entry = queue.poll();
-                int level = entry.level;
-                double ncX = entry.ncX;
-                double ncY = entry.ncY;
-                double nhalfDimension = entry.nhalfDimension;
-                QuadTree node = entry.node;
-                double benefit = entry.benefit;
+                double benefit = queue.peekKey();
+                int slot = queue.pop();
+                int level = _context.levels[slot];
+                double ncX = _context.ncXs[slot];
+                double ncY = _context.ncYs[slot];
+                double nhalfDimension = _context.nhalfDimensions[slot];
+                QuadTree node = _context.nodes[slot];
+                _context.release(slot);
                 int sampleSize = node.sample == null? 0: Constants.NODE_SAMPLE_SIZE;
 
+                // check the deadline and the cancellation every DEADLINE_CHECK_INTERVAL nodes,
+                // once it passed, the nodes in the queue are the best cut reached so far
+                if ((_context.deadline > 0 || _context.cancelled != null) && !expired && (++ pops % DEADLINE_CHECK_INTERVAL) == 0
+                        && (_context.deadline > 0 && System.nanoTime() > _context.deadline || _context.cancelled != null && _context.cancelled.get())) {
+                    expired = true;
+                }
+
                 // if the largest estimated benefit is 0 or enough samples, entering collecting samples mode
-                if (benefit <= 0.0 || availableSampleSize <= 0) {
+                if (benefit <= 0.0 || availableSampleSize <= 0 || expired) {
                     //-DEBUG-//
 //                    System.out.println("[queue] level = " + level);
 //                    System.out.println("[queue] benefit = " + benefit);
 //                    System.out.println("[queue] sample size = " + sampleSize);
                     //-DEBUG-//
-                    if (node.sample != null) {
-                        numberOfNodesStoppedAtLevels[level] ++;
-                        result.add(node.sample);
+                    if (expired && benefit > 0.0 && availableSampleSize > 0) {
+                        _context.partial = true;
+                    }
+                    // nodes are popped in benefit order, the first one not expanded has the largest benefit
+                    if (!expired && benefit > 0.0 && _context.stopBenefit == 0.0) {
+                        _context.stopBenefit = benefit;
+                    }
+                    if (node.sample != null && _context.inClip(node.sample)) {
+                        _context.numberOfNodesStoppedAtLevels[level] ++;
+                        if (!refine) {
+                            _messageBuilder.add(xLng(node.sample.getX()), yLat(node.sample.getY()));
+                            resultSize ++;
+                        }
                     }
                     continue;
                 }
@@ -355,11 +576,12 @@ public class RAQuadTree implements IAlgorithm {
                 cY = ncY - halfDimension;
                 // ignore this node if the range does not intersect with it
                 if (intersectsBBox(cX, cY, halfDimension, _rcX, _rcY, _rhalfWidth, _rhalfHeight)) {
-                    double benefitNW = computeBenefit(_zoom, level + 1, node.northWest);
-                    QEntry entryNW = new QEntry(level + 1, cX, cY, halfDimension, node.northWest, benefitNW);
-                    queue.add(entryNW);
+                    if (lazy) touch(node.northWest);
+                    double benefitNW = computeBenefit(_context, _zoom, level + 1, node.northWest);
+                    _context.push(benefitNW, node.northWest, level + 1, cX, cY, halfDimension);
                     if (node.northWest.sample != null) {
                         availableSampleSize -= Constants.NODE_SAMPLE_SIZE;
+                        if (refine) resultSize += refineSample(node, node.northWest, _context, _messageBuilder);
                     }
                 }
 
@@ -368,11 +590,12 @@ public class RAQuadTree implements IAlgorithm {
                 cY = ncY - halfDimension;
                 // ignore this node if the range does not intersect with it
                 if (intersectsBBox(cX, cY, halfDimension, _rcX, _rcY, _rhalfWidth, _rhalfHeight)) {
-                    double benefitNE = computeBenefit(_zoom, level + 1, node.northEast);
-                    QEntry entryNE = new QEntry(level + 1, cX, cY, halfDimension, node.northEast, benefitNE);
-                    queue.add(entryNE);
+                    if (lazy) touch(node.northEast);
+                    double benefitNE = computeBenefit(_context, _zoom, level + 1, node.northEast);
+                    _context.push(benefitNE, node.northEast, level + 1, cX, cY, halfDimension);
                     if (node.northEast.sample != null) {
                         availableSampleSize -= Constants.NODE_SAMPLE_SIZE;
+                        if (refine) resultSize += refineSample(node, node.northEast, _context, _messageBuilder);
                     }
                 }
 
@@ -381,11 +604,12 @@ public class RAQuadTree implements IAlgorithm {
                 cY = ncY + halfDimension;
                 // ignore this node if the range does not intersect with it
                 if (intersectsBBox(cX, cY, halfDimension, _rcX, _rcY, _rhalfWidth, _rhalfHeight)) {
-                    double benefitSW = computeBenefit(_zoom, level + 1, node.southWest);
-                    QEntry entrySW = new QEntry(level + 1, cX, cY, halfDimension, node.southWest, benefitSW);
-                    queue.add(entrySW);
+                    if (lazy) touch(node.southWest);
+                    double benefitSW = computeBenefit(_context, _zoom, level + 1, node.southWest);
+                    _context.push(benefitSW, node.southWest, level + 1, cX, cY, halfDimension);
                     if (node.southWest.sample != null) {
                         availableSampleSize -= Constants.NODE_SAMPLE_SIZE;
+                        if (refine) resultSize += refineSample(node, node.southWest, _context, _messageBuilder);
                     }
                 }
 
@@ -394,19 +618,25 @@ public class RAQuadTree implements IAlgorithm {
                 cY = ncY + halfDimension;
                 // ignore this node if the range does not intersect with it
                 if (intersectsBBox(cX, cY, halfDimension, _rcX, _rcY, _rhalfWidth, _rhalfHeight)) {
-                    double benefitSE = computeBenefit(_zoom, level + 1, node.southEast);
-                    QEntry entrySE = new QEntry(level + 1, cX, cY, halfDimension, node.southEast, benefitSE);
-                    queue.add(entrySE);
+                    if (lazy) touch(node.southEast);
+                    double benefitSE = computeBenefit(_context, _zoom, level + 1, node.southEast);
+                    _context.push(benefitSE, node.southEast, level + 1, cX, cY, halfDimension);
                     if (node.southEast.sample != null) {
                         availableSampleSize -= Constants.NODE_SAMPLE_SIZE;
+                        if (refine) resultSize += refineSample(node, node.southEast, _context, _messageBuilder);
                     }
                 }
+
+                if (refine && resultSize >= _context.nextFrame) {
+                    _context.sendFrame(_messageBuilder, resultSize, _targetSampleSize);
+                }
             }
 
             //-DEBUG-//
             System.out.println("[availableSampleSize] = " + availableSampleSize);
 
-            return result;
+            _context.availableSampleSize = availableSampleSize;
+            return resultSize;
         }
 
         /**
@@ -417,6 +647,23 @@ public class RAQuadTree implements IAlgorithm {
          *    - store errors between sample on node and samples on children for all resolutions
          */
         public void selectSamples(double _cX, double _cY, double _halfDimension, int _level) {
+            this.selectSamples(selectContexts.get(), _cX, _cY, _halfDimension, _level);
+        }
+
+        /**
+         * selectSamples with the context of current thread,
+         * subtrees with at least Constants.BUILD_SELECT_THRESHOLD points are selected in parallel on the build pool
+         *
+         *  - only nodes on dirty paths (flag != NONE) are visited,
+         *    so after a batch is loaded, the cost is proportional to the nodes touched by the batch
+         */
+        void selectSamples(SelectContext context, double _cX, double _cY, double _halfDimension, int _level) {
+            // nothing changed in this subtree since last selection
+            if (this.flag == Flags.NONE) {
+                return;
+            }
+            this.flag = Flags.NONE;
+
             // leaf node already has the best sample
             if (this.northWest == null) {
                 return;
@@ -425,13 +672,25 @@ public class RAQuadTree implements IAlgorithm {
             double halfDimension = _halfDimension / 2;
 
             // select best samples for all four children first
-            this.northWest.selectSamples(_cX - halfDimension, _cY - halfDimension, halfDimension, _level + 1);
-            this.northEast.selectSamples(_cX + halfDimension, _cY - halfDimension, halfDimension, _level + 1);
-            this.southWest.selectSamples(_cX - halfDimension, _cY + halfDimension, halfDimension, _level + 1);
-            this.southEast.selectSamples(_cX + halfDimension, _cY + halfDimension, halfDimension, _level + 1);
+            if (inBuildPool() && this.count >= Constants.BUILD_SELECT_THRESHOLD) {
+                ForkJoinTask.invokeAll(
+                        new SelectSamplesTask(this.northWest, _cX - halfDimension, _cY - halfDimension, halfDimension, _level + 1),
+                        new SelectSamplesTask(this.northEast, _cX + halfDimension, _cY - halfDimension, halfDimension, _level + 1),
+                        new SelectSamplesTask(this.southWest, _cX - halfDimension, _cY + halfDimension, halfDimension, _level + 1),
+                        new SelectSamplesTask(this.southEast, _cX + halfDimension, _cY + halfDimension, halfDimension, _level + 1));
+            }
+            else {
+                this.northWest.selectSamples(context, _cX - halfDimension, _cY - halfDimension, halfDimension, _level + 1);
+                this.northEast.selectSamples(context, _cX + halfDimension, _cY - halfDimension, halfDimension, _level + 1);
+                this.southWest.selectSamples(context, _cX - halfDimension, _cY + halfDimension, halfDimension, _level + 1);
+                this.southEast.selectSamples(context, _cX + halfDimension, _cY + halfDimension, halfDimension, _level + 1);
+            }
+
+            IRenderer renderer = context.renderer;
+            IErrorMetric errorMetric = context.errorMetric;
 
             // render the four best samples on four children as the ground truth
-            byte[] rendering0 = renderer.createRendering(Constants.NODE_RESOLUTION);
+            byte[] rendering0 = context.rendering(Constants.NODE_RESOLUTION, 0);
             if (this.northWest.sample != null) {
                 renderer.render(rendering0, _cX, _cY, _halfDimension, Constants.NODE_RESOLUTION, this.northWest.sample);
             }
@@ -449,7 +708,7 @@ public class RAQuadTree implements IAlgorithm {
             double minError = Double.MAX_VALUE;
             Point bestSample = null;
             if (this.northWest.sample != null) {
-                byte[] renderingNW = renderer.createRendering(Constants.NODE_RESOLUTION);
+                byte[] renderingNW = context.rendering(Constants.NODE_RESOLUTION, 1);
                 renderer.render(renderingNW, _cX, _cY, _halfDimension, Constants.NODE_RESOLUTION, this.northWest.sample);
                 double error = errorMetric.error(rendering0, renderingNW, renderer.realResolution(Constants.NODE_RESOLUTION));
                 if (error < minError) {
@@ -458,7 +717,7 @@ public class RAQuadTree implements IAlgorithm {
                 }
             }
             if (this.northEast.sample != null) {
-                byte[] renderingNE = renderer.createRendering(Constants.NODE_RESOLUTION);
+                byte[] renderingNE = context.rendering(Constants.NODE_RESOLUTION, 1);
                 renderer.render(renderingNE, _cX, _cY, _halfDimension, Constants.NODE_RESOLUTION, this.northEast.sample);
                 double error = errorMetric.error(rendering0, renderingNE, renderer.realResolution(Constants.NODE_RESOLUTION));
                 if (error < minError) {
@@ -467,7 +726,7 @@ public class RAQuadTree implements IAlgorithm {
                 }
             }
             if (this.southWest.sample != null) {
-                byte[] renderingSW = renderer.createRendering(Constants.NODE_RESOLUTION);
+                byte[] renderingSW = context.rendering(Constants.NODE_RESOLUTION, 1);
                 renderer.render(renderingSW, _cX, _cY, _halfDimension, Constants.NODE_RESOLUTION, this.southWest.sample);
                 double error = errorMetric.error(rendering0, renderingSW, renderer.realResolution(Constants.NODE_RESOLUTION));
                 if (error < minError) {
@@ -476,7 +735,7 @@ public class RAQuadTree implements IAlgorithm {
                 }
             }
             if (this.southEast.sample != null) {
-                byte[] renderingSE = renderer.createRendering(Constants.NODE_RESOLUTION);
+                byte[] renderingSE = context.rendering(Constants.NODE_RESOLUTION, 1);
                 renderer.render(renderingSE, _cX, _cY, _halfDimension, Constants.NODE_RESOLUTION, this.southEast.sample);
                 double error = errorMetric.error(rendering0, renderingSE, renderer.realResolution(Constants.NODE_RESOLUTION));
                 if (error < minError) {
@@ -491,31 +750,309 @@ public class RAQuadTree implements IAlgorithm {
             // compute and store the errors between best sample and all four children's best samples
             for (int zoom = 0; zoom <= Constants.MAX_ZOOM; zoom ++) {
                 double pixelScale = 1.0 / 256 / Math.pow(2, zoom);
-                this.errors[zoom] = computeErrorAgainstChildren(this, _cX, _cY, _halfDimension, pixelScale);
+                this.errors[zoom] = computeErrorAgainstChildren(context, this, _cX, _cY, _halfDimension, pixelScale);
             }
         }
 
 
     }
 
-    public static double highestLevelNodeDimension;
+    // zoom level 0 is fixed with dimension 1.0 / 256 (because one tile of the base map is 256px x 256px)
+    static double highestLevelNodeDimension() {
+        return 1.0 / 256 / (1L << Constants.MAX_ZOOM);
+    }
+
+    // pool for building subtrees in parallel, shared by all trees
+    static ForkJoinPool buildPool;
 
-    public static IRenderer renderer;
+    static synchronized ForkJoinPool buildPool() {
+        if (buildPool == null) {
+            int threads = Constants.BUILD_THREADS > 0? Constants.BUILD_THREADS: Runtime.getRuntime().availableProcessors();
+            System.out.println("[RA-QuadTree] build pool parallelism = " + threads);
+            buildPool = new ForkJoinPool(threads);
+        }
+        return buildPool;
+    }
 
-    public static IErrorMetric errorMetric;
+    static boolean inBuildPool() {
+        return buildPool != null && ForkJoinTask.getPool() == buildPool;
+    }
+
+    IRenderer renderer;
+
+    IErrorMetric errorMetric;
+
+    /**
+     * Per thread state of selectSamples,
+     * renderer and error metric are stateless, renderings are reused for each node
+     */
+    static class SelectContext {
+        IRenderer renderer;
+        IErrorMetric errorMetric;
+        byte[][][] renderings = new byte[0][][]; // resolution -> [background, slot 0, slot 1]
+
+        SelectContext(IRenderer _renderer, IErrorMetric _errorMetric) {
+            renderer = _renderer;
+            errorMetric = _errorMetric;
+        }
+
+        /**
+         * @param resolution
+         * @param slot - 0 or 1, renderings of different slots can be used at the same time
+         * @return a rendering of background color, valid until the next call with the same resolution and slot
+         */
+        byte[] rendering(int resolution, int slot) {
+            if (resolution >= renderings.length) {
+                renderings = Arrays.copyOf(renderings, resolution + 1);
+            }
+            byte[][] buffers = renderings[resolution];
+            if (buffers == null) {
+                byte[] background = renderer.createRendering(resolution);
+                buffers = new byte[][] {background, background.clone(), background.clone()};
+                renderings[resolution] = buffers;
+            }
+            byte[] rendering = buffers[slot + 1];
+            System.arraycopy(buffers[0], 0, rendering, 0, rendering.length);
+            return rendering;
+        }
+    }
+
+    ThreadLocal<SelectContext> selectContexts = ThreadLocal.withInitial(() -> new SelectContext(renderer, errorMetric));
+
+    /**
+     * Lazily-resident tree
+     *
+     *  - the top Constants.LAZY_EAGER_LEVELS levels of a snapshot are read eagerly,
+     *  - the children of an internal node at the boundary stay on disk, the node is a stub,
+     *  - the first time bfs reaches a stub, Constants.LAZY_PAGE_LEVELS levels below it are read as one page,
+     *  - after each query, least recently used pages are evicted (turned back into stubs)
+     *    until the resident pages fit in Constants.LAZY_MEMORY_BUDGET
+     */
+    static class Stub {
+        long index; // record index of the stub node in the snapshot
+        Page owner; // the page the stub node belongs to, null for the eager levels
+
+        Stub(long _index, Page _owner) {
+            index = _index;
+            owner = _owner;
+        }
+    }
+
+    static class Page {
+        QuadTree root; // the stub node whose children were paged in
+        Stub stub;
+        int nodes = 0; // number of nodes read in this page
+        List<QuadTree> stubs = new ArrayList<>(); // stub nodes inside this page
+        List<Page> children = new ArrayList<>(); // pages paged in from stub nodes inside this page
+
+        Page(QuadTree _root, Stub _stub) {
+            root = _root;
+            stub = _stub;
+        }
+    }
+
+    // estimated heap size of one resident node (QuadTree + errors + sample)
+    static final int NODE_BYTES = 240;
+
+    boolean lazy = false;
+    RAQTSnapshot snapshot; // the snapshot pages are read from
+    String snapshotFileName;
+    Map<QuadTree, Stub> stubs; // stub node -> its record in the snapshot
+    LinkedHashMap<QuadTree, Page> pages; // page root -> page, in access order
+    long residentPagedNodes = 0; // number of nodes in resident pages
+    long eagerNodes = 0; // number of nodes in the eager levels
+    long pageFaults = 0;
+    long pageEvictions = 0;
+
+    /**
+     * Concurrency
+     *
+     *  - a finished, fully resident tree is immutable, queries on it only hold the read lock and run at the same time,
+     *    per query state lives in the SearchContext of the querying thread
+     *  - load, finishLoad and readFromFile change the tree under the write lock,
+     *    so do queries on a tree not finished loading (selecting samples for progressive results)
+     *    and on a lazy tree (paging in / evicting subtrees)
+     */
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @return the lock a query should hold, already locked
+     */
+    Lock lockForQuery() {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        if (finish && !lazy) return readLock;
+        // the read lock can not be upgraded
+        readLock.unlock();
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        return writeLock;
+    }
 
     QuadTree quadTree;
     int totalNumberOfPoints = 0;
     int totalStoredNumberOfPoints = 0;
-    static long nodesCount = 0; // count quad-tree nodes
+    long nodesCount = 0; // count quad-tree nodes
     boolean finish = false; // loading data finish flag
 
-    /** For query stats */
-    static int[] numberOfNodesStoppedAtLevels; // for current query, count how many nodes stopped at a certain level
-    static int computeBenefitTimes; // for current query, count how many times compute the benefit
+    /**
+     * Per thread state of bfs, reused across queries
+     *
+     *  - queue is a max-heap of benefits, its values are slots of the parallel arrays of entries,
+     *    slots of polled entries are recycled through a free list
+     *  - query stats of the current query
+     */
+    static class SearchContext {
+        static final int INIT_CAPACITY = 1 << 16;
+
+        MaxHeap queue = new MaxHeap(INIT_CAPACITY);
+        QuadTree[] nodes = new QuadTree[INIT_CAPACITY];
+        int[] levels = new int[INIT_CAPACITY];
+        double[] ncXs = new double[INIT_CAPACITY];
+        double[] ncYs = new double[INIT_CAPACITY];
+        double[] nhalfDimensions = new double[INIT_CAPACITY];
+        int[] freeSlots = new int[INIT_CAPACITY];
+        int freeCount = 0;
+        int slotsCount = 0; // number of slots ever used
 
-    /** For query time analysis */
-    static Map<String, Double> times; // for current query, store times for different parts
+        BinaryMessageBuilder messageBuilder = new BinaryMessageBuilder();
+
+        // only samples in [clipX0, clipX1) x [clipY0, clipY1) are results, so that adjacent tiles do not share samples
+        boolean clip = false;
+        double clipX0, clipY0, clipX1, clipY1;
+
+        /** For query stats */
+        int[] numberOfNodesStoppedAtLevels = new int[Constants.MAX_ZOOM + 9 + 1]; // count how many nodes stopped at a certain level
+        int computeBenefitTimes; // count how many times compute the benefit
+
+        /** For query time analysis */
+        double computeBenefitTime;
+
+        // sample budget left when bfs returns
+        int availableSampleSize;
+        // largest benefit of the nodes bfs did not expand for lack of budget, 0 - it ran out of nodes to expand first
+        double stopBenefit;
+
+        // refinement mode, frames are sent to the listener whenever the result grows to nextFrame samples
+        IRefinable.FrameListener frameListener = null;
+        int nextFrame;
+        int frames;
+
+        // System.nanoTime() when bfs should stop expanding nodes, 0 - no deadline
+        long deadline = 0;
+        // bfs stops expanding nodes once it is set, null - never cancelled
+        AtomicBoolean cancelled = null;
+        // bfs stopped at the deadline with nodes worth expanding
+        boolean partial = false;
+
+        void reset() {
+            queue.clear();
+            messageBuilder.reset();
+            if (numberOfNodesStoppedAtLevels.length != Constants.MAX_ZOOM + 9 + 1) {
+                numberOfNodesStoppedAtLevels = new int[Constants.MAX_ZOOM + 9 + 1];
+            }
+            Arrays.fill(numberOfNodesStoppedAtLevels, 0);
+            computeBenefitTimes = 0;
+            computeBenefitTime = 0.0;
+            clip = false;
+            deadline = 0;
+            cancelled = null;
+            partial = false;
+            stopBenefit = 0.0;
+            frameListener = null;
+            frames = 0;
+        }
+
+        /**
+         * send the samples added since the last frame, the first frame replaces the previous result
+         */
+        void sendFrame(BinaryMessageBuilder messageBuilder, int resultSize, int targetSampleSize) {
+            messageBuilder.setFlags(frames > 0? Constants.FLAG_DELTA: 0);
+            frameListener.onFrame(messageBuilder.copyBuffer(), (int) Math.min(99, 100L * resultSize / Math.max(targetSampleSize, 1)));
+            messageBuilder.reset();
+            frames ++;
+            nextFrame = Math.max(nextFrame * 2, resultSize + 1);
+        }
+
+        void clip(double x0, double y0, double x1, double y1) {
+            clip = true;
+            clipX0 = x0;
+            clipY0 = y0;
+            clipX1 = x1;
+            clipY1 = y1;
+        }
+
+        boolean inClip(Point sample) {
+            return !clip || (sample.getX() >= clipX0 && sample.getX() < clipX1 && sample.getY() >= clipY0 && sample.getY() < clipY1);
+        }
+
+        void push(double benefit, QuadTree node, int level, double ncX, double ncY, double nhalfDimension) {
+            int slot;
+            if (freeCount > 0) {
+                slot = freeSlots[-- freeCount];
+            }
+            else {
+                if (slotsCount == nodes.length) {
+                    int capacity = nodes.length * 2;
+                    nodes = Arrays.copyOf(nodes, capacity);
+                    levels = Arrays.copyOf(levels, capacity);
+                    ncXs = Arrays.copyOf(ncXs, capacity);
+                    ncYs = Arrays.copyOf(ncYs, capacity);
+                    nhalfDimensions = Arrays.copyOf(nhalfDimensions, capacity);
+                    freeSlots = Arrays.copyOf(freeSlots, capacity);
+                }
+                slot = slotsCount ++;
+            }
+            nodes[slot] = node;
+            levels[slot] = level;
+            ncXs[slot] = ncX;
+            ncYs[slot] = ncY;
+            nhalfDimensions[slot] = nhalfDimension;
+            queue.push(benefit, slot);
+        }
+
+        void release(int slot) {
+            // do not keep the tree reachable from the thread after the query
+            nodes[slot] = null;
+            freeSlots[freeCount ++] = slot;
+        }
+    }
+
+    static ThreadLocal<SearchContext> searchContexts = ThreadLocal.withInitial(SearchContext::new);
+
+    static final int DEADLINE_CHECK_INTERVAL = 64; // nodes
+
+    /**
+     * add the sample of a node entering the cut of a refinement bfs
+     *
+     * the sample of a parent is always one of its children's samples,
+     * so expanding a node only adds the samples of the other children
+     *
+     * @param _parent - null for the root of the search
+     * @param _node
+     * @param _context
+     * @param _messageBuilder
+     * @return 1 - if the sample is new, 0 - otherwise
+     */
+    static int refineSample(QuadTree _parent, QuadTree _node, SearchContext _context, BinaryMessageBuilder _messageBuilder) {
+        Point sample = _node.sample;
+        if (_parent != null && _parent.sample != null
+                && _parent.sample.getX() == sample.getX() && _parent.sample.getY() == sample.getY()) return 0;
+        if (!_context.inClip(sample)) return 0;
+        _messageBuilder.add(xLng(sample.getX()), yLat(sample.getY()));
+        return 1;
+    }
+
+    /**
+     * Tile mode
+     *
+     * encoded payloads of tiles, key = zoom/x/y/sampleBudget, in LRU order, bounded by Constants.TILE_CACHE_SIZE
+     */
+    static final int TILE_SIZE = 256; // pixels
+    LinkedHashMap<String, byte[]> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    long tilesBytes = 0;
+    long tileHits = 0;
+    long tileMisses = 0;
 
     //-Timing-//
     static final boolean keepTiming = true;
@@ -525,9 +1062,6 @@ public class RAQuadTree implements IAlgorithm {
     public RAQuadTree() {
         this.quadTree = new QuadTree();
 
-        // zoom level 0 is fixed with dimension 1.0 / 256 (because one tile of the base map is 256px x 256px)
-        highestLevelNodeDimension = 1.0 / 256 / Math.pow(2, Constants.MAX_ZOOM);
-
         switch (Constants.RENDERING_FUNCTION.toLowerCase()) {
             case "deckgl":
                 System.out.println("[RA-QuadTree] rendering function = Deck.GL");
@@ -565,114 +1099,311 @@ public class RAQuadTree implements IAlgorithm {
             timing.put("total", 0.0);
         }
 
-        /** For query stats */
-        numberOfNodesStoppedAtLevels = new int[Constants.MAX_ZOOM + 9 + 1];
-
-        /** For query time analysis */
-        times = new HashMap<>();
-
         MyMemory.printMemory();
     }
 
     public boolean readFromFile(String fileName) {
-        System.out.println("[RA-QuadTree] read from file " + fileName + " ... ...");
+        lock.writeLock().lock();
+        try {
+            System.out.println("[RA-QuadTree] read from file " + fileName + " ... ...");
+            invalidateTiles();
+
+            if (!new File(fileName).exists()) {
+                System.out.println("[RA-QuadTree] read from file " + fileName + " failed! File does not exist.");
+                return false;
+            }
+
+            // legacy text format
+            if (!RAQTSnapshot.isSnapshot(fileName)) {
+                return readFromTextFile(fileName);
+            }
+
+            try {
+                //--time--//
+                long startTime = System.nanoTime();
+                // a lazy read faults in only the pages bfs reaches, so it skips the checksum reading through the whole file
+                RAQTSnapshot snapshot = RAQTSnapshot.open(fileName, !Constants.LAZY_LOADING);
+                System.out.println("[RA-QuadTree] snapshot header = " + snapshot.describe());
+                if (!snapshot.matches(Constants.MAX_ZOOM + 1, Constants.RENDERING_FUNCTION, Constants.ERROR_FUNCTION)) {
+                    snapshot.close();
+                    System.out.println("[RA-QuadTree] read from file " + fileName + " failed! Snapshot was built with different configuration.");
+                    return false;
+                }
+                if (Constants.LAZY_LOADING) {
+                    return readLazily(snapshot, fileName, startTime);
+                }
+                this.quadTree = quadTree.readFromSnapshot(snapshot, 0);
+                nodesCount = snapshot.nodesCount;
+                snapshot.close();
+                //--time--//
+                long endTime = System.nanoTime();
+                System.out.println("[RA-QuadTree] read from file " + fileName + " done! Time: " + ((double) (endTime - startTime) / 1000000000.0) + " seconds.");
+                finish = true;
+                return true;
+            } catch (IOException e) {
+                System.out.println("[RA-QuadTree] read from file " + fileName + " failed!");
+                e.printStackTrace();
+            }
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Read only the top levels of the snapshot,
+     * deeper levels are paged in on demand by bfs
+     *
+     * @param snapshot - opened without checksum, kept by this tree
+     * @param fileName
+     * @param startTime
+     * @return
+     * @throws IOException
+     */
+    boolean readLazily(RAQTSnapshot snapshot, String fileName, long startTime) throws IOException {
+        this.snapshot = snapshot;
+        // the mapping stays valid after the file is closed
+        this.snapshot.close();
+        this.snapshotFileName = fileName;
+        this.lazy = true;
+        this.stubs = new IdentityHashMap<>();
+        this.pages = new LinkedHashMap<>(16, 0.75f, true);
+        this.quadTree = quadTree.readFromSnapshot(snapshot, 0, Constants.LAZY_EAGER_LEVELS, null);
+        nodesCount = snapshot.nodesCount;
+        long[] counts = new long[2];
+        quadTree.countNodes(counts);
+        eagerNodes = counts[0];
+        //--time--//
+        long endTime = System.nanoTime();
+        System.out.println("[RA-QuadTree] read top " + Constants.LAZY_EAGER_LEVELS + " levels from file " + fileName + " done! Time: " + ((double) (endTime - startTime) / 1000000000.0) + " seconds.");
+        System.out.println("[RA-QuadTree] " + stubs.size() + " subtrees are left on disk.");
+        finish = true;
+        return true;
+    }
+
+    /**
+     * Page in the children of given node if it is a stub,
+     * otherwise mark the page rooted at it as recently used
+     *
+     * @param node
+     */
+    void touch(QuadTree node) {
+        if (node.northWest == null) {
+            Stub stub = stubs.remove(node);
+            if (stub != null) {
+                pageIn(node, stub);
+            }
+        }
+        else {
+            pages.get(node);
+        }
+    }
 
+    void pageIn(QuadTree node, Stub stub) {
+        Page page = new Page(node, stub);
+        int depth = Math.max(Constants.LAZY_PAGE_LEVELS, 1) - 1;
+        long child = stub.index + 1;
+        node.northWest = quadTree.readFromSnapshot(snapshot, child, depth, page);
+        child += snapshot.subtreeSize(child);
+        node.northEast = quadTree.readFromSnapshot(snapshot, child, depth, page);
+        child += snapshot.subtreeSize(child);
+        node.southWest = quadTree.readFromSnapshot(snapshot, child, depth, page);
+        child += snapshot.subtreeSize(child);
+        node.southEast = quadTree.readFromSnapshot(snapshot, child, depth, page);
+        pages.put(node, page);
+        if (stub.owner != null) stub.owner.children.add(page);
+        residentPagedNodes += page.nodes;
+        pageFaults ++;
+    }
+
+    /**
+     * Evict the page and all pages paged in from it, its root becomes a stub again
+     *
+     * @param page
+     */
+    void evict(Page page) {
+        for (Page child: new ArrayList<>(page.children)) {
+            evict(child);
+        }
+        for (QuadTree stub: page.stubs) {
+            stubs.remove(stub);
+        }
+        QuadTree root = page.root;
+        root.northWest = null;
+        root.northEast = null;
+        root.southWest = null;
+        root.southEast = null;
+        stubs.put(root, page.stub);
+        pages.remove(root);
+        if (page.stub.owner != null) page.stub.owner.children.remove(page);
+        residentPagedNodes -= page.nodes;
+        pageEvictions ++;
+    }
+
+    /**
+     * Evict least recently used pages until resident pages fit in the memory budget
+     */
+    void evictPages() {
+        long budgetNodes = Constants.LAZY_MEMORY_BUDGET * 1024 * 1024 / NODE_BYTES;
+        while (residentPagedNodes > budgetNodes && !pages.isEmpty()) {
+            evict(pages.values().iterator().next());
+        }
+    }
+
+    boolean readFromTextFile(String fileName) {
         try {
             BufferedReader bufferedReader = new BufferedReader(new FileReader(fileName));
             //--time--//
             long startTime = System.nanoTime();
             this.quadTree = quadTree.readFromFile(bufferedReader, 0.5, 0.5, 0.5, 0);
             bufferedReader.close();
+            long[] counts = new long[2];
+            quadTree.countNodes(counts);
+            nodesCount = counts[0];
             //--time--//
             long endTime = System.nanoTime();
-            System.out.println("[RA-QuadTree] read from file " + fileName + " done! Time: " + ((double) (endTime - startTime) / 1000000000.0) + " seconds.");
+            System.out.println("[RA-QuadTree] read from text file " + fileName + " done! Time: " + ((double) (endTime - startTime) / 1000000000.0) + " seconds.");
             finish = true;
             return true;
         } catch (IOException e) {
-            System.out.println("[RA-QuadTree] read from file " + fileName + " failed!");
+            System.out.println("[RA-QuadTree] read from text file " + fileName + " failed!");
             e.printStackTrace();
         }
         return false;
     }
 
     public boolean writeToFile(String fileName) {
-        System.out.println("[RA-QuadTree] write to file " + fileName + " ... ...");
-
+        lock.readLock().lock();
         try {
-            File file = new File(fileName);
-            FileOutputStream fileOutputStream = new FileOutputStream(file);
-            BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(fileOutputStream));
-            //--time--//
-            long startTime = System.nanoTime();
-            quadTree.writeToFile(bufferedWriter, 0.5, 0.5, 0.5, 0);
-            bufferedWriter.close();
-            fileOutputStream.close();
-            //--time--//
-            long endTime = System.nanoTime();
-            System.out.println("[RA-QuadTree] write to file " + fileName + " done! Time: " + ((double) (endTime - startTime) / 1000000000.0) + " seconds.");
-            return true;
-        }
-        catch (IOException e) {
-            System.out.println("[RA-QuadTree] write to file " + fileName + " failed!");
-            e.printStackTrace();
-        }
+            System.out.println("[RA-QuadTree] write to file " + fileName + " ... ...");
 
-        return false;
+            try {
+                // only part of a lazily-resident tree is in memory, copy the snapshot it is paged from
+                if (lazy) {
+                    if (!new File(fileName).getCanonicalPath().equals(new File(snapshotFileName).getCanonicalPath())) {
+                        Files.copy(Paths.get(snapshotFileName), Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    System.out.println("[RA-QuadTree] write to file " + fileName + " done! Copied from " + snapshotFileName + ".");
+                    return true;
+                }
+                //--time--//
+                long startTime = System.nanoTime();
+                long[] counts = new long[2];
+                quadTree.countNodes(counts);
+                RAQTSnapshot snapshot = RAQTSnapshot.create(fileName, counts[0], counts[1], Constants.MAX_ZOOM + 1,
+                        Constants.RENDERING_FUNCTION, Constants.ERROR_FUNCTION);
+                quadTree.writeToSnapshot(snapshot, 0, new int[1]);
+                snapshot.finish();
+                //--time--//
+                long endTime = System.nanoTime();
+                System.out.println("[RA-QuadTree] write to file " + fileName + " done! Time: " + ((double) (endTime - startTime) / 1000000000.0) + " seconds.");
+                return true;
+            }
+            catch (IOException e) {
+                System.out.println("[RA-QuadTree] write to file " + fileName + " failed!");
+                e.printStackTrace();
+            }
+
+            return false;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     public void load(List<Point> points) {
-        System.out.println("[RA-QuadTree] loading " + points.size() + " points ... ...");
+        lock.writeLock().lock();
+        try {
+            System.out.println("[RA-QuadTree] loading " + points.size() + " points ... ...");
+            invalidateTiles();
 
-        MyTimer.startTimer();
-        this.totalNumberOfPoints += points.size();
-        int count = 0;
-        int skip = 0;
-        MyTimer.startTimer();
-        for (Point point: points) {
-            if (this.quadTree.insert(0.5, 0.5, 0.5, lngLatToXY(point), 0))
-                count ++;
-            else
-                skip ++;
-        }
-        MyTimer.stopTimer();
-        double insertTime = MyTimer.durationSeconds();
-        this.totalStoredNumberOfPoints += count;
-        System.out.println("[RA-QuadTree] inserted " + count + " points and skipped " + skip + " points.");
-        System.out.println("[RA-QuadTree] insertion time: " + insertTime + " seconds.");
+            MyTimer.startTimer();
+            this.totalNumberOfPoints += points.size();
+            int count = 0;
+            int skip = 0;
+            MyTimer.startTimer();
+            if (Constants.BULK_LOAD && Constants.MAX_ZOOM + 8 <= MortonCode.MAX_LEVEL) {
+                MortonBatch batch = MortonBatch.build(points, 0.0, 0.0, 1.0, 1.0);
+                QuadTree.BulkInsertTask task = this.quadTree.new BulkInsertTask(this.quadTree, 0.5, 0.5, 0.5, batch, 0, batch.size, 0);
+                if (Constants.BUILD_PARALLEL) {
+                    count = buildPool().invoke(task);
+                }
+                else {
+                    count = task.compute();
+                }
+                nodesCount += task.created[0];
+                skip = points.size() - count;
+            }
+            else {
+                long[] created = new long[1];
+                for (Point point: points) {
+                    if (this.quadTree.insert(0.5, 0.5, 0.5, lngLatToXY(point), 0, created))
+                        count ++;
+                    else
+                        skip ++;
+                }
+                nodesCount += created[0];
+            }
+            MyTimer.stopTimer();
+            double insertTime = MyTimer.durationSeconds();
+            this.totalStoredNumberOfPoints += count;
+            System.out.println("[RA-QuadTree] inserted " + count + " points and skipped " + skip + " points.");
+            System.out.println("[RA-QuadTree] insertion time: " + insertTime + " seconds.");
 
-        MyTimer.stopTimer();
-        double loadTime = MyTimer.durationSeconds();
+            MyTimer.stopTimer();
+            double loadTime = MyTimer.durationSeconds();
 
-        if (keepTiming) timing.put("total", timing.get("total") + loadTime);
-        System.out.println("[RA-QuadTree] loading is done!");
-        System.out.println("[RA-QuadTree] loading time: " + loadTime + " seconds.");
-        if (keepTiming) this.printTiming();
+            if (keepTiming) timing.put("total", timing.get("total") + loadTime);
+            System.out.println("[RA-QuadTree] loading is done!");
+            System.out.println("[RA-QuadTree] loading time: " + loadTime + " seconds.");
+            if (keepTiming) this.printTiming();
 
-        MyMemory.printMemory();
+            MyMemory.printMemory();
 
-        //-DEBUG-//
-        System.out.println("==== Until now ====");
-        System.out.println("RA-QuadTree has processed " + this.totalNumberOfPoints + " points.");
-        System.out.println("RA-QuadTree has stored " + this.totalStoredNumberOfPoints + " points.");
-        System.out.println("RA-QuadTree has skipped " + (this.totalNumberOfPoints - this.totalStoredNumberOfPoints) + " points.");
-        System.out.println("RA-QuadTree has generated " + nodesCount + " nodes.");
-        //-DEBUG-//
+            //-DEBUG-//
+            System.out.println("==== Until now ====");
+            System.out.println("RA-QuadTree has processed " + this.totalNumberOfPoints + " points.");
+            System.out.println("RA-QuadTree has stored " + this.totalStoredNumberOfPoints + " points.");
+            System.out.println("RA-QuadTree has skipped " + (this.totalNumberOfPoints - this.totalStoredNumberOfPoints) + " points.");
+            System.out.println("RA-QuadTree has generated " + nodesCount + " nodes.");
+            //-DEBUG-//
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
     public void finishLoad() {
-        this.finish = true;
-        // select best sample for each node in the QuadTree
-        MyTimer.startTimer();
-        this.quadTree.selectSamples(0.5, 0.5, 0.5, 0);
-        MyTimer.stopTimer();
-        double selectSamplesTime = MyTimer.durationSeconds();
-        System.out.println("==== Data loading finished ====");
-        System.out.println("[RA-QuadTree] select best sample for each node is done!");
-        System.out.println("[RA-QuadTree] sample selection time: " + selectSamplesTime + " seconds.");
+        lock.writeLock().lock();
+        try {
+            this.finish = true;
+            invalidateTiles();
+            // select best sample for each node in the QuadTree
+            MyTimer.startTimer();
+            this.selectSamples();
+            MyTimer.stopTimer();
+            double selectSamplesTime = MyTimer.durationSeconds();
+            System.out.println("==== Data loading finished ====");
+            System.out.println("[RA-QuadTree] select best sample for each node is done!");
+            System.out.println("[RA-QuadTree] sample selection time: " + selectSamplesTime + " seconds.");
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
-    public static double computeErrorAgainstChildren(QuadTree _node, double _ncX, double _ncY, double _nhalfDimension,
+    /**
+     * select best sample for each node in the QuadTree, in parallel on the build pool if Constants.BUILD_PARALLEL
+     */
+    void selectSamples() {
+        QuadTree.SelectSamplesTask task = this.quadTree.new SelectSamplesTask(this.quadTree, 0.5, 0.5, 0.5, 0);
+        if (Constants.BUILD_PARALLEL) {
+            buildPool().invoke(task);
+        }
+        else {
+            task.compute();
+        }
+    }
+
+    public static double computeErrorAgainstChildren(SelectContext _context, QuadTree _node, double _ncX, double _ncY, double _nhalfDimension,
                                                      double _rPixelScale) {
         // if already leaf, benefit is 0.0, no need to expand it
         if (_node.northWest == null) return 0.0;
@@ -684,6 +1415,8 @@ public class RAQuadTree implements IAlgorithm {
         if (resolution == 0) return 0.0;
 
         double error;
+        IRenderer renderer = _context.renderer;
+        IErrorMetric errorMetric = _context.errorMetric;
 
         if (resolution > 4 * Constants.NODE_SAMPLE_SIZE) {
             // render the point on node
@@ -712,12 +1445,12 @@ public class RAQuadTree implements IAlgorithm {
         // otherwise, use byte array rendering
         else {
             // render the point on node
-            byte[] rendering1 = renderer.createRendering(resolution);
+            byte[] rendering1 = _context.rendering(resolution, 0);
             if (_node.sample != null) {
                 renderer.render(rendering1, _ncX, _ncY, _nhalfDimension, resolution, _node.sample);
             }
             // render the 4 children points
-            byte[] rendering2 = renderer.createRendering(resolution);
+            byte[] rendering2 = _context.rendering(resolution, 1);
             if (_node.northWest.sample != null) {
                 renderer.render(rendering2, _ncX, _ncY, _nhalfDimension, resolution, _node.northWest.sample);
             }
@@ -735,8 +1468,8 @@ public class RAQuadTree implements IAlgorithm {
         return error;
     }
 
-    public static double computeBenefit(int _zoom, int _level, QuadTree _node) {
-        computeBenefitTimes ++;
+    public static double computeBenefit(SearchContext _context, int _zoom, int _level, QuadTree _node) {
+        _context.computeBenefitTimes ++;
 
         //--time--//
         long startTime = System.nanoTime();
@@ -760,7 +1493,7 @@ public class RAQuadTree implements IAlgorithm {
 
         //--time--//
         long endTime = System.nanoTime();
-        times.put("computeBenefit", times.get("computeBenefit") + ((double) (endTime - startTime) / 1000000000.0));
+        _context.computeBenefitTime += (double) (endTime - startTime) / 1000000000.0;
 
         if (cost == 0) {
             return Double.MAX_VALUE;
@@ -771,24 +1504,56 @@ public class RAQuadTree implements IAlgorithm {
     }
 
     public byte[] answerQuery(Query query) {
+        return answerQuery(query, null);
+    }
+
+    /**
+     * Refinement mode, only for sequential viewport searches
+     *
+     *  - samples are added to the result as soon as their nodes enter the cut of bfs,
+     *    the first frame is sent at Constants.REFINE_FIRST_FRAME samples, then every time the result doubles
+     *  - the returned final frame has the samples added since the last frame
+     */
+    @Override
+    public byte[] refineQuery(Query query, FrameListener listener) {
+        return answerQuery(query, listener);
+    }
+
+    byte[] answerQuery(Query query, FrameListener listener) {
+
+        // the time budget includes the sample selection of progressive results
+        long deadline = query.timeBudget > 0? System.nanoTime() + query.timeBudget * 1000000L: 0;
+
+        Lock queryLock = lockForQuery();
+        try {
+            return answerQuery(query, listener, deadline);
+        } finally {
+            queryLock.unlock();
+        }
+    }
 
+    byte[] answerQuery(Query query, FrameListener listener, long deadline) {
         if (!this.finish) {
             // System.out.println("[RA-QuadTree] has not finished loading data, will not answer this query!");
-            // MyTimer.temporaryTimer.put("treeTime", 0.0);
-            // MyTimer.temporaryTimer.put("aggregateTime", 0.0);
+            // MyTimer.temporaryTimer().put("treeTime", 0.0);
+            // MyTimer.temporaryTimer().put("aggregateTime", 0.0);
             // BinaryMessageBuilder messageBuilder = new BinaryMessageBuilder();
             // double lng = xLng(0.5);
             // double lat = yLat(0.5);
             // messageBuilder.add(lng, lat);
             // return messageBuilder.getBuffer();
-            System.out.println("[RA-QuadTree] has not finished loading data, select samples temporarily for progressive results!");
+            System.out.println("[RA-QuadTree] has not finished loading data, select samples on dirty paths for progressive results!");
             MyTimer.startTimer();
-            this.quadTree.selectSamples(0.5, 0.5, 0.5, 0);
+            this.selectSamples();
             MyTimer.stopTimer();
             double selectSamplesTime = MyTimer.durationSeconds();
             System.out.println("[RA-QuadTree] sample selection time: " + selectSamplesTime + " seconds.");
         }
 
+        if ("tile".equalsIgnoreCase(query.mode)) {
+            return answerTileQuery(query, deadline);
+        }
+
         double lng0 = query.bbox[0];
         double lat0 = query.bbox[1];
         double lng1 = query.bbox[2];
@@ -823,39 +1588,55 @@ public class RAQuadTree implements IAlgorithm {
                 "pixelScale = " + pixelScale + ";");
 
         /** For query stats*/
-        for (int i = 0; i <= Constants.MAX_ZOOM + 9; i ++) numberOfNodesStoppedAtLevels[i] = 0;
-        computeBenefitTimes = 0;
-
-        /** For query time analysis */
-        times.put("computeBenefit", 0.0);
+        SearchContext context = searchContexts.get();
+        context.reset();
+        context.deadline = deadline;
+        context.cancelled = query.cancelled;
+        context.frameListener = listener;
+        context.nextFrame = Constants.REFINE_FIRST_FRAME;
+        // a sent sample can not be taken back, samples outside the range may leave the cut when their nodes are expanded
+        if (listener != null) context.clip(iX0, iY1, iX1, iY0);
+        long faults = pageFaults;
 
         MyTimer.startTimer();
         System.out.println("[RA-QuadTree] is doing a best first search with sampleSize = " + sampleSize + ".");
-        List<Point> points = this.quadTree.bfs(0.5, 0.5, 0.5,
-                rcX, rcY, rhalfWidth, rhalfHeight, zoom, sampleSize);
+        int resultSize;
+        if (Constants.SEARCH_PARALLEL && !lazy && sampleSize >= Constants.SEARCH_PARALLEL_THRESHOLD && listener == null) {
+            resultSize = parallelBfs(rcX, rcY, rhalfWidth, rhalfHeight, zoom, sampleSize, context);
+        }
+        else {
+            resultSize = this.quadTree.bfs(0.5, 0.5, 0.5, 0,
+                    rcX, rcY, rhalfWidth, rhalfHeight, zoom, sampleSize, 0, context, context.messageBuilder);
+        }
         MyTimer.stopTimer();
         double treeTime = MyTimer.durationSeconds();
 
-        MyTimer.temporaryTimer.put("treeTime", treeTime);
-        System.out.println("[RA-QuadTree] tree search got " + points.size() + " data points.");
+        if (lazy) {
+            long evictions = pageEvictions;
+            evictPages();
+            System.out.println("[RA-QuadTree] paged in " + (pageFaults - faults) + " and evicted " + (pageEvictions - evictions) + " subtrees, "
+                    + pages.size() + " pages (" + residentPagedNodes + " nodes) are resident.");
+        }
+        MyTimer.temporaryTimer().put("treeTime", treeTime);
+        System.out.println("[RA-QuadTree] tree search got " + resultSize + " data points.");
         System.out.println("[RA-QuadTree] tree search time: " + treeTime + " seconds.");
-        System.out.println("[RA-QuadTree]     - compute benefit time: " + times.get("computeBenefit") + " seconds.");
-        System.out.println("[RA-QuadTree]     - compute benefit was called: " + computeBenefitTimes + " times.");
+        System.out.println("[RA-QuadTree]     - compute benefit time: " + context.computeBenefitTime + " seconds.");
+        System.out.println("[RA-QuadTree]     - compute benefit was called: " + context.computeBenefitTimes + " times.");
 
-        // build binary result message
-        MyTimer.startTimer();
-        BinaryMessageBuilder messageBuilder = new BinaryMessageBuilder();
-        double lng, lat;
-        int resultSize = 0;
-        for (Point point : points) {
-            lng = xLng(point.getX());
-            lat = yLat(point.getY());
-            messageBuilder.add(lng, lat);
-            resultSize++;
+        if (context.partial && query.cancelled != null && query.cancelled.get()) {
+            System.out.println("[RA-QuadTree] tree search is cancelled by a newer query, result is partial.");
+        }
+        else if (context.partial) {
+            System.out.println("[RA-QuadTree] tree search stopped at the time budget " + query.timeBudget + " ms, result is partial.");
         }
+
+        // build binary result message, samples are already encoded by the tree search
+        MyTimer.startTimer();
+        context.messageBuilder.setFlags((context.partial? Constants.FLAG_PARTIAL: 0) | (context.frames > 0? Constants.FLAG_DELTA: 0));
+        byte[] result = context.messageBuilder.copyBuffer();
         MyTimer.stopTimer();
         double buildBinaryTime = MyTimer.durationSeconds();
-        MyTimer.temporaryTimer.put("aggregateTime", buildBinaryTime);
+        MyTimer.temporaryTimer().put("aggregateTime", buildBinaryTime);
 
         System.out.println("[RA-QuadTree] build binary result with  " + resultSize + " points.");
         System.out.println("[RA-QuadTree] build binary result time: " + buildBinaryTime + " seconds.");
@@ -864,10 +1645,408 @@ public class RAQuadTree implements IAlgorithm {
         System.out.println("[RA-QuadTree] answer query total time: " + MyTimer.durationSeconds() + " seconds.");
         System.out.println("[RA-QuadTree] ---- # of nodes stopping at each level ----");
         for (int i = 0; i <= Constants.MAX_ZOOM + 9; i ++) {
-            System.out.println("Level " + i + ": " + numberOfNodesStoppedAtLevels[i]);
+            System.out.println("Level " + i + ": " + context.numberOfNodesStoppedAtLevels[i]);
         }
 
-        return messageBuilder.getBuffer();
+        return result;
+    }
+
+    /**
+     * Best first search in parallel
+     *
+     *  (1) a sequential bfs from the root until the queue holds a frontier of Constants.SEARCH_PARALLEL_FRONTIER subtrees
+     *  (2) the sample budget left is split among the frontier subtrees in proportion to their aggregate benefit
+     *  (3) each frontier subtree runs its own bfs with its share of the budget on the build pool,
+     *      budget left by subtrees that can not use it goes to the others for up to SEARCH_PARALLEL_ROUNDS rounds
+     *  (4) quality guard: benefits of nodes do not depend on each other, so the sequential cut is approximately the union
+     *      of cuts of the subtrees that all stop at the same benefit, the merged result is kept only if it is close to that cut,
+     *      - the largest stop benefit of the subtrees that ran out of budget is at most Constants.SEARCH_PARALLEL_MAX_SKEW
+     *        times the smallest one,
+     *      - and budget left unused by other subtrees is at most Constants.SEARCH_PARALLEL_MAX_SPARE of the target,
+     *      otherwise the query is searched again sequentially
+     *
+     * samples are added to the message builder of the context
+     *
+     * @param _rcX
+     * @param _rcY
+     * @param _rhalfWidth
+     * @param _rhalfHeight
+     * @param _zoom
+     * @param _targetSampleSize
+     * @param _context - search context of current thread, reset
+     * @return number of result samples
+     */
+    static final int SEARCH_PARALLEL_ROUNDS = 3;
+
+    int parallelBfs(double _rcX, double _rcY, double _rhalfWidth, double _rhalfHeight,
+                    int _zoom, int _targetSampleSize, SearchContext _context) {
+        // (1) sequential phase
+        int resultSize = this.quadTree.bfs(0.5, 0.5, 0.5, 0,
+                _rcX, _rcY, _rhalfWidth, _rhalfHeight, _zoom, _targetSampleSize, Constants.SEARCH_PARALLEL_FRONTIER,
+                _context, _context.messageBuilder);
+        MaxHeap queue = _context.queue;
+        int k = queue.size();
+        if (k == 0) return resultSize;
+
+        // (2) take the frontier out of the queue, samples of the frontier nodes are already counted in the budget
+        QuadTree[] nodes = new QuadTree[k];
+        int[] levels = new int[k];
+        double[] ncXs = new double[k];
+        double[] ncYs = new double[k];
+        double[] nhalfDimensions = new double[k];
+        double[] weights = new double[k];
+        int[] budgets = new int[k];
+        double totalWeight = 0.0;
+        int expandable = 0;
+        for (int i = 0; i < k; i ++) {
+            double benefit = queue.peekKey();
+            int slot = queue.pop();
+            nodes[i] = _context.nodes[slot];
+            levels[i] = _context.levels[slot];
+            ncXs[i] = _context.ncXs[slot];
+            ncYs[i] = _context.ncYs[slot];
+            nhalfDimensions[i] = _context.nhalfDimensions[slot];
+            _context.release(slot);
+            if (benefit > 0.0) {
+                weights[i] = aggregateBenefit(_zoom, nodes[i]);
+                totalWeight += weights[i];
+                expandable ++;
+            }
+            else {
+                // the sequential search would stop at this node too
+                weights[i] = -1.0;
+                if (nodes[i].sample != null) {
+                    _context.numberOfNodesStoppedAtLevels[levels[i]] ++;
+                    _context.messageBuilder.add(xLng(nodes[i].sample.getX()), yLat(nodes[i].sample.getY()));
+                    resultSize ++;
+                }
+            }
+        }
+        int remaining = _context.availableSampleSize;
+        int assigned = 0;
+        int heaviest = -1;
+        for (int i = 0; i < k; i ++) {
+            if (weights[i] < 0) continue;
+            // no benefit information, split evenly
+            double share = totalWeight > 0.0? weights[i] / totalWeight: 1.0 / expandable;
+            int extra = (int) (remaining * share);
+            budgets[i] = (nodes[i].sample == null? 0: Constants.NODE_SAMPLE_SIZE) + extra;
+            assigned += extra;
+            if (heaviest < 0 || weights[i] > weights[heaviest]) heaviest = i;
+        }
+        if (heaviest >= 0) budgets[heaviest] += remaining - assigned;
+        System.out.println("[RA-QuadTree] parallel search splits " + remaining + " samples among " + expandable + " subtrees.");
+
+        // (3) independent searches,
+        //     subtrees running out of nodes to expand give their budget left to the subtrees running out of budget,
+        //     which are searched again with the larger budget
+        byte[][] payloads = new byte[k][];
+        int[][] stoppedAtLevels = new int[k][];
+        int[] leftovers = new int[k];
+        double[] stopBenefits = new double[k];
+        int unused = 0; // budget left by subtrees while others ran out of it
+        List<Integer> active = new ArrayList<>();
+        for (int i = 0; i < k; i ++) {
+            if (weights[i] >= 0) active.add(i);
+        }
+        for (int round = 0; round < SEARCH_PARALLEL_ROUNDS && !active.isEmpty(); round ++) {
+            List<Callable<byte[]>> tasks = new ArrayList<>();
+            for (int i: active) {
+                tasks.add(() -> {
+                    SearchContext context = searchContexts.get();
+                    if (context == _context) context = new SearchContext();
+                    context.reset();
+                    context.deadline = _context.deadline;
+                    context.cancelled = _context.cancelled;
+                    nodes[i].bfs(ncXs[i], ncYs[i], nhalfDimensions[i], levels[i],
+                            _rcX, _rcY, _rhalfWidth, _rhalfHeight, _zoom, budgets[i], 0, context, context.messageBuilder);
+                    leftovers[i] = context.availableSampleSize;
+                    stopBenefits[i] = context.stopBenefit;
+                    stoppedAtLevels[i] = context.numberOfNodesStoppedAtLevels.clone();
+                    synchronized (_context) {
+                        if (context.partial) _context.partial = true;
+                        _context.computeBenefitTimes += context.computeBenefitTimes;
+                        _context.computeBenefitTime += context.computeBenefitTime;
+                    }
+                    return context.messageBuilder.copyPayload();
+                });
+            }
+            try {
+                List<Future<byte[]>> futures = buildPool().invokeAll(tasks);
+                for (int j = 0; j < active.size(); j ++) {
+                    payloads[active.get(j)] = futures.get(j).get();
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+
+            int spare = 0;
+            double starvedWeight = 0.0;
+            List<Integer> starved = new ArrayList<>();
+            for (int i: active) {
+                if (leftovers[i] > 0) spare += leftovers[i];
+                else {
+                    starved.add(i);
+                    starvedWeight += weights[i];
+                }
+            }
+            if (spare <= 0 || starved.isEmpty()) break;
+            // no round left to search with the spare budget
+            if (round == SEARCH_PARALLEL_ROUNDS - 1) {
+                unused = spare;
+                break;
+            }
+            int given = 0;
+            for (int i: starved) {
+                int extra = (int) (spare * (starvedWeight > 0.0? weights[i] / starvedWeight: 1.0 / starved.size()));
+                budgets[i] += extra;
+                given += extra;
+            }
+            budgets[starved.get(0)] += spare - given;
+            active = starved;
+        }
+
+        // (4) quality guard, a search stopped at the deadline is partial anyway
+        if (!_context.partial) {
+            double minStop = Double.MAX_VALUE, maxStop = 0.0;
+            for (int i = 0; i < k; i ++) {
+                if (weights[i] < 0) continue;
+                if (stopBenefits[i] > 0.0) {
+                    minStop = Math.min(minStop, stopBenefits[i]);
+                    maxStop = Math.max(maxStop, stopBenefits[i]);
+                }
+            }
+            boolean starved = maxStop > 0.0;
+            double skew = starved? maxStop / minStop: 1.0;
+            if (starved && (skew > Constants.SEARCH_PARALLEL_MAX_SKEW || unused > Constants.SEARCH_PARALLEL_MAX_SPARE * _targetSampleSize)) {
+                System.out.println("[RA-QuadTree] parallel search is off the sequential cut (stop benefit skew = " + skew
+                        + ", unused budget = " + unused + "), searching sequentially.");
+                long deadline = _context.deadline;
+                AtomicBoolean cancelled = _context.cancelled;
+                _context.reset();
+                _context.deadline = deadline;
+                _context.cancelled = cancelled;
+                return this.quadTree.bfs(0.5, 0.5, 0.5, 0,
+                        _rcX, _rcY, _rhalfWidth, _rhalfHeight, _zoom, _targetSampleSize, 0, _context, _context.messageBuilder);
+            }
+        }
+
+        for (int i = 0; i < k; i ++) {
+            if (payloads[i] == null) continue;
+            _context.messageBuilder.addPayload(payloads[i]);
+            resultSize += payloads[i].length / (2 * Constants.DOUBLE_BYTES);
+            for (int l = 0; l < stoppedAtLevels[i].length; l ++) {
+                _context.numberOfNodesStoppedAtLevels[l] += stoppedAtLevels[i][l];
+            }
+        }
+        return resultSize;
+    }
+
+    /**
+     * @param _zoom
+     * @param _node
+     * @return estimated gain of quality of expanding the subtree of given node at given zoom level
+     */
+    static double aggregateBenefit(int _zoom, QuadTree _node) {
+        if (_node.northWest == null) return 0.0;
+        return _node.errors[_zoom] * Math.log(_node.count);
+    }
+
+    /**
+     * Answer the query tile by tile
+     *
+     *  - the bbox is covered by the 256px tiles of the query zoom level,
+     *    each tile gets the same share of the sample size as its pixels in the viewport
+     *  - every tile is a best first search of its own range, keeping only samples inside the tile,
+     *    tiles missing from the cache are computed (in parallel if Constants.TILE_PARALLEL),
+     *    so a pan only computes the newly exposed tiles
+     *  - payloads of the tiles are concatenated into one message
+     *  - tiles cut at the deadline are not cached, and the message is flagged partial
+     *
+     * @param query
+     * @param deadline - System.nanoTime() to stop searching, 0 - no deadline
+     * @return
+     */
+    byte[] answerTileQuery(Query query, long deadline) {
+        int zoom = query.zoom;
+        int sampleSize = query.sampleSize <= 0? Constants.DEFAULT_SAMPLE_SIZE: query.sampleSize;
+        int sampleBudget = sampleSize;
+        if (query.resX > 0 && query.resY > 0) {
+            sampleBudget = (int) Math.ceil((double) sampleSize * TILE_SIZE * TILE_SIZE / ((double) query.resX * query.resY));
+        }
+        sampleBudget = Math.max(sampleBudget, 1);
+
+        // range of tiles covering the bbox
+        int[] range = TilePyramid.tileRange(query.bbox, zoom);
+        int tX0 = range[0], tY0 = range[1], tX1 = range[2], tY1 = range[3];
+
+        MyTimer.startTimer();
+        System.out.println("[RA-QuadTree] is answering tile query: zoom = " + zoom + ", tiles = [" + tX0 + ", " + tY0 + "] ~ ["
+                + tX1 + ", " + tY1 + "], sampleBudget = " + sampleBudget + " per tile.");
+
+        // look up the cache
+        List<String> keys = new ArrayList<>();
+        List<byte[]> payloads = new ArrayList<>();
+        List<Integer> missing = new ArrayList<>();
+        for (int tY = tY0; tY <= tY1; tY ++) {
+            for (int tX = tX0; tX <= tX1; tX ++) {
+                String key = zoom + "/" + tX + "/" + tY + "/" + sampleBudget;
+                byte[] payload = getTile(key);
+                if (payload == null) missing.add(keys.size());
+                keys.add(key);
+                payloads.add(payload);
+            }
+        }
+        synchronized (this) {
+            tileHits += keys.size() - missing.size();
+            tileMisses += missing.size();
+        }
+
+        // compute missing tiles
+        MyTimer.startTimer();
+        int tilesPerRow = tX1 - tX0 + 1;
+        final int budget = sampleBudget;
+        boolean[] partial = new boolean[missing.size()];
+        long faults = pageFaults;
+        // paging in subtrees of a lazy tree is not thread safe
+        if (Constants.TILE_PARALLEL && !lazy && missing.size() > 1) {
+            List<Callable<byte[]>> tasks = new ArrayList<>();
+            for (int j = 0; j < missing.size(); j ++) {
+                int i = missing.get(j);
+                int tX = tX0 + i % tilesPerRow;
+                int tY = tY0 + i / tilesPerRow;
+                final int k = j;
+                tasks.add(() -> computeTile(zoom, tX, tY, budget, deadline, query.cancelled, partial, k));
+            }
+            try {
+                List<Future<byte[]>> futures = buildPool().invokeAll(tasks);
+                for (int j = 0; j < missing.size(); j ++) {
+                    payloads.set(missing.get(j), futures.get(j).get());
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        else {
+            for (int j = 0; j < missing.size(); j ++) {
+                int i = missing.get(j);
+                payloads.set(i, computeTile(zoom, tX0 + i % tilesPerRow, tY0 + i / tilesPerRow, budget, deadline, query.cancelled, partial, j));
+            }
+        }
+        boolean anyPartial = false;
+        for (int j = 0; j < missing.size(); j ++) {
+            if (partial[j]) anyPartial = true;
+            else putTile(keys.get(missing.get(j)), payloads.get(missing.get(j)));
+        }
+        MyTimer.stopTimer();
+        double treeTime = MyTimer.durationSeconds();
+        if (lazy) {
+            long evictions = pageEvictions;
+            evictPages();
+            System.out.println("[RA-QuadTree] paged in " + (pageFaults - faults) + " and evicted " + (pageEvictions - evictions) + " subtrees, "
+                    + pages.size() + " pages (" + residentPagedNodes + " nodes) are resident.");
+        }
+        MyTimer.temporaryTimer().put("treeTime", treeTime);
+        System.out.println("[RA-QuadTree] computed " + missing.size() + " tiles and got " + (keys.size() - missing.size()) + " tiles from cache, "
+                + "tile hits = " + tileHits + ", tile misses = " + tileMisses + ".");
+        System.out.println("[RA-QuadTree] tile search time: " + treeTime + " seconds.");
+
+        // stitch tiles into one message
+        MyTimer.startTimer();
+        BinaryMessageBuilder messageBuilder = searchContexts.get().messageBuilder;
+        messageBuilder.reset();
+        for (byte[] payload: payloads) {
+            messageBuilder.addPayload(payload);
+        }
+        if (anyPartial) {
+            System.out.println("[RA-QuadTree] tile search stopped at the time budget " + query.timeBudget + " ms, result is partial.");
+            messageBuilder.setFlags(Constants.FLAG_PARTIAL);
+        }
+        byte[] result = messageBuilder.copyBuffer();
+        MyTimer.stopTimer();
+        double buildBinaryTime = MyTimer.durationSeconds();
+        MyTimer.temporaryTimer().put("aggregateTime", buildBinaryTime);
+        System.out.println("[RA-QuadTree] build binary result with  " + messageBuilder.size() + " points.");
+        System.out.println("[RA-QuadTree] build binary result time: " + buildBinaryTime + " seconds.");
+
+        MyTimer.stopTimer();
+        System.out.println("[RA-QuadTree] answer tile query total time: " + MyTimer.durationSeconds() + " seconds.");
+
+        return result;
+    }
+
+    /**
+     * @param zoom
+     * @param tX
+     * @param tY
+     * @param sampleBudget
+     * @return encoded payload of samples inside the tile
+     */
+    @Override
+    public byte[] computeTile(int zoom, int tX, int tY, int sampleBudget) {
+        Lock queryLock = lockForQuery();
+        try {
+            return computeTile(zoom, tX, tY, sampleBudget, 0, null, new boolean[1], 0);
+        } finally {
+            queryLock.unlock();
+        }
+    }
+
+    /**
+     * @param zoom
+     * @param tX
+     * @param tY
+     * @param sampleBudget
+     * @param deadline - System.nanoTime() to stop searching, 0 - no deadline
+     * @param cancelled - stop searching once it is set, null - never cancelled
+     * @param partial - partial[index] is set if the search of this tile stopped at the deadline or the cancellation
+     * @param index
+     * @return encoded payload of samples inside the tile
+     */
+    byte[] computeTile(int zoom, int tX, int tY, int sampleBudget, long deadline, AtomicBoolean cancelled, boolean[] partial, int index) {
+        double tileDimension = 1.0 / (1 << zoom);
+        double x0 = tX * tileDimension;
+        double y0 = tY * tileDimension;
+        SearchContext context = searchContexts.get();
+        context.reset();
+        context.deadline = deadline;
+        context.cancelled = cancelled;
+        context.clip(x0, y0, x0 + tileDimension, y0 + tileDimension);
+        this.quadTree.bfs(0.5, 0.5, 0.5, 0,
+                x0 + tileDimension / 2, y0 + tileDimension / 2, tileDimension / 2, tileDimension / 2,
+                zoom, sampleBudget, 0, context, context.messageBuilder);
+        partial[index] = context.partial;
+        return context.messageBuilder.copyPayload();
+    }
+
+    synchronized byte[] getTile(String key) {
+        return tiles.get(key);
+    }
+
+    synchronized void putTile(String key, byte[] payload) {
+        long budget = Constants.TILE_CACHE_SIZE * 1024 * 1024;
+        if (payload.length > budget) return;
+        byte[] old = tiles.put(key, payload);
+        if (old != null) tilesBytes -= old.length;
+        tilesBytes += payload.length;
+        // drop least recently used tiles
+        Iterator<Map.Entry<String, byte[]>> iterator = tiles.entrySet().iterator();
+        while (tilesBytes > budget && iterator.hasNext()) {
+            tilesBytes -= iterator.next().getValue().length;
+            iterator.remove();
+        }
+    }
+
+    synchronized void invalidateTiles() {
+        tiles.clear();
+        tilesBytes = 0;
+    }
+
+    @Override
+    public long estimatedBytes() {
+        // stubs of a lazy tree only hold their eager levels and resident pages
+        long nodes = lazy? eagerNodes + residentPagedNodes: nodesCount;
+        return nodes * NODE_BYTES + tilesBytes;
     }
 
     private void printTiming() {
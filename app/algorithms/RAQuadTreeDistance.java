@@ -6,6 +6,8 @@ import util.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static util.Mercator.*;
 
@@ -13,7 +15,7 @@ import static util.Mercator.*;
  * RA-QuadTree algorithm
  *   Special implementation for average euclidean distance error metric
  */
-public class RAQuadTreeDistance implements IAlgorithm {
+public class RAQuadTreeDistance implements IAlgorithm, TilePyramid.TileSource {
 
     public class QuadTree {
         public Point sample; // always centroid for this special error metric
@@ -33,60 +35,81 @@ public class RAQuadTreeDistance implements IAlgorithm {
         public QuadTree southEast;
 
         /**
-         * Pre-order traverse the quadtree and write each node to one line in the buffered writer
+         * Pre-order traverse the quadtree and write each node as one record of the binary snapshot
          *
-         * each node format:
-         *   level (int), cx (double), cy (double), halfDimension (double), count (int),
-         *   sample.x (double), sample.y (double), errors[0] (double), errors[1] (double), ...
-         *
-         * @param bufferedWriter
-         * @param _cX
-         * @param _cY
-         * @param _halfDimension
-         * @param _level
+         * @param snapshot
+         * @param index - record index of this node
+         * @param nextErrorsIndex - [0] is the next free errors index of the snapshot
+         * @return size of the subtree rooted at this node
          */
-        public void writeToFile(BufferedWriter bufferedWriter, double _cX, double _cY, double _halfDimension, int _level) throws IOException {
+        public int writeToSnapshot(RAQTSnapshot snapshot, long index, int[] nextErrorsIndex) {
+            int errorsIndex = -1;
+            int subtreeSize = 1;
+            if (this.northWest != null) {
+                errorsIndex = nextErrorsIndex[0] ++;
+                snapshot.putError(errorsIndex, 0, this.error);
+                // recursively write the children
+                subtreeSize += this.northWest.writeToSnapshot(snapshot, index + subtreeSize, nextErrorsIndex);
+                subtreeSize += this.northEast.writeToSnapshot(snapshot, index + subtreeSize, nextErrorsIndex);
+                subtreeSize += this.southWest.writeToSnapshot(snapshot, index + subtreeSize, nextErrorsIndex);
+                subtreeSize += this.southEast.writeToSnapshot(snapshot, index + subtreeSize, nextErrorsIndex);
+            }
             // write current node
-            if (this.sample != null) {
-                bufferedWriter.write(String.valueOf(this.sample.getX()));
-                bufferedWriter.write(",");
-                bufferedWriter.write(String.valueOf(this.sample.getY()));
+            snapshot.putNode(index, this.count, subtreeSize,
+                    this.sample == null? Double.NaN: this.sample.getX(),
+                    this.sample == null? Double.NaN: this.sample.getY(),
+                    errorsIndex);
+            return subtreeSize;
+        }
+
+        /**
+         * Pre-order read the subtree rooted at given record of the binary snapshot
+         *
+         * @param snapshot
+         * @param index - record index of the node to read
+         * @return
+         */
+        public QuadTree readFromSnapshot(RAQTSnapshot snapshot, long index) {
+            QuadTree node = new QuadTree();
+            node.count = snapshot.count(index);
+            double x = snapshot.sampleX(index);
+            if (!Double.isNaN(x)) {
+                node.sample = new Point(x, snapshot.sampleY(index));
             }
-            else {
-                bufferedWriter.write(",");
+            if (!snapshot.isLeaf(index)) {
+                node.error = snapshot.error(snapshot.errorsIndex(index), 0);
+                // recursively read the children
+                long child = index + 1;
+                node.northWest = this.readFromSnapshot(snapshot, child);
+                child += snapshot.subtreeSize(child);
+                node.northEast = this.readFromSnapshot(snapshot, child);
+                child += snapshot.subtreeSize(child);
+                node.southWest = this.readFromSnapshot(snapshot, child);
+                child += snapshot.subtreeSize(child);
+                node.southEast = this.readFromSnapshot(snapshot, child);
             }
-            bufferedWriter.write(",");
-            bufferedWriter.write(String.valueOf(this.error));
-            bufferedWriter.newLine();
+            return node;
+        }
 
-            // leaf node write an empty line for each child
-            if (this.northWest == null) {
-                // nw
-                bufferedWriter.write("");
-                bufferedWriter.newLine();
-                // ne
-                bufferedWriter.write("");
-                bufferedWriter.newLine();
-                // sw
-                bufferedWriter.write("");
-                bufferedWriter.newLine();
-                // se
-                bufferedWriter.write("");
-                bufferedWriter.newLine();
-                return;
-            }
-            else {
-                // recursively write the children
-                double halfDimension = _halfDimension / 2;
-                this.northWest.writeToFile(bufferedWriter, _cX - halfDimension, _cY - halfDimension, halfDimension, _level + 1);
-                this.northEast.writeToFile(bufferedWriter, _cX + halfDimension, _cY - halfDimension, halfDimension, _level + 1);
-                this.southWest.writeToFile(bufferedWriter, _cX - halfDimension, _cY + halfDimension, halfDimension, _level + 1);
-                this.southEast.writeToFile(bufferedWriter, _cX + halfDimension, _cY + halfDimension, halfDimension, _level + 1);
+        /**
+         * count nodes of the subtree rooted at this node
+         *
+         * @param counts - [0] number of nodes, [1] number of internal nodes
+         */
+        public void countNodes(long[] counts) {
+            counts[0] ++;
+            if (this.northWest != null) {
+                counts[1] ++;
+                this.northWest.countNodes(counts);
+                this.northEast.countNodes(counts);
+                this.southWest.countNodes(counts);
+                this.southEast.countNodes(counts);
             }
         }
 
         /**
          * Pre-order traverse the quadtree and read each node from one line in the buffered reader
+         *   (legacy text format)
          *
          * each node format:
          *   level (int), cx (double), cy (double), halfDimension (double), count (int),
@@ -218,6 +241,68 @@ public class RAQuadTreeDistance implements IAlgorithm {
             return false;
         }
 
+        /**
+         * Insert the points of keys[from, to) of a Morton sorted batch into the subtree of this node,
+         * the result is the same as inserting them one by one in their original order
+         *
+         * @param cX
+         * @param cY
+         * @param halfDimension
+         * @param batch
+         * @param from
+         * @param to
+         * @param level
+         * @return number of points stored as a sample of some node, the rest are skipped
+         */
+        public int bulkInsert(double cX, double cY, double halfDimension, MortonBatch batch, int from, int to, int level) {
+            int n = to - from;
+            if (n == 0) return 0;
+            // If this node is leaf and empty, the earliest point is put on this node
+            if (this.sample == null && this.northWest == null) {
+                if (n == 1 || halfDimension * 2 < highestLevelNodeDimension) {
+                    this.sample = batch.points[batch.first(from, to)];
+                    this.count = n;
+                    // the other points are skipped if this node can not be split
+                    return 1;
+                }
+                this.count = n;
+                this.subdivide();
+            }
+            else {
+                // Else, add count into this node
+                this.count += n;
+
+                // if boundary is smaller than highestLevelNodeDimension,
+                // stop splitting, and make current node a leaf node.
+                if (halfDimension * 2 < highestLevelNodeDimension) {
+                    return 0; // skip these points
+                }
+
+                // Otherwise, subdivide
+                if (this.northWest == null) {
+                    this.subdivide();
+                    // descend current node's point into corresponding quadrant
+                    this.insertNorthWest(cX, cY, halfDimension, this.sample, level + 1);
+                    this.insertNorthEast(cX, cY, halfDimension, this.sample, level + 1);
+                    this.insertSouthWest(cX, cY, halfDimension, this.sample, level + 1);
+                    this.insertSouthEast(cX, cY, halfDimension, this.sample, level + 1);
+                    this.sample = null;
+                }
+            }
+
+            // split the range into the four quadrants and merge each into the corresponding child
+            int ne = MortonCode.lowerBound(batch.keys, from, to, level, 1);
+            int sw = MortonCode.lowerBound(batch.keys, ne, to, level, 2);
+            int se = MortonCode.lowerBound(batch.keys, sw, to, level, 3);
+            double half = halfDimension / 2;
+            int stored = 0;
+            stored += this.northWest.bulkInsert(cX - half, cY - half, half, batch, from, ne, level + 1);
+            stored += this.northEast.bulkInsert(cX + half, cY - half, half, batch, ne, sw, level + 1);
+            stored += this.southWest.bulkInsert(cX - half, cY + half, half, batch, sw, se, level + 1);
+            stored += this.southEast.bulkInsert(cX + half, cY + half, half, batch, se, to, level + 1);
+            return stored;
+        }
+
         boolean insertNorthWest(double _cX, double _cY, double _halfDimension, Point point, int level) {
             double halfDimension = _halfDimension / 2;
             double cX = _cX - halfDimension;
@@ -287,11 +372,12 @@ public class RAQuadTreeDistance implements IAlgorithm {
          * @param _rhalfHeight
          * @param _zoom - zoom level of current query
          * @param _targetSampleSize
+         * @param _context - stats of the current query
          * @return
          */
         public List<Point> bfs(double _ncX, double _ncY, double _nhalfDimension,
                                double _rcX, double _rcY, double _rhalfWidth, double _rhalfHeight,
-                               int _zoom, int _targetSampleSize) {
+                               int _zoom, int _targetSampleSize, SearchContext _context) {
 
             List<Point> result = new ArrayList<>();
 
@@ -308,7 +394,7 @@ public class RAQuadTreeDistance implements IAlgorithm {
                 }
             });
 
-            double rootBenefit = computeBenefit(_zoom, 0, this);
+            double rootBenefit = computeBenefit(_context, _zoom, 0, this);
             QEntry rootEntry = new QEntry(0, _ncX, _ncY, _nhalfDimension, this, rootBenefit);
             // add root node
             queue.add(rootEntry);
@@ -334,7 +420,7 @@ public class RAQuadTreeDistance implements IAlgorithm {
 //                    System.out.println("[queue] sample size = " + sampleSize);
                     //-DEBUG-//
                     if (node.sample != null) {
-                        numberOfNodesStoppedAtLevels[level] ++;
+                        _context.numberOfNodesStoppedAtLevels[level] ++;
                         result.add(node.sample);
                     }
                     continue;
@@ -350,7 +436,7 @@ public class RAQuadTreeDistance implements IAlgorithm {
                 cY = ncY - halfDimension;
                 // ignore this node if the range does not intersect with it
                 if (intersectsBBox(cX, cY, halfDimension, _rcX, _rcY, _rhalfWidth, _rhalfHeight)) {
-                    double benefitNW = computeBenefit(_zoom, level + 1, node.northWest);
+                    double benefitNW = computeBenefit(_context, _zoom, level + 1, node.northWest);
                     QEntry entryNW = new QEntry(level + 1, cX, cY, halfDimension, node.northWest, benefitNW);
                     queue.add(entryNW);
                     if (node.northWest.sample != null) {
@@ -363,7 +449,7 @@ public class RAQuadTreeDistance implements IAlgorithm {
                 cY = ncY - halfDimension;
                 // ignore this node if the range does not intersect with it
                 if (intersectsBBox(cX, cY, halfDimension, _rcX, _rcY, _rhalfWidth, _rhalfHeight)) {
-                    double benefitNE = computeBenefit(_zoom, level + 1, node.northEast);
+                    double benefitNE = computeBenefit(_context, _zoom, level + 1, node.northEast);
                     QEntry entryNE = new QEntry(level + 1, cX, cY, halfDimension, node.northEast, benefitNE);
                     queue.add(entryNE);
                     if (node.northEast.sample != null) {
@@ -376,7 +462,7 @@ public class RAQuadTreeDistance implements IAlgorithm {
                 cY = ncY + halfDimension;
                 // ignore this node if the range does not intersect with it
                 if (intersectsBBox(cX, cY, halfDimension, _rcX, _rcY, _rhalfWidth, _rhalfHeight)) {
-                    double benefitSW = computeBenefit(_zoom, level + 1, node.southWest);
+                    double benefitSW = computeBenefit(_context, _zoom, level + 1, node.southWest);
                     QEntry entrySW = new QEntry(level + 1, cX, cY, halfDimension, node.southWest, benefitSW);
                     queue.add(entrySW);
                     if (node.southWest.sample != null) {
@@ -389,7 +475,7 @@ public class RAQuadTreeDistance implements IAlgorithm {
                 cY = ncY + halfDimension;
                 // ignore this node if the range does not intersect with it
                 if (intersectsBBox(cX, cY, halfDimension, _rcX, _rcY, _rhalfWidth, _rhalfHeight)) {
-                    double benefitSE = computeBenefit(_zoom, level + 1, node.southEast);
+                    double benefitSE = computeBenefit(_context, _zoom, level + 1, node.southEast);
                     QEntry entrySE = new QEntry(level + 1, cX, cY, halfDimension, node.southEast, benefitSE);
                     queue.add(entrySE);
                     if (node.southEast.sample != null) {
@@ -473,20 +559,54 @@ public class RAQuadTreeDistance implements IAlgorithm {
 
     }
 
-    public static double highestLevelNodeDimension;
+    public double highestLevelNodeDimension;
+
+    // metric name stored in the snapshot header
+    static final String METRIC = "distance";
+
+    // estimated heap size of one node (QuadTree + centroid sample)
+    static final int NODE_BYTES = 96;
 
     QuadTree quadTree;
     int totalNumberOfPoints = 0;
     int totalStoredNumberOfPoints = 0;
-    static long nodesCount = 0; // count quad-tree nodes
+    long nodesCount = 0; // count quad-tree nodes
     boolean finish = false; // loading data finish flag
 
-    /** For query stats */
-    static int[] numberOfNodesStoppedAtLevels; // for current query, count how many nodes stopped at a certain level
-    static int computeBenefitTimes; // for current query, count how many times compute the benefit
+    /**
+     * Concurrency
+     *
+     *  - a finished tree is immutable, queries on it only hold the read lock and run at the same time
+     *  - load, finishLoad and readFromFile change the tree under the write lock,
+     *    so do queries on a tree not finished loading (selecting samples for progressive results)
+     */
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @return the lock a query should hold, already locked
+     */
+    Lock lockForQuery() {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        if (finish) return readLock;
+        // the read lock can not be upgraded
+        readLock.unlock();
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        return writeLock;
+    }
+
+    /**
+     * State of one query
+     */
+    static class SearchContext {
+        /** For query stats */
+        int[] numberOfNodesStoppedAtLevels = new int[Constants.MAX_ZOOM + 9 + 1]; // count how many nodes stopped at a certain level
+        int computeBenefitTimes = 0; // count how many times compute the benefit
 
-    /** For query time analysis */
-    static Map<String, Double> times; // for current query, store times for different parts
+        /** For query time analysis */
+        double computeBenefitTime = 0.0; // seconds
+    }
 
     //-Timing-//
     static final boolean keepTiming = true;
@@ -508,115 +628,175 @@ public class RAQuadTreeDistance implements IAlgorithm {
             timing.put("total", 0.0);
         }
 
-        /** For query stats */
-        numberOfNodesStoppedAtLevels = new int[Constants.MAX_ZOOM + 9 + 1];
-
-        /** For query time analysis */
-        times = new HashMap<>();
-
         MyMemory.printMemory();
     }
 
     public boolean readFromFile(String fileName) {
-        System.out.println("[RA-QuadTree-Distance] read from file " + fileName + " ... ...");
+        lock.writeLock().lock();
+        try {
+            System.out.println("[RA-QuadTree-Distance] read from file " + fileName + " ... ...");
+
+            if (!new File(fileName).exists()) {
+                System.out.println("[RA-QuadTree-Distance] read from file " + fileName + " failed! File does not exist.");
+                return false;
+            }
+
+            // legacy text format
+            if (!RAQTSnapshot.isSnapshot(fileName)) {
+                return readFromTextFile(fileName);
+            }
 
+            try {
+                //--time--//
+                long startTime = System.nanoTime();
+                RAQTSnapshot snapshot = RAQTSnapshot.open(fileName);
+                System.out.println("[RA-QuadTree-Distance] snapshot header = " + snapshot.describe());
+                if (!snapshot.matches(1, METRIC, METRIC)) {
+                    snapshot.close();
+                    System.out.println("[RA-QuadTree-Distance] read from file " + fileName + " failed! Snapshot was built with different configuration.");
+                    return false;
+                }
+                this.quadTree = quadTree.readFromSnapshot(snapshot, 0);
+                nodesCount = snapshot.nodesCount;
+                snapshot.close();
+                //--time--//
+                long endTime = System.nanoTime();
+                System.out.println("[RA-QuadTree-Distance] read from file " + fileName + " done! Time: " + ((double) (endTime - startTime) / 1000000000.0) + " seconds.");
+                finish = true;
+                return true;
+            } catch (IOException e) {
+                System.out.println("[RA-QuadTree-Distance] read from file " + fileName + " failed!");
+                e.printStackTrace();
+            }
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    boolean readFromTextFile(String fileName) {
         try {
             BufferedReader bufferedReader = new BufferedReader(new FileReader(fileName));
             //--time--//
             long startTime = System.nanoTime();
             this.quadTree = quadTree.readFromFile(bufferedReader, 0.5, 0.5, 0.5, 0);
             bufferedReader.close();
+            // the text file does not keep the number of nodes, for estimatedBytes
+            long[] counts = new long[2];
+            quadTree.countNodes(counts);
+            nodesCount = counts[0];
             //--time--//
             long endTime = System.nanoTime();
-            System.out.println("[RA-QuadTree-Distance] read from file " + fileName + " done! Time: " + ((double) (endTime - startTime) / 1000000000.0) + " seconds.");
+            System.out.println("[RA-QuadTree-Distance] read from text file " + fileName + " done! Time: " + ((double) (endTime - startTime) / 1000000000.0) + " seconds.");
             finish = true;
             return true;
         } catch (IOException e) {
-            System.out.println("[RA-QuadTree-Distance] read from file " + fileName + " failed!");
+            System.out.println("[RA-QuadTree-Distance] read from text file " + fileName + " failed!");
             e.printStackTrace();
         }
         return false;
     }
 
     public boolean writeToFile(String fileName) {
-        System.out.println("[RA-QuadTree-Distance] write to file " + fileName + " ... ...");
-
+        lock.readLock().lock();
         try {
-            File file = new File(fileName);
-            FileOutputStream fileOutputStream = new FileOutputStream(file);
-            BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(fileOutputStream));
-            //--time--//
-            long startTime = System.nanoTime();
-            quadTree.writeToFile(bufferedWriter, 0.5, 0.5, 0.5, 0);
-            bufferedWriter.close();
-            fileOutputStream.close();
-            //--time--//
-            long endTime = System.nanoTime();
-            System.out.println("[RA-QuadTree-Distance] write to file " + fileName + " done! Time: " + ((double) (endTime - startTime) / 1000000000.0) + " seconds.");
-            return true;
-        }
-        catch (IOException e) {
-            System.out.println("[RA-QuadTree-Distance] write to file " + fileName + " failed!");
-            e.printStackTrace();
-        }
+            System.out.println("[RA-QuadTree-Distance] write to file " + fileName + " ... ...");
 
-        return false;
+            try {
+                //--time--//
+                long startTime = System.nanoTime();
+                long[] counts = new long[2];
+                quadTree.countNodes(counts);
+                RAQTSnapshot snapshot = RAQTSnapshot.create(fileName, counts[0], counts[1], 1, METRIC, METRIC);
+                quadTree.writeToSnapshot(snapshot, 0, new int[1]);
+                snapshot.finish();
+                //--time--//
+                long endTime = System.nanoTime();
+                System.out.println("[RA-QuadTree-Distance] write to file " + fileName + " done! Time: " + ((double) (endTime - startTime) / 1000000000.0) + " seconds.");
+                return true;
+            }
+            catch (IOException e) {
+                System.out.println("[RA-QuadTree-Distance] write to file " + fileName + " failed!");
+                e.printStackTrace();
+            }
+
+            return false;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     public void load(List<Point> points) {
-        System.out.println("[RA-QuadTree-Distance] loading " + points.size() + " points ... ...");
+        lock.writeLock().lock();
+        try {
+            System.out.println("[RA-QuadTree-Distance] loading " + points.size() + " points ... ...");
 
-        MyTimer.startTimer();
-        this.totalNumberOfPoints += points.size();
-        int count = 0;
-        int skip = 0;
-        MyTimer.startTimer();
-        for (Point point: points) {
-            if (this.quadTree.insert(0.5, 0.5, 0.5, lngLatToXY(point), 0))
-                count ++;
-            else
-                skip ++;
-        }
-        MyTimer.stopTimer();
-        double insertTime = MyTimer.durationSeconds();
-        this.totalStoredNumberOfPoints += count;
-        System.out.println("[RA-QuadTree-Distance] inserted " + count + " points and skipped " + skip + " points.");
-        System.out.println("[RA-QuadTree-Distance] insertion time: " + insertTime + " seconds.");
+            MyTimer.startTimer();
+            this.totalNumberOfPoints += points.size();
+            int count = 0;
+            int skip = 0;
+            MyTimer.startTimer();
+            if (Constants.BULK_LOAD && Constants.MAX_ZOOM + 8 <= MortonCode.MAX_LEVEL) {
+                MortonBatch batch = MortonBatch.build(points, 0.0, 0.0, 1.0, 1.0);
+                count = this.quadTree.bulkInsert(0.5, 0.5, 0.5, batch, 0, batch.size, 0);
+                skip = points.size() - count;
+            }
+            else {
+                for (Point point: points) {
+                    if (this.quadTree.insert(0.5, 0.5, 0.5, lngLatToXY(point), 0))
+                        count ++;
+                    else
+                        skip ++;
+                }
+            }
+            MyTimer.stopTimer();
+            double insertTime = MyTimer.durationSeconds();
+            this.totalStoredNumberOfPoints += count;
+            System.out.println("[RA-QuadTree-Distance] inserted " + count + " points and skipped " + skip + " points.");
+            System.out.println("[RA-QuadTree-Distance] insertion time: " + insertTime + " seconds.");
 
-        MyTimer.stopTimer();
-        double loadTime = MyTimer.durationSeconds();
+            MyTimer.stopTimer();
+            double loadTime = MyTimer.durationSeconds();
 
-        if (keepTiming) timing.put("total", timing.get("total") + loadTime);
-        System.out.println("[RA-QuadTree-Distance] loading is done!");
-        System.out.println("[RA-QuadTree-Distance] loading time: " + loadTime + " seconds.");
-        if (keepTiming) this.printTiming();
+            if (keepTiming) timing.put("total", timing.get("total") + loadTime);
+            System.out.println("[RA-QuadTree-Distance] loading is done!");
+            System.out.println("[RA-QuadTree-Distance] loading time: " + loadTime + " seconds.");
+            if (keepTiming) this.printTiming();
 
-        MyMemory.printMemory();
+            MyMemory.printMemory();
 
-        //-DEBUG-//
-        System.out.println("==== Until now ====");
-        System.out.println("RA-QuadTree has processed " + this.totalNumberOfPoints + " points.");
-        System.out.println("RA-QuadTree has stored " + this.totalStoredNumberOfPoints + " points.");
-        System.out.println("RA-QuadTree has skipped " + (this.totalNumberOfPoints - this.totalStoredNumberOfPoints) + " points.");
-        System.out.println("RA-QuadTree has generated " + nodesCount + " nodes.");
-        //-DEBUG-//
+            //-DEBUG-//
+            System.out.println("==== Until now ====");
+            System.out.println("RA-QuadTree has processed " + this.totalNumberOfPoints + " points.");
+            System.out.println("RA-QuadTree has stored " + this.totalStoredNumberOfPoints + " points.");
+            System.out.println("RA-QuadTree has skipped " + (this.totalNumberOfPoints - this.totalStoredNumberOfPoints) + " points.");
+            System.out.println("RA-QuadTree has generated " + nodesCount + " nodes.");
+            //-DEBUG-//
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
     public void finishLoad() {
-        this.finish = true;
-        // select best sample for each node in the QuadTree
-        MyTimer.startTimer();
-        this.quadTree.selectSamples(0.5, 0.5, 0.5, 0);
-        MyTimer.stopTimer();
-        double selectSamplesTime = MyTimer.durationSeconds();
-        System.out.println("==== Data loading finished ====");
-        System.out.println("[RA-QuadTree-Distance] select best sample for each node is done!");
-        System.out.println("[RA-QuadTree-Distance] sample selection time: " + selectSamplesTime + " seconds.");
+        lock.writeLock().lock();
+        try {
+            this.finish = true;
+            // select best sample for each node in the QuadTree
+            MyTimer.startTimer();
+            this.quadTree.selectSamples(0.5, 0.5, 0.5, 0);
+            MyTimer.stopTimer();
+            double selectSamplesTime = MyTimer.durationSeconds();
+            System.out.println("==== Data loading finished ====");
+            System.out.println("[RA-QuadTree-Distance] select best sample for each node is done!");
+            System.out.println("[RA-QuadTree-Distance] sample selection time: " + selectSamplesTime + " seconds.");
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
-    public static double computeBenefit(int _zoom, int _level, QuadTree _node) {
-        computeBenefitTimes ++;
+    public static double computeBenefit(SearchContext _context, int _zoom, int _level, QuadTree _node) {
+        _context.computeBenefitTimes ++;
 
         //--time--//
         long startTime = System.nanoTime();
@@ -644,7 +824,7 @@ public class RAQuadTreeDistance implements IAlgorithm {
 
         //--time--//
         long endTime = System.nanoTime();
-        times.put("computeBenefit", times.get("computeBenefit") + ((double) (endTime - startTime) / 1000000000.0));
+        _context.computeBenefitTime += (double) (endTime - startTime) / 1000000000.0;
 
         if (cost == 0) {
             return Double.MAX_VALUE;
@@ -655,11 +835,20 @@ public class RAQuadTreeDistance implements IAlgorithm {
     }
 
     public byte[] answerQuery(Query query) {
+        Lock queryLock = lockForQuery();
+        try {
+            return answerQuery(query, new SearchContext());
+        } finally {
+            queryLock.unlock();
+        }
+    }
+
+    byte[] answerQuery(Query query, SearchContext context) {
 
         if (!this.finish) {
             // System.out.println("[RA-QuadTree-Distance] has not finished loading data, will not answer this query!");
-            // MyTimer.temporaryTimer.put("treeTime", 0.0);
-            // MyTimer.temporaryTimer.put("aggregateTime", 0.0);
+            // MyTimer.temporaryTimer().put("treeTime", 0.0);
+            // MyTimer.temporaryTimer().put("aggregateTime", 0.0);
             // BinaryMessageBuilder messageBuilder = new BinaryMessageBuilder();
             // double lng = xLng(0.5);
             // double lat = yLat(0.5);
@@ -706,25 +895,18 @@ public class RAQuadTreeDistance implements IAlgorithm {
                 "range = [(" + rcX + ", " + rcY + "), " + rhalfWidth + ", " + rhalfHeight + "] ; \n" +
                 "pixelScale = " + pixelScale + ";");
 
-        /** For query stats*/
-        for (int i = 0; i <= Constants.MAX_ZOOM + 9; i ++) numberOfNodesStoppedAtLevels[i] = 0;
-        computeBenefitTimes = 0;
-
-        /** For query time analysis */
-        times.put("computeBenefit", 0.0);
-
         MyTimer.startTimer();
         System.out.println("[RA-QuadTree-Distance] is doing a best first search with sampleSize = " + sampleSize + ".");
         List<Point> points = this.quadTree.bfs(0.5, 0.5, 0.5,
-                rcX, rcY, rhalfWidth, rhalfHeight, zoom, sampleSize);
+                rcX, rcY, rhalfWidth, rhalfHeight, zoom, sampleSize, context);
         MyTimer.stopTimer();
         double treeTime = MyTimer.durationSeconds();
 
-        MyTimer.temporaryTimer.put("treeTime", treeTime);
+        MyTimer.temporaryTimer().put("treeTime", treeTime);
         System.out.println("[RA-QuadTree-Distance] tree search got " + points.size() + " data points.");
         System.out.println("[RA-QuadTree-Distance] tree search time: " + treeTime + " seconds.");
-        System.out.println("[RA-QuadTree-Distance]     - compute benefit time: " + times.get("computeBenefit") + " seconds.");
-        System.out.println("[RA-QuadTree-Distance]     - compute benefit was called: " + computeBenefitTimes + " times.");
+        System.out.println("[RA-QuadTree-Distance]     - compute benefit time: " + context.computeBenefitTime + " seconds.");
+        System.out.println("[RA-QuadTree-Distance]     - compute benefit was called: " + context.computeBenefitTimes + " times.");
 
         // build binary result message
         MyTimer.startTimer();
@@ -739,7 +921,7 @@ public class RAQuadTreeDistance implements IAlgorithm {
         }
         MyTimer.stopTimer();
         double buildBinaryTime = MyTimer.durationSeconds();
-        MyTimer.temporaryTimer.put("aggregateTime", buildBinaryTime);
+        MyTimer.temporaryTimer().put("aggregateTime", buildBinaryTime);
 
         System.out.println("[RA-QuadTree-Distance] build binary result with  " + resultSize + " points.");
         System.out.println("[RA-QuadTree-Distance] build binary result time: " + buildBinaryTime + " seconds.");
@@ -748,12 +930,50 @@ public class RAQuadTreeDistance implements IAlgorithm {
         System.out.println("[RA-QuadTree-Distance] answer query total time: " + MyTimer.durationSeconds() + " seconds.");
         System.out.println("[RA-QuadTree-Distance] ---- # of nodes stopping at each level ----");
         for (int i = 0; i <= Constants.MAX_ZOOM + 9; i ++) {
-            System.out.println("Level " + i + ": " + numberOfNodesStoppedAtLevels[i]);
+            System.out.println("Level " + i + ": " + context.numberOfNodesStoppedAtLevels[i]);
         }
 
         return messageBuilder.getBuffer();
     }
 
+    /**
+     * @param zoom
+     * @param tX
+     * @param tY
+     * @param sampleBudget
+     * @return encoded payload of samples inside the tile
+     */
+    @Override
+    public byte[] computeTile(int zoom, int tX, int tY, int sampleBudget) {
+        double tileDimension = 1.0 / (1 << zoom);
+        double x0 = tX * tileDimension;
+        double y0 = tY * tileDimension;
+
+        List<Point> points;
+        Lock queryLock = lockForQuery();
+        try {
+            points = this.quadTree.bfs(0.5, 0.5, 0.5,
+                    x0 + tileDimension / 2, y0 + tileDimension / 2, tileDimension / 2, tileDimension / 2,
+                    zoom, sampleBudget, new SearchContext());
+        } finally {
+            queryLock.unlock();
+        }
+
+        // keep only samples inside the tile, so that adjacent tiles do not share samples
+        BinaryMessageBuilder messageBuilder = new BinaryMessageBuilder();
+        for (Point point : points) {
+            if (point.getX() >= x0 && point.getX() < x0 + tileDimension && point.getY() >= y0 && point.getY() < y0 + tileDimension) {
+                messageBuilder.add(xLng(point.getX()), yLat(point.getY()));
+            }
+        }
+        return messageBuilder.copyPayload();
+    }
+
+    @Override
+    public long estimatedBytes() {
+        return nodesCount * NODE_BYTES;
+    }
+
     private void printTiming() {
         System.out.println("[Total Time] " + timing.get("total") + " seconds.");
     }
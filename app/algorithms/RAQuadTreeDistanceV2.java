@@ -85,6 +85,22 @@ public class RAQuadTreeDistanceV2 implements IAlgorithm {
             }
         }
 
+        /**
+         * count nodes of the subtree rooted at this node
+         *
+         * @param counts - [0] number of nodes, [1] number of internal nodes
+         */
+        public void countNodes(long[] counts) {
+            counts[0] ++;
+            if (this.northWest != null) {
+                counts[1] ++;
+                this.northWest.countNodes(counts);
+                this.northEast.countNodes(counts);
+                this.southWest.countNodes(counts);
+                this.southEast.countNodes(counts);
+            }
+        }
+
         /**
          * Pre-order traverse the quadtree and read each node from one line in the buffered reader
          *
@@ -473,20 +489,21 @@ public class RAQuadTreeDistanceV2 implements IAlgorithm {
 
     }
 
-    public static double highestLevelNodeDimension;
+    public double highestLevelNodeDimension;
 
     QuadTree quadTree;
     int totalNumberOfPoints = 0;
     int totalStoredNumberOfPoints = 0;
-    static long nodesCount = 0; // count quad-tree nodes
+    long nodesCount = 0; // count quad-tree nodes
+    static final int NODE_BYTES = 96; // estimated heap size of one node (QuadTree + centroid sample)
     boolean finish = false; // loading data finish flag
 
     /** For query stats */
-    static int[] numberOfNodesStoppedAtLevels; // for current query, count how many nodes stopped at a certain level
-    static int computeBenefitTimes; // for current query, count how many times compute the benefit
+    int[] numberOfNodesStoppedAtLevels; // for current query, count how many nodes stopped at a certain level
+    int computeBenefitTimes; // for current query, count how many times compute the benefit
 
     /** For query time analysis */
-    static Map<String, Double> times; // for current query, store times for different parts
+    Map<String, Double> times; // for current query, store times for different parts
 
     //-Timing-//
     static final boolean keepTiming = true;
@@ -519,7 +536,7 @@ public class RAQuadTreeDistanceV2 implements IAlgorithm {
         MyMemory.printMemory();
     }
 
-    public boolean readFromFile(String fileName) {
+    public synchronized boolean readFromFile(String fileName) {
         System.out.println("[RA-QuadTree-DistanceV2] read from file " + fileName + " ... ...");
 
         try {
@@ -528,6 +545,10 @@ public class RAQuadTreeDistanceV2 implements IAlgorithm {
             long startTime = System.nanoTime();
             this.quadTree = quadTree.readFromFile(bufferedReader, 0.5, 0.5, 0.5, 0);
             bufferedReader.close();
+            // the file does not keep the number of nodes, for estimatedBytes
+            long[] counts = new long[2];
+            quadTree.countNodes(counts);
+            nodesCount = counts[0];
             //--time--//
             long endTime = System.nanoTime();
             System.out.println("[RA-QuadTree-DistanceV2] read from file " + fileName + " done! Time: " + ((double) (endTime - startTime) / 1000000000.0) + " seconds.");
@@ -543,7 +564,7 @@ public class RAQuadTreeDistanceV2 implements IAlgorithm {
         return false;
     }
 
-    public boolean writeToFile(String fileName) {
+    public synchronized boolean writeToFile(String fileName) {
         System.out.println("[RA-QuadTree-DistanceV2] write to file " + fileName + " ... ...");
 
         try {
@@ -575,7 +596,7 @@ public class RAQuadTreeDistanceV2 implements IAlgorithm {
         return false;
     }
 
-    public void load(List<Point> points) {
+    public synchronized void load(List<Point> points) {
         System.out.println("[RA-QuadTree-DistanceV2] loading " + points.size() + " points ... ...");
 
         this.totalNumberOfPoints += points.size();
@@ -608,7 +629,7 @@ public class RAQuadTreeDistanceV2 implements IAlgorithm {
     }
 
     @Override
-    public void finishLoad() {
+    public synchronized void finishLoad() {
         this.finish = true;
         // select best sample for each node in the QuadTree
         MyTimer.startTimer();
@@ -623,7 +644,7 @@ public class RAQuadTreeDistanceV2 implements IAlgorithm {
         MyMemory.printMemory();
     }
 
-    public static double computeBenefit(int _zoom, int _level, QuadTree _node) {
+    public double computeBenefit(int _zoom, int _level, QuadTree _node) {
         computeBenefitTimes ++;
 
         //--time--//
@@ -670,12 +691,12 @@ public class RAQuadTreeDistanceV2 implements IAlgorithm {
         }
     }
 
-    public byte[] answerQuery(Query query) {
+    public synchronized byte[] answerQuery(Query query) {
 
         if (!this.finish) {
             // System.out.println("[RA-QuadTree-DistanceV2] has not finished loading data, will not answer this query!");
-            // MyTimer.temporaryTimer.put("treeTime", 0.0);
-            // MyTimer.temporaryTimer.put("aggregateTime", 0.0);
+            // MyTimer.temporaryTimer().put("treeTime", 0.0);
+            // MyTimer.temporaryTimer().put("aggregateTime", 0.0);
             // BinaryMessageBuilder messageBuilder = new BinaryMessageBuilder();
             // double lng = xLng(0.5);
             // double lat = yLat(0.5);
@@ -736,7 +757,7 @@ public class RAQuadTreeDistanceV2 implements IAlgorithm {
         MyTimer.stopTimer();
         double treeTime = MyTimer.durationSeconds();
 
-        MyTimer.temporaryTimer.put("treeTime", treeTime);
+        MyTimer.temporaryTimer().put("treeTime", treeTime);
         System.out.println("[RA-QuadTree-DistanceV2] tree search got " + points.size() + " data points.");
         System.out.println("[RA-QuadTree-DistanceV2] tree search time: " + treeTime + " seconds.");
         System.out.println("[RA-QuadTree-DistanceV2]     - compute benefit time: " + times.get("computeBenefit") + " seconds.");
@@ -755,7 +776,7 @@ public class RAQuadTreeDistanceV2 implements IAlgorithm {
         }
         MyTimer.stopTimer();
         double buildBinaryTime = MyTimer.durationSeconds();
-        MyTimer.temporaryTimer.put("aggregateTime", buildBinaryTime);
+        MyTimer.temporaryTimer().put("aggregateTime", buildBinaryTime);
 
         System.out.println("[RA-QuadTree-DistanceV2] build binary result with  " + resultSize + " points.");
         System.out.println("[RA-QuadTree-DistanceV2] build binary result time: " + buildBinaryTime + " seconds.");
@@ -770,6 +791,11 @@ public class RAQuadTreeDistanceV2 implements IAlgorithm {
         return messageBuilder.getBuffer();
     }
 
+    @Override
+    public long estimatedBytes() {
+        return nodesCount * NODE_BYTES;
+    }
+
     private void printTiming() {
         System.out.println("========== Building RA-QuadTree-DistanceV2 Timings ==========");
         System.out.println("insert time,    selectSamples time,    writeToFile time");
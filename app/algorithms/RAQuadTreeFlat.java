@@ -0,0 +1,889 @@
+package algorithms;
+
+import model.Point;
+import model.Query;
+import util.*;
+import util.render.*;
+
+import java.io.*;
+import java.util.*;
+
+import static util.Mercator.*;
+
+/**
+ * RA-QuadTree algorithm
+ *   Pointer-free implementation, nodes are stored in parallel primitive arrays addressed by int index
+ *
+ *   - node 0 is the root
+ *   - the four children of a node are allocated contiguously as one block [nw, ne, sw, se],
+ *     childBase[node] is the index of nw, 0 means leaf (root can never be a child)
+ *   - block b occupies node indexes [1 + 4b, 5 + 4b],
+ *     errors are only kept for internal nodes, errors of node with childBase c are at
+ *     errors[((c - 1) / 4) * (MAX_ZOOM + 1) + zoom]
+ *   - a node without sample has sampleX = sampleY = NaN
+ */
+public class RAQuadTreeFlat implements IAlgorithm {
+
+    static final int INIT_CAPACITY = 1 << 16;
+    static final int NW = 0, NE = 1, SW = 2, SE = 3;
+
+    // node storage
+    int[] childBase;
+    int[] counts;
+    double[] sampleX;
+    double[] sampleY;
+    double[] errors;
+    int size; // number of nodes in use
+    int errorsStride; // MAX_ZOOM + 1
+
+    public double highestLevelNodeDimension;
+
+    IRenderer renderer;
+
+    IErrorMetric errorMetric;
+
+    // scratch points for rendering samples that live in primitive arrays
+    Point scratch0 = new Point();
+    Point scratch1 = new Point();
+
+    int totalNumberOfPoints = 0;
+    int totalStoredNumberOfPoints = 0;
+    boolean finish = false; // loading data finish flag
+
+    /** For query stats */
+    int[] numberOfNodesStoppedAtLevels; // for current query, count how many nodes stopped at a certain level
+    int computeBenefitTimes; // for current query, count how many times compute the benefit
+
+    //-Timing-//
+    static final boolean keepTiming = true;
+    Map<String, Double> timing;
+    //-Timing-//
+
+    public RAQuadTreeFlat() {
+        this.errorsStride = Constants.MAX_ZOOM + 1;
+        this.allocate(INIT_CAPACITY);
+        this.size = 1; // root
+        this.clearNode(0);
+
+        // zoom level 0 is fixed with dimension 1.0 / 256 (because one tile of the base map is 256px x 256px)
+        highestLevelNodeDimension = 1.0 / 256 / Math.pow(2, Constants.MAX_ZOOM);
+
+        switch (Constants.RENDERING_FUNCTION.toLowerCase()) {
+            case "deckgl":
+                System.out.println("[RA-QuadTree-Flat] rendering function = Deck.GL");
+                renderer =  new DeckGLRenderer(Constants.RADIUS_IN_PIXELS);
+                switch (Constants.ERROR_FUNCTION.toLowerCase()) {
+                    case "l2":
+                        System.out.println("[RA-QuadTree-Flat] error function = L2");
+                        errorMetric = new L2Error();
+                        break;
+                    case "l1":
+                    default:
+                        System.out.println("[RA-QuadTree-Flat] error function = L1");
+                        errorMetric = new L1Error();
+                }
+                break;
+            case "snap":
+            default:
+                System.out.println("[RA-QuadTree-Flat] rendering function = Snap");
+                renderer = new SnapRenderer();
+                switch (Constants.ERROR_FUNCTION.toLowerCase()) {
+                    case "l2":
+                        System.out.println("[RA-QuadTree-Flat] error function = Snap L2");
+                        errorMetric = new SnapL2Error();
+                        break;
+                    case "l1":
+                    default:
+                        System.out.println("[RA-QuadTree-Flat] error function = Snap L1");
+                        errorMetric = new SnapL1Error();
+                }
+        }
+
+        // initialize the timing map
+        if (keepTiming) {
+            timing = new HashMap<>();
+            timing.put("total", 0.0);
+        }
+
+        /** For query stats */
+        numberOfNodesStoppedAtLevels = new int[Constants.MAX_ZOOM + 9 + 1];
+
+        MyMemory.printMemory();
+    }
+
+    /**
+     * Node storage
+     */
+    void allocate(int capacity) {
+        childBase = new int[capacity];
+        counts = new int[capacity];
+        sampleX = new double[capacity];
+        sampleY = new double[capacity];
+        errors = new double[(capacity / 4 + 1) * errorsStride];
+    }
+
+    void ensureCapacity(int capacity) {
+        if (capacity <= childBase.length) return;
+        int newCapacity = Math.max(capacity, childBase.length * 2);
+        childBase = Arrays.copyOf(childBase, newCapacity);
+        counts = Arrays.copyOf(counts, newCapacity);
+        sampleX = Arrays.copyOf(sampleX, newCapacity);
+        sampleY = Arrays.copyOf(sampleY, newCapacity);
+        errors = Arrays.copyOf(errors, (newCapacity / 4 + 1) * errorsStride);
+    }
+
+    void clearNode(int node) {
+        childBase[node] = 0;
+        counts[node] = 0;
+        sampleX[node] = Double.NaN;
+        sampleY[node] = Double.NaN;
+    }
+
+    boolean isLeaf(int node) {
+        return childBase[node] == 0;
+    }
+
+    boolean hasSample(int node) {
+        return !Double.isNaN(sampleX[node]);
+    }
+
+    int errorsOffset(int node) {
+        return ((childBase[node] - 1) / 4) * errorsStride;
+    }
+
+    /**
+     * allocate a block of four empty children for the given node
+     *
+     * @param node
+     * @return index of the first child (northwest)
+     */
+    int subdivide(int node) {
+        int base = size;
+        ensureCapacity(size + 4);
+        for (int i = 0; i < 4; i ++) {
+            clearNode(base + i);
+        }
+        int offset = ((base - 1) / 4) * errorsStride;
+        for (int zoom = 0; zoom < errorsStride; zoom ++) {
+            errors[offset + zoom] = 0.0;
+        }
+        childBase[node] = base;
+        size += 4;
+        return base;
+    }
+
+    /**
+     * quadrant of point (x, y) in the node with center (cX, cY)
+     */
+    static int quadrant(double cX, double cY, double x, double y) {
+        return (y < cY? 0: 2) + (x < cX? 0: 1);
+    }
+
+    /**
+     * Iterative version of RAQuadTree.QuadTree.insert
+     *
+     * @param x
+     * @param y
+     * @return true - if the point is stored as a sample of some node, false - if the point is skipped
+     */
+    public boolean insert(double x, double y) {
+        // Ignore objects that do not belong in this quad tree
+        if (x < 0.0 || y < 0.0 || x >= 1.0 || y >= 1.0) {
+            return false;
+        }
+        int node = 0;
+        double cX = 0.5, cY = 0.5, halfDimension = 0.5;
+        while (true) {
+            // If this node is leaf and empty, put this point on this node
+            if (!hasSample(node) && isLeaf(node)) {
+                sampleX[node] = x;
+                sampleY[node] = y;
+                counts[node] = 1;
+                return true;
+            }
+            // Else, add count into this node
+            counts[node] ++;
+
+            // if boundary is smaller than highestLevelNodeDimension,
+            // stop splitting, and make current node a leaf node.
+            if (halfDimension * 2 < highestLevelNodeDimension) {
+                // at this moment, this node must already have a sample
+                return false; // skip this point
+            }
+
+            // Otherwise, subdivide
+            if (isLeaf(node)) {
+                int base = subdivide(node);
+                // descend current node's point into corresponding quadrant
+                int child = base + quadrant(cX, cY, sampleX[node], sampleY[node]);
+                sampleX[child] = sampleX[node];
+                sampleY[child] = sampleY[node];
+                counts[child] = 1;
+                sampleX[node] = Double.NaN;
+                sampleY[node] = Double.NaN;
+            }
+
+            // descend into corresponding quadrant
+            int q = quadrant(cX, cY, x, y);
+            halfDimension = halfDimension / 2;
+            cX = (q == NW || q == SW)? cX - halfDimension: cX + halfDimension;
+            cY = (q == NW || q == NE)? cY - halfDimension: cY + halfDimension;
+            node = childBase[node] + q;
+        }
+    }
+
+    /**
+     * Insert the points of keys[from, to) of a Morton sorted batch into the subtree of given node,
+     * the result is the same as inserting them one by one in their original order,
+     * and the blocks of new nodes are allocated in Z-order
+     *
+     * @param node
+     * @param cX
+     * @param cY
+     * @param halfDimension
+     * @param batch
+     * @param from
+     * @param to
+     * @param level
+     * @return number of points stored as a sample of some node, the rest are skipped
+     */
+    int bulkInsert(int node, double cX, double cY, double halfDimension, MortonBatch batch, int from, int to, int level) {
+        int n = to - from;
+        if (n == 0) return 0;
+        // If this node is leaf and empty, the earliest point is put on this node
+        if (!hasSample(node) && isLeaf(node)) {
+            if (n == 1 || halfDimension * 2 < highestLevelNodeDimension) {
+                Point first = batch.points[batch.first(from, to)];
+                sampleX[node] = first.getX();
+                sampleY[node] = first.getY();
+                counts[node] = n;
+                // the other points are skipped if this node can not be split
+                return 1;
+            }
+            counts[node] = n;
+            subdivide(node);
+        }
+        else {
+            // Else, add count into this node
+            counts[node] += n;
+
+            // if boundary is smaller than highestLevelNodeDimension,
+            // stop splitting, and make current node a leaf node.
+            if (halfDimension * 2 < highestLevelNodeDimension) {
+                return 0; // skip these points
+            }
+
+            // Otherwise, subdivide
+            if (isLeaf(node)) {
+                int base = subdivide(node);
+                // descend current node's point into corresponding quadrant
+                int child = base + quadrant(cX, cY, sampleX[node], sampleY[node]);
+                sampleX[child] = sampleX[node];
+                sampleY[child] = sampleY[node];
+                counts[child] = 1;
+                sampleX[node] = Double.NaN;
+                sampleY[node] = Double.NaN;
+            }
+        }
+
+        // split the range into the four quadrants and merge each into the corresponding child
+        int ne = MortonCode.lowerBound(batch.keys, from, to, level, NE);
+        int sw = MortonCode.lowerBound(batch.keys, ne, to, level, SW);
+        int se = MortonCode.lowerBound(batch.keys, sw, to, level, SE);
+        int base = childBase[node];
+        double half = halfDimension / 2;
+        int stored = 0;
+        stored += bulkInsert(base + NW, cX - half, cY - half, half, batch, from, ne, level + 1);
+        stored += bulkInsert(base + NE, cX + half, cY - half, half, batch, ne, sw, level + 1);
+        stored += bulkInsert(base + SW, cX - half, cY + half, half, batch, sw, se, level + 1);
+        stored += bulkInsert(base + SE, cX + half, cY + half, half, batch, se, to, level + 1);
+        return stored;
+    }
+
+    /**
+     * Post-order traverse the Quadtree,
+     * select the best sample for each node
+     *
+     * V1 - select the best from only its 4 children
+     *    - store errors between sample on node and samples on children for all resolutions
+     */
+    void selectSamples(int node, double _cX, double _cY, double _halfDimension) {
+        // leaf node already has the best sample
+        if (isLeaf(node)) {
+            return;
+        }
+
+        double halfDimension = _halfDimension / 2;
+        int base = childBase[node];
+
+        // select best samples for all four children first
+        selectSamples(base + NW, _cX - halfDimension, _cY - halfDimension, halfDimension);
+        selectSamples(base + NE, _cX + halfDimension, _cY - halfDimension, halfDimension);
+        selectSamples(base + SW, _cX - halfDimension, _cY + halfDimension, halfDimension);
+        selectSamples(base + SE, _cX + halfDimension, _cY + halfDimension, halfDimension);
+
+        // render the four best samples on four children as the ground truth
+        byte[] rendering0 = renderer.createRendering(Constants.NODE_RESOLUTION);
+        for (int child = base; child < base + 4; child ++) {
+            if (hasSample(child)) {
+                renderer.render(rendering0, _cX, _cY, _halfDimension, Constants.NODE_RESOLUTION, samplePoint(child, scratch0));
+            }
+        }
+
+        // render each candidate of the four children individually and select the minimum error one
+        double minError = Double.MAX_VALUE;
+        int bestChild = -1;
+        for (int child = base; child < base + 4; child ++) {
+            if (hasSample(child)) {
+                byte[] rendering = renderer.createRendering(Constants.NODE_RESOLUTION);
+                renderer.render(rendering, _cX, _cY, _halfDimension, Constants.NODE_RESOLUTION, samplePoint(child, scratch0));
+                double error = errorMetric.error(rendering0, rendering, renderer.realResolution(Constants.NODE_RESOLUTION));
+                if (error < minError) {
+                    minError = error;
+                    bestChild = child;
+                }
+            }
+        }
+        // best sample stored on this node
+        if (bestChild >= 0) {
+            sampleX[node] = sampleX[bestChild];
+            sampleY[node] = sampleY[bestChild];
+        }
+        else {
+            sampleX[node] = Double.NaN;
+            sampleY[node] = Double.NaN;
+        }
+
+        // for all zoom levels (resolutions),
+        // compute and store the errors between best sample and all four children's best samples
+        int offset = errorsOffset(node);
+        for (int zoom = 0; zoom <= Constants.MAX_ZOOM; zoom ++) {
+            double pixelScale = 1.0 / 256 / Math.pow(2, zoom);
+            errors[offset + zoom] = computeErrorAgainstChildren(node, _cX, _cY, _halfDimension, pixelScale);
+        }
+    }
+
+    Point samplePoint(int node, Point scratch) {
+        scratch.setX(sampleX[node]);
+        scratch.setY(sampleY[node]);
+        return scratch;
+    }
+
+    double computeErrorAgainstChildren(int _node, double _ncX, double _ncY, double _nhalfDimension,
+                                       double _rPixelScale) {
+        // if already leaf, benefit is 0.0, no need to expand it
+        if (isLeaf(_node)) return 0.0;
+
+        // get the resolution for given _node as piece of the result
+        int resolution = (int) Math.round(2 * _nhalfDimension / _rPixelScale);
+
+        // TODO - verify for DeckGLRenderer
+        if (resolution == 0) return 0.0;
+
+        int base = childBase[_node];
+
+        if (resolution > 4 * Constants.NODE_SAMPLE_SIZE) {
+            // render the point on node
+            // for pixel list rendering, background is always an empty list
+            List<Pixel> rendering1 = new ArrayList<>();
+            if (hasSample(_node)) {
+                renderer.render(rendering1, _ncX, _ncY, _nhalfDimension, resolution, samplePoint(_node, scratch1));
+            }
+            // render the 4 children points
+            // for pixel list rendering, background is always an empty list
+            List<Pixel> rendering2 = new ArrayList<>();
+            for (int child = base; child < base + 4; child ++) {
+                if (hasSample(child)) {
+                    renderer.render(rendering2, _ncX, _ncY, _nhalfDimension, resolution, samplePoint(child, scratch1));
+                }
+            }
+            return errorMetric.error(rendering1, rendering2, renderer.realResolution(resolution));
+        }
+        // otherwise, use byte array rendering
+        else {
+            // render the point on node
+            byte[] rendering1 = renderer.createRendering(resolution);
+            if (hasSample(_node)) {
+                renderer.render(rendering1, _ncX, _ncY, _nhalfDimension, resolution, samplePoint(_node, scratch1));
+            }
+            // render the 4 children points
+            byte[] rendering2 = renderer.createRendering(resolution);
+            for (int child = base; child < base + 4; child ++) {
+                if (hasSample(child)) {
+                    renderer.render(rendering2, _ncX, _ncY, _nhalfDimension, resolution, samplePoint(child, scratch1));
+                }
+            }
+            return errorMetric.error(rendering1, rendering2, renderer.realResolution(resolution));
+        }
+    }
+
+    double computeBenefit(int _zoom, int _level, int _node) {
+        computeBenefitTimes ++;
+
+        // for leaf node, it can not be expanded at all.
+        if (isLeaf(_node)) return 0.0;
+
+        // for levels < zoom level 0 (2^8 = 256, zoom level 0 has 256px resolution), always expand.
+        if (_level < 8) return Double.MAX_VALUE;
+
+        double error = errors[errorsOffset(_node) + _zoom];
+
+        double gain = error * Math.log(counts[_node]);
+        int sampleSize = hasSample(_node)? 1: 0;
+        int sampleSizeOfChildren = 0;
+        int base = childBase[_node];
+        for (int child = base; child < base + 4; child ++) {
+            sampleSizeOfChildren += hasSample(child)? 1: 0;
+        }
+        int cost = sampleSizeOfChildren - sampleSize;
+
+        if (cost == 0) {
+            return Double.MAX_VALUE;
+        }
+        else {
+            return gain / (double) cost;
+        }
+    }
+
+    static boolean intersectsBBox(double c1X, double c1Y, double halfDimension1,
+                                  double c2X, double c2Y, double halfWidth2, double halfHeight2) {
+        // bbox 1
+        double left = c1X - halfDimension1;
+        double right = c1X + halfDimension1;
+        double bottom = c1Y + halfDimension1;
+        double top = c1Y - halfDimension1;
+        // bbox 2
+        double minX = c2X - halfWidth2;
+        double maxX = c2X + halfWidth2;
+        double minY = c2Y - halfHeight2;
+        double maxY = c2Y + halfHeight2;
+
+        // right to the right
+        if (minX > right) return false;
+        // left to the left
+        if (maxX < left) return false;
+        // above the bottom
+        if (minY > bottom) return false;
+        // below the top
+        if (maxY < top) return false;
+
+        return true;
+    }
+
+    static class QEntry {
+        int level;
+        double ncX;
+        double ncY;
+        double nhalfDimension;
+        int node;
+        double benefit; // the benefit value if the take the best move
+
+        QEntry(int _level, double _ncX, double _ncY, double _nhalfDimension, int _node, double _benefit) {
+            level = _level;
+            ncX = _ncX;
+            ncY = _ncY;
+            nhalfDimension = _nhalfDimension;
+            node = _node;
+            benefit = _benefit;
+        }
+    }
+
+    /**
+     * breadth first search
+     *
+     * explore nodes with higher estimated benefit first
+     * - benefit = gain of quality / cost of sample size
+     *
+     * @param _rcX
+     * @param _rcY
+     * @param _rhalfWidth
+     * @param _rhalfHeight
+     * @param _zoom - zoom level of current query
+     * @param _targetSampleSize
+     * @param messageBuilder - result samples are written directly into the message
+     * @return number of result samples
+     */
+    int bfs(double _rcX, double _rcY, double _rhalfWidth, double _rhalfHeight,
+            int _zoom, int _targetSampleSize, BinaryMessageBuilder messageBuilder) {
+
+        int resultSize = 0;
+
+        // explore larger estimatedProfit node first
+        PriorityQueue<QEntry> queue = new PriorityQueue<>((o1, o2) -> Double.compare(o2.benefit, o1.benefit));
+
+        double rootBenefit = computeBenefit(_zoom, 0, 0);
+        // add root node
+        queue.add(new QEntry(0, 0.5, 0.5, 0.5, 0, rootBenefit));
+        int availableSampleSize = _targetSampleSize - Constants.NODE_SAMPLE_SIZE;
+
+        while (queue.size() > 0) {
+
+            // pick the largest benefit node
+            QEntry entry = queue.poll();
+            int node = entry.node;
+            int sampleSize = hasSample(node)? Constants.NODE_SAMPLE_SIZE: 0;
+
+            // if the largest estimated benefit is 0 or enough samples, entering collecting samples mode
+            if (entry.benefit <= 0.0 || availableSampleSize <= 0) {
+                if (hasSample(node)) {
+                    numberOfNodesStoppedAtLevels[entry.level] ++;
+                    messageBuilder.add(xLng(sampleX[node]), yLat(sampleY[node]));
+                    resultSize ++;
+                }
+                continue;
+            }
+
+            // otherwise, expand this node
+            double halfDimension = entry.nhalfDimension / 2;
+            availableSampleSize += sampleSize;
+            int base = childBase[node];
+            for (int q = NW; q <= SE; q ++) {
+                double cX = (q == NW || q == SW)? entry.ncX - halfDimension: entry.ncX + halfDimension;
+                double cY = (q == NW || q == NE)? entry.ncY - halfDimension: entry.ncY + halfDimension;
+                // ignore this node if the range does not intersect with it
+                if (intersectsBBox(cX, cY, halfDimension, _rcX, _rcY, _rhalfWidth, _rhalfHeight)) {
+                    int child = base + q;
+                    queue.add(new QEntry(entry.level + 1, cX, cY, halfDimension, child,
+                            computeBenefit(_zoom, entry.level + 1, child)));
+                    if (hasSample(child)) {
+                        availableSampleSize -= Constants.NODE_SAMPLE_SIZE;
+                    }
+                }
+            }
+        }
+
+        //-DEBUG-//
+        System.out.println("[availableSampleSize] = " + availableSampleSize);
+
+        return resultSize;
+    }
+
+    /**
+     * Pre-order traverse the quadtree and write each node as one record of the binary snapshot,
+     * same format as RAQuadTree, so that files are interchangeable between the two implementations
+     *
+     * @param snapshot
+     * @param node
+     * @param index - record index of this node
+     * @param nextErrorsIndex - [0] is the next free errors index of the snapshot
+     * @return size of the subtree rooted at this node
+     */
+    int writeNode(RAQTSnapshot snapshot, int node, long index, int[] nextErrorsIndex) {
+        int errorsIndex = -1;
+        int subtreeSize = 1;
+        if (!isLeaf(node)) {
+            errorsIndex = nextErrorsIndex[0] ++;
+            int offset = errorsOffset(node);
+            for (int zoom = 0; zoom <= Constants.MAX_ZOOM; zoom ++) {
+                snapshot.putError(errorsIndex, zoom, errors[offset + zoom]);
+            }
+            // recursively write the children
+            int base = childBase[node];
+            for (int child = base; child < base + 4; child ++) {
+                subtreeSize += writeNode(snapshot, child, index + subtreeSize, nextErrorsIndex);
+            }
+        }
+        // write current node
+        snapshot.putNode(index, counts[node], subtreeSize, sampleX[node], sampleY[node], errorsIndex);
+        return subtreeSize;
+    }
+
+    /**
+     * Pre-order read the subtree rooted at given record of the binary snapshot into given node
+     *
+     * @param snapshot
+     * @param index - record index of the node to read
+     * @param node - index of current node, already allocated
+     */
+    void readNode(RAQTSnapshot snapshot, long index, int node) {
+        counts[node] = snapshot.count(index);
+        sampleX[node] = snapshot.sampleX(index);
+        sampleY[node] = snapshot.sampleY(index);
+        if (snapshot.isLeaf(index)) {
+            return;
+        }
+        int base = subdivide(node);
+        int offset = errorsOffset(node);
+        int errorsIndex = snapshot.errorsIndex(index);
+        for (int zoom = 0; zoom <= Constants.MAX_ZOOM; zoom ++) {
+            errors[offset + zoom] = snapshot.error(errorsIndex, zoom);
+        }
+        // recursively read the children
+        long child = index + 1;
+        for (int i = 0; i < 4; i ++) {
+            readNode(snapshot, child, base + i);
+            child += snapshot.subtreeSize(child);
+        }
+    }
+
+    /**
+     * Pre-order read the node from given line and its subtree from the buffered reader (legacy text format)
+     *
+     * @param bufferedReader
+     * @param line - line of current node, already read
+     * @param node - index of current node, already allocated
+     */
+    void readNode(BufferedReader bufferedReader, String line, int node) throws IOException {
+        // read current node
+        String[] attributes = line.split(",");
+        int i = 0;
+        counts[node] = Integer.valueOf(attributes[i++]);
+
+        if (attributes[i].isEmpty()) {
+            sampleX[node] = Double.NaN;
+            sampleY[node] = Double.NaN;
+            i += 2;
+        } else {
+            sampleX[node] = Double.valueOf(attributes[i++]);
+            sampleY[node] = Double.valueOf(attributes[i++]);
+        }
+
+        // first child decides whether this node is a leaf
+        String childLine = bufferedReader.readLine();
+        if (childLine == null || childLine.isEmpty()) {
+            // leaf node has four empty lines
+            for (int k = 1; k < 4; k ++) {
+                bufferedReader.readLine();
+            }
+            return;
+        }
+
+        int base = subdivide(node);
+        int offset = errorsOffset(node);
+        for (int zoom = 0; zoom <= Constants.MAX_ZOOM; zoom++) {
+            errors[offset + zoom] = Double.valueOf(attributes[i++]);
+        }
+
+        // recursively read the children
+        readNode(bufferedReader, childLine, base + NW);
+        for (int child = base + NE; child <= base + SE; child ++) {
+            readNode(bufferedReader, bufferedReader.readLine(), child);
+        }
+    }
+
+    public synchronized boolean readFromFile(String fileName) {
+        System.out.println("[RA-QuadTree-Flat] read from file " + fileName + " ... ...");
+
+        if (!new File(fileName).exists()) {
+            System.out.println("[RA-QuadTree-Flat] read from file " + fileName + " failed! File does not exist.");
+            return false;
+        }
+
+        // legacy text format
+        if (!RAQTSnapshot.isSnapshot(fileName)) {
+            return readFromTextFile(fileName);
+        }
+
+        try {
+            //--time--//
+            long startTime = System.nanoTime();
+            RAQTSnapshot snapshot = RAQTSnapshot.open(fileName);
+            System.out.println("[RA-QuadTree-Flat] snapshot header = " + snapshot.describe());
+            if (!snapshot.matches(Constants.MAX_ZOOM + 1, Constants.RENDERING_FUNCTION, Constants.ERROR_FUNCTION)) {
+                snapshot.close();
+                System.out.println("[RA-QuadTree-Flat] read from file " + fileName + " failed! Snapshot was built with different configuration.");
+                return false;
+            }
+            this.allocate((int) snapshot.nodesCount);
+            this.size = 1;
+            this.clearNode(0);
+            this.readNode(snapshot, 0, 0);
+            snapshot.close();
+            //--time--//
+            long endTime = System.nanoTime();
+            System.out.println("[RA-QuadTree-Flat] read from file " + fileName + " done! Time: " + ((double) (endTime - startTime) / 1000000000.0) + " seconds.");
+            finish = true;
+            return true;
+        } catch (IOException e) {
+            System.out.println("[RA-QuadTree-Flat] read from file " + fileName + " failed!");
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    boolean readFromTextFile(String fileName) {
+        try {
+            BufferedReader bufferedReader = new BufferedReader(new FileReader(fileName));
+            //--time--//
+            long startTime = System.nanoTime();
+            String line = bufferedReader.readLine();
+            if (line == null || line.isEmpty()) {
+                bufferedReader.close();
+                System.out.println("[RA-QuadTree-Flat] read from text file " + fileName + " failed! File is empty.");
+                return false;
+            }
+            this.size = 1;
+            this.clearNode(0);
+            this.readNode(bufferedReader, line, 0);
+            bufferedReader.close();
+            //--time--//
+            long endTime = System.nanoTime();
+            System.out.println("[RA-QuadTree-Flat] read from text file " + fileName + " done! Time: " + ((double) (endTime - startTime) / 1000000000.0) + " seconds.");
+            finish = true;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("[RA-QuadTree-Flat] read from text file " + fileName + " failed!");
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    public synchronized boolean writeToFile(String fileName) {
+        System.out.println("[RA-QuadTree-Flat] write to file " + fileName + " ... ...");
+
+        try {
+            //--time--//
+            long startTime = System.nanoTime();
+            RAQTSnapshot snapshot = RAQTSnapshot.create(fileName, this.size, (this.size - 1) / 4, Constants.MAX_ZOOM + 1,
+                    Constants.RENDERING_FUNCTION, Constants.ERROR_FUNCTION);
+            this.writeNode(snapshot, 0, 0, new int[1]);
+            snapshot.finish();
+            //--time--//
+            long endTime = System.nanoTime();
+            System.out.println("[RA-QuadTree-Flat] write to file " + fileName + " done! Time: " + ((double) (endTime - startTime) / 1000000000.0) + " seconds.");
+            return true;
+        }
+        catch (IOException e) {
+            System.out.println("[RA-QuadTree-Flat] write to file " + fileName + " failed!");
+            e.printStackTrace();
+        }
+
+        return false;
+    }
+
+    public synchronized void load(List<Point> points) {
+        System.out.println("[RA-QuadTree-Flat] loading " + points.size() + " points ... ...");
+
+        MyTimer.startTimer();
+        this.totalNumberOfPoints += points.size();
+        int count = 0;
+        int skip = 0;
+        MyTimer.startTimer();
+        if (Constants.BULK_LOAD && Constants.MAX_ZOOM + 8 <= MortonCode.MAX_LEVEL) {
+            MortonBatch batch = MortonBatch.build(points, 0.0, 0.0, 1.0, 1.0);
+            count = this.bulkInsert(0, 0.5, 0.5, 0.5, batch, 0, batch.size, 0);
+            skip = points.size() - count;
+        }
+        else {
+            for (Point point: points) {
+                if (this.insert(lngX(point.getX()), latY(point.getY())))
+                    count ++;
+                else
+                    skip ++;
+            }
+        }
+        MyTimer.stopTimer();
+        double insertTime = MyTimer.durationSeconds();
+        this.totalStoredNumberOfPoints += count;
+        System.out.println("[RA-QuadTree-Flat] inserted " + count + " points and skipped " + skip + " points.");
+        System.out.println("[RA-QuadTree-Flat] insertion time: " + insertTime + " seconds.");
+
+        MyTimer.stopTimer();
+        double loadTime = MyTimer.durationSeconds();
+
+        if (keepTiming) timing.put("total", timing.get("total") + loadTime);
+        System.out.println("[RA-QuadTree-Flat] loading is done!");
+        System.out.println("[RA-QuadTree-Flat] loading time: " + loadTime + " seconds.");
+        if (keepTiming) this.printTiming();
+
+        MyMemory.printMemory();
+
+        //-DEBUG-//
+        System.out.println("==== Until now ====");
+        System.out.println("RA-QuadTree-Flat has processed " + this.totalNumberOfPoints + " points.");
+        System.out.println("RA-QuadTree-Flat has stored " + this.totalStoredNumberOfPoints + " points.");
+        System.out.println("RA-QuadTree-Flat has skipped " + (this.totalNumberOfPoints - this.totalStoredNumberOfPoints) + " points.");
+        System.out.println("RA-QuadTree-Flat has generated " + this.size + " nodes.");
+        //-DEBUG-//
+    }
+
+    @Override
+    public synchronized void finishLoad() {
+        this.finish = true;
+        // select best sample for each node in the QuadTree
+        MyTimer.startTimer();
+        this.selectSamples(0, 0.5, 0.5, 0.5);
+        MyTimer.stopTimer();
+        double selectSamplesTime = MyTimer.durationSeconds();
+        System.out.println("==== Data loading finished ====");
+        System.out.println("[RA-QuadTree-Flat] select best sample for each node is done!");
+        System.out.println("[RA-QuadTree-Flat] sample selection time: " + selectSamplesTime + " seconds.");
+    }
+
+    public synchronized byte[] answerQuery(Query query) {
+
+        if (!this.finish) {
+            System.out.println("[RA-QuadTree-Flat] has not finished loading data, select samples temporarily for progressive results!");
+            MyTimer.startTimer();
+            this.selectSamples(0, 0.5, 0.5, 0.5);
+            MyTimer.stopTimer();
+            double selectSamplesTime = MyTimer.durationSeconds();
+            System.out.println("[RA-QuadTree-Flat] sample selection time: " + selectSamplesTime + " seconds.");
+        }
+
+        double lng0 = query.bbox[0];
+        double lat0 = query.bbox[1];
+        double lng1 = query.bbox[2];
+        double lat1 = query.bbox[3];
+        int resX = query.resX;
+        int resY = query.resY;
+        int zoom = query.zoom;
+        int sampleSize = query.sampleSize <= 0? Constants.DEFAULT_SAMPLE_SIZE: query.sampleSize;
+
+        MyTimer.startTimer();
+        System.out.println("[RA-QuadTree-Flat] is answering query: \n" +
+                "Q = { \n" +
+                "    range: [" + lng0 + ", " + lat0 + "] ~ [" + lng1 + ", " + lat1 + "], \n" +
+                "    resolution: [" + resX + " x " + resY + "], \n" +
+                "    zoom: " + zoom + ",\n " +
+                "    sampleSize: " + sampleSize + " \n" +
+                " }");
+
+        double iX0 = lngX(lng0);
+        double iY0 = latY(lat0);
+        double iX1 = lngX(lng1);
+        double iY1 = latY(lat1);
+        double rcX = (iX0 + iX1) / 2;
+        double rcY = (iY0 + iY1) / 2;
+        double rhalfWidth = (iX1 - iX0) / 2;
+        double rhalfHeight = (iY0 - iY1) / 2;
+
+        /** For query stats*/
+        for (int i = 0; i <= Constants.MAX_ZOOM + 9; i ++) numberOfNodesStoppedAtLevels[i] = 0;
+        computeBenefitTimes = 0;
+
+        // tree search writes result samples directly into the binary message,
+        // so tree time includes building the binary result
+        MyTimer.startTimer();
+        System.out.println("[RA-QuadTree-Flat] is doing a best first search with sampleSize = " + sampleSize + ".");
+        BinaryMessageBuilder messageBuilder = new BinaryMessageBuilder();
+        int resultSize = this.bfs(rcX, rcY, rhalfWidth, rhalfHeight, zoom, sampleSize, messageBuilder);
+        MyTimer.stopTimer();
+        double treeTime = MyTimer.durationSeconds();
+
+        MyTimer.temporaryTimer().put("treeTime", treeTime);
+        MyTimer.temporaryTimer().put("aggregateTime", 0.0);
+        System.out.println("[RA-QuadTree-Flat] tree search got " + resultSize + " data points.");
+        System.out.println("[RA-QuadTree-Flat] tree search time: " + treeTime + " seconds.");
+        System.out.println("[RA-QuadTree-Flat]     - compute benefit was called: " + computeBenefitTimes + " times.");
+
+        MyTimer.stopTimer();
+        System.out.println("[RA-QuadTree-Flat] answer query total time: " + MyTimer.durationSeconds() + " seconds.");
+        System.out.println("[RA-QuadTree-Flat] ---- # of nodes stopping at each level ----");
+        for (int i = 0; i <= Constants.MAX_ZOOM + 9; i ++) {
+            System.out.println("Level " + i + ": " + numberOfNodesStoppedAtLevels[i]);
+        }
+
+        return messageBuilder.getBuffer();
+    }
+
+    @Override
+    public long estimatedBytes() {
+        if (childBase == null) return 0;
+        return 4L * childBase.length + 4L * counts.length + 8L * sampleX.length + 8L * sampleY.length + 8L * errors.length;
+    }
+
+    private void printTiming() {
+        System.out.println("[Total Time] " + timing.get("total") + " seconds.");
+    }
+}
@@ -10,9 +10,9 @@ import static util.Mercator.*;
 
 public class RAQuadTreeSnap implements IAlgorithm {
 
-    public static double highestLevelNodeDimension;
+    public double highestLevelNodeDimension;
     // resolution of each node (similar to a tile in map systems), e.g. 512
-    public static int oneNodeResolution;
+    public int oneNodeResolution;
 
     public class QuadTree {
         // Store count of the sub-tree
@@ -557,15 +557,16 @@ public class RAQuadTreeSnap implements IAlgorithm {
     QuadTree quadTree;
     int totalNumberOfPoints = 0;
     int totalStoredNumberOfPoints = 0;
-    static long nodesCount = 0; // count quad-tree nodes
+    long nodesCount = 0; // count quad-tree nodes
+    static final int NODE_BYTES = 160; // estimated heap size of one node (QuadTree + sample + counts of levels)
 
     /** For stats */
-    static int[] numberOfNodesStoppedAtLevels; // for current query, count how many nodes stopped at a certain level
-    static int[] numberOfSamplesStoppedAtLevels; // for current query, count how many samples stopped at a certain level
+    int[] numberOfNodesStoppedAtLevels; // for current query, count how many nodes stopped at a certain level
+    int[] numberOfSamplesStoppedAtLevels; // for current query, count how many samples stopped at a certain level
 
     /** For estimate profit */
-    static int exactLevel; // for current query, the exact visualization appears at which level
-    static int resX, resY; // for current query, the resolution
+    int exactLevel; // for current query, the exact visualization appears at which level
+    int resX, resY; // for current query, the resolution
     static Random random = new Random();
 
 
@@ -595,7 +596,7 @@ public class RAQuadTreeSnap implements IAlgorithm {
         MyMemory.printMemory();
     }
 
-    public void load(List<Point> points) {
+    public synchronized void load(List<Point> points) {
         System.out.println("[RA-QuadTree-Snap] loading " + points.size() + " points ... ...");
 
         MyTimer.startTimer();
@@ -651,11 +652,11 @@ public class RAQuadTreeSnap implements IAlgorithm {
     }
 
     @Override
-    public void finishLoad() {
+    public synchronized void finishLoad() {
 
     }
 
-    public static double estimateProfit(Point sample, int[] counts) {
+    public double estimateProfit(Point sample, int[] counts) {
 
         int exactSampleSize = Math.max(counts[exactLevel], 1);
 
@@ -671,7 +672,7 @@ public class RAQuadTreeSnap implements IAlgorithm {
         return random.nextFloat() < probability;
     }
 
-    public byte[] answerQuery(Query query) {
+    public synchronized byte[] answerQuery(Query query) {
         double lng0 = query.bbox[0];
         double lat0 = query.bbox[1];
         double lng1 = query.bbox[2];
@@ -732,7 +733,7 @@ public class RAQuadTreeSnap implements IAlgorithm {
         MyTimer.stopTimer();
         double treeTime = MyTimer.durationSeconds();
 
-        MyTimer.temporaryTimer.put("treeTime", treeTime);
+        MyTimer.temporaryTimer().put("treeTime", treeTime);
         System.out.println("[RA-QuadTree-Snap] tree search got " + points.size() + " data points.");
         System.out.println("[RA-QuadTree-Snap] tree search time: " + treeTime + " seconds.");
 
@@ -749,7 +750,7 @@ public class RAQuadTreeSnap implements IAlgorithm {
         }
         MyTimer.stopTimer();
         double buildBinaryTime = MyTimer.durationSeconds();
-        MyTimer.temporaryTimer.put("aggregateTime", buildBinaryTime);
+        MyTimer.temporaryTimer().put("aggregateTime", buildBinaryTime);
 
         System.out.println("[RA-QuadTree-Snap] build binary result with  " + resultSize + " points.");
         System.out.println("[RA-QuadTree-Snap] build binary result time: " + buildBinaryTime + " seconds.");
@@ -768,15 +769,20 @@ public class RAQuadTreeSnap implements IAlgorithm {
     }
 
     @Override
-    public boolean readFromFile(String fileName) {
+    public synchronized boolean readFromFile(String fileName) {
         return false;
     }
 
     @Override
-    public boolean writeToFile(String fileName) {
+    public synchronized boolean writeToFile(String fileName) {
         return false;
     }
 
+    @Override
+    public long estimatedBytes() {
+        return nodesCount * NODE_BYTES;
+    }
+
     private void printTiming() {
         System.out.println("[Total Time] " + timing.get("total") + " seconds.");
     }
@@ -15,13 +15,13 @@ import static util.Mercator.*;
 
 public class RAQuadTreeV0 implements IAlgorithm {
 
-    public static double highestLevelNodeDimension;
+    public double highestLevelNodeDimension;
     // resolution of each node (similar to a tile in map systems), e.g. 512
-    public static int oneNodeResolution;
+    public int oneNodeResolution;
 
-    public static IRenderer renderer;
+    public IRenderer renderer;
 
-    public static IErrorMetric errorMetric;
+    public IErrorMetric errorMetric;
 
     public class QuadTree {
         // Store count of the sub-tree
@@ -1125,18 +1125,19 @@ public class RAQuadTreeV0 implements IAlgorithm {
     QuadTree quadTree;
     int totalNumberOfPoints = 0;
     int totalStoredNumberOfPoints = 0;
-    static long nodesCount = 0; // count quad-tree nodes
+    long nodesCount = 0; // count quad-tree nodes
+    static final int NODE_BYTES = 96; // estimated heap size of one node (QuadTree + list of samples)
 
     /** For query stats */
-    static int[] numberOfNodesStoppedAtLevels; // for current query, count how many nodes stopped at a certain level
-    static int[] numberOfSamplesStoppedAtLevels; // for current query, count how many samples stopped at a certain level
+    int[] numberOfNodesStoppedAtLevels; // for current query, count how many nodes stopped at a certain level
+    int[] numberOfSamplesStoppedAtLevels; // for current query, count how many samples stopped at a certain level
 
     /** For query time analysis */
-    static Map<String, Double> times; // for current query, store times for different parts
+    Map<String, Double> times; // for current query, store times for different parts
 
     /** For query estimate benefit */
-    static int exactLevel; // for current query, the exact visualization appears at which level
-    static int resX, resY; // for current query, the resolution
+    int exactLevel; // for current query, the exact visualization appears at which level
+    int resX, resY; // for current query, the resolution
 
     static Random random = new Random();
 
@@ -1173,7 +1174,7 @@ public class RAQuadTreeV0 implements IAlgorithm {
         MyMemory.printMemory();
     }
 
-    public void load(List<Point> points) {
+    public synchronized void load(List<Point> points) {
         System.out.println("[RA-QuadTree] loading " + points.size() + " points ... ...");
 
         MyTimer.startTimer();
@@ -1229,11 +1230,11 @@ public class RAQuadTreeV0 implements IAlgorithm {
     }
 
     @Override
-    public void finishLoad() {
+    public synchronized void finishLoad() {
 
     }
 
-    public static double estimateProfit(List<Point> samples, int[] counts) {
+    public double estimateProfit(List<Point> samples, int[] counts) {
 
         int exactSampleSize = Math.max(counts[exactLevel], 1);
 
@@ -1245,8 +1246,8 @@ public class RAQuadTreeV0 implements IAlgorithm {
         return estimatedProfit;
     }
 
-    public static int estimatePerfectSampleSize(QuadTree _node, double _ncX, double _ncY, double _nhalfDimension,
-                                                double _rcX, double _rcY, double _rhalfWidth, double _rhalfHeight) {
+    public int estimatePerfectSampleSize(QuadTree _node, double _ncX, double _ncY, double _nhalfDimension,
+                                         double _rcX, double _rcY, double _rhalfWidth, double _rhalfHeight) {
         //--time--//
         long startTime = System.nanoTime();
 
@@ -1304,7 +1305,7 @@ public class RAQuadTreeV0 implements IAlgorithm {
         return perfectSampleSize;
     }
 
-    public static int targetSampleSize(int _perfectResultSize, int _totalPerfectResultSize, int _totalSampleSize) {
+    public int targetSampleSize(int _perfectResultSize, int _totalPerfectResultSize, int _totalSampleSize) {
         if (_perfectResultSize == 0) return 0;
         // as long as perfect level result size for this node is not 0, sample at least one point for this node
         return Math.max((int) Math.round(((double) _perfectResultSize / (double) _totalPerfectResultSize) * _totalSampleSize), 1);
@@ -1317,7 +1318,7 @@ public class RAQuadTreeV0 implements IAlgorithm {
      * @param _targetSampleSize
      * @return null - if given _node has no samples at all or sample size is not enough for target sample size
      */
-    public static List<Point> sampleOnNode(QuadTree _node, int _targetSampleSize) {
+    public List<Point> sampleOnNode(QuadTree _node, int _targetSampleSize) {
         if (_targetSampleSize == 0) return null;
         if (_node.samples == null) {
             return null;
@@ -1351,9 +1352,9 @@ public class RAQuadTreeV0 implements IAlgorithm {
      * @param _availableSampleSize - available extra sample size
      * @return
      */
-    public static void estimateBenefit(QuadTree.QEntry _entry,
-                                       double _rcX, double _rcY, double _rhalfWidth, double _rhalfHeight,
-                                       double _rPixelScale, int _availableSampleSize) {
+    public void estimateBenefit(QuadTree.QEntry _entry,
+                                double _rcX, double _rcY, double _rhalfWidth, double _rhalfHeight,
+                                double _rPixelScale, int _availableSampleSize) {
         //--time--//
         long startTime = System.nanoTime();
 
@@ -1585,7 +1586,7 @@ public class RAQuadTreeV0 implements IAlgorithm {
         return random.nextFloat() < probability;
     }
 
-    public byte[] answerQuery(Query query) {
+    public synchronized byte[] answerQuery(Query query) {
         double lng0 = query.bbox[0];
         double lat0 = query.bbox[1];
         double lng1 = query.bbox[2];
@@ -1674,7 +1675,7 @@ public class RAQuadTreeV0 implements IAlgorithm {
         MyTimer.stopTimer();
         double treeTime = MyTimer.durationSeconds();
 
-        MyTimer.temporaryTimer.put("treeTime", treeTime);
+        MyTimer.temporaryTimer().put("treeTime", treeTime);
         System.out.println("[RA-QuadTree] tree search got " + points.size() + " data points.");
         System.out.println("[RA-QuadTree] tree search time: " + treeTime + " seconds.");
         System.out.println("[RA-QuadTree]     - estimate benefit time: " + times.get("estimateBenefit") + " seconds.");
@@ -1696,7 +1697,7 @@ public class RAQuadTreeV0 implements IAlgorithm {
         }
         MyTimer.stopTimer();
         double buildBinaryTime = MyTimer.durationSeconds();
-        MyTimer.temporaryTimer.put("aggregateTime", buildBinaryTime);
+        MyTimer.temporaryTimer().put("aggregateTime", buildBinaryTime);
 
         System.out.println("[RA-QuadTree] build binary result with  " + resultSize + " points.");
         System.out.println("[RA-QuadTree] build binary result time: " + buildBinaryTime + " seconds.");
@@ -1715,15 +1716,22 @@ public class RAQuadTreeV0 implements IAlgorithm {
     }
 
     @Override
-    public boolean readFromFile(String fileName) {
+    public synchronized boolean readFromFile(String fileName) {
         return false;
     }
 
     @Override
-    public boolean writeToFile(String fileName) {
+    public synchronized boolean writeToFile(String fileName) {
         return false;
     }
 
+    @Override
+    public long estimatedBytes() {
+        // every leaf keeps a rendering of oneNodeResolution pixels (RGB)
+        long leaves = nodesCount * 3 / 4 + 1;
+        return nodesCount * NODE_BYTES + leaves * oneNodeResolution * oneNodeResolution * 3;
+    }
+
     private void printTiming() {
         System.out.println("[Total Time] " + timing.get("total") + " seconds.");
     }
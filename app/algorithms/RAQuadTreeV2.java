@@ -11,11 +11,11 @@ import static util.Mercator.*;
 
 public class RAQuadTreeV2 implements IAlgorithm {
 
-    public static double highestLevelNodeDimension;
+    public double highestLevelNodeDimension;
 
-    public static IRenderer renderer;
+    public IRenderer renderer;
 
-    public static IErrorMetric errorMetric;
+    public IErrorMetric errorMetric;
 
     public class QuadTree {
         public Point sample;
@@ -369,13 +369,14 @@ public class RAQuadTreeV2 implements IAlgorithm {
     QuadTree quadTree;
     int totalNumberOfPoints = 0;
     int totalStoredNumberOfPoints = 0;
-    static long nodesCount = 0; // count quad-tree nodes
+    long nodesCount = 0; // count quad-tree nodes
+    static final int NODE_BYTES = 80; // estimated heap size of one node (QuadTree + sample)
 
     /** For query stats */
-    static int[] numberOfNodesStoppedAtLevels; // for current query, count how many nodes stopped at a certain level
+    int[] numberOfNodesStoppedAtLevels; // for current query, count how many nodes stopped at a certain level
 
     /** For query time analysis */
-    static Map<String, Double> times; // for current query, store times for different parts
+    Map<String, Double> times; // for current query, store times for different parts
 
     //-Timing-//
     static final boolean keepTiming = true;
@@ -434,7 +435,7 @@ public class RAQuadTreeV2 implements IAlgorithm {
         MyMemory.printMemory();
     }
 
-    public void load(List<Point> points) {
+    public synchronized void load(List<Point> points) {
         System.out.println("[RA-QuadTree] loading " + points.size() + " points ... ...");
 
         MyTimer.startTimer();
@@ -482,13 +483,13 @@ public class RAQuadTreeV2 implements IAlgorithm {
     }
 
     @Override
-    public void finishLoad() {
+    public synchronized void finishLoad() {
 
     }
 
-    public static double computeBenefit(QuadTree _node, double _ncX, double _ncY, double _nhalfDimension,
-                                        double _rcX, double _rcY, double _rhalfWidth, double _rhalfHeight,
-                                        double _rPixelScale) {
+    public double computeBenefit(QuadTree _node, double _ncX, double _ncY, double _nhalfDimension,
+                                 double _rcX, double _rcY, double _rhalfWidth, double _rhalfHeight,
+                                 double _rPixelScale) {
 
         //--time--//
         long startTime = System.nanoTime();
@@ -670,7 +671,7 @@ public class RAQuadTreeV2 implements IAlgorithm {
         return benefit;
     }
 
-    public byte[] answerQuery(Query query) {
+    public synchronized byte[] answerQuery(Query query) {
         double lng0 = query.bbox[0];
         double lat0 = query.bbox[1];
         double lng1 = query.bbox[2];
@@ -720,7 +721,7 @@ public class RAQuadTreeV2 implements IAlgorithm {
         MyTimer.stopTimer();
         double treeTime = MyTimer.durationSeconds();
 
-        MyTimer.temporaryTimer.put("treeTime", treeTime);
+        MyTimer.temporaryTimer().put("treeTime", treeTime);
         System.out.println("[RA-QuadTree] tree search got " + points.size() + " data points.");
         System.out.println("[RA-QuadTree] tree search time: " + treeTime + " seconds.");
         System.out.println("[RA-QuadTree]     - compute benefit time: " + times.get("computeBenefit") + " seconds.");
@@ -740,7 +741,7 @@ public class RAQuadTreeV2 implements IAlgorithm {
         }
         MyTimer.stopTimer();
         double buildBinaryTime = MyTimer.durationSeconds();
-        MyTimer.temporaryTimer.put("aggregateTime", buildBinaryTime);
+        MyTimer.temporaryTimer().put("aggregateTime", buildBinaryTime);
 
         System.out.println("[RA-QuadTree] build binary result with  " + resultSize + " points.");
         System.out.println("[RA-QuadTree] build binary result time: " + buildBinaryTime + " seconds.");
@@ -756,15 +757,20 @@ public class RAQuadTreeV2 implements IAlgorithm {
     }
 
     @Override
-    public boolean readFromFile(String fileName) {
+    public synchronized boolean readFromFile(String fileName) {
         return false;
     }
 
     @Override
-    public boolean writeToFile(String fileName) {
+    public synchronized boolean writeToFile(String fileName) {
         return false;
     }
 
+    @Override
+    public long estimatedBytes() {
+        return nodesCount * NODE_BYTES;
+    }
+
     private void printTiming() {
         System.out.println("[Total Time] " + timing.get("total") + " seconds.");
     }
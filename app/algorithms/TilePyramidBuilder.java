@@ -0,0 +1,66 @@
+package algorithms;
+
+import util.Constants;
+import util.RAQTSnapshot;
+import util.TilePyramid;
+
+import java.io.IOException;
+
+/**
+ * Offline job materializing the sample tiles of a finished tree into a tile pyramid file
+ *
+ * usage: TilePyramidBuilder <raqt | raqtd> <snapshot file> <pyramid file> [maxZoom] [sampleBudget]
+ *
+ *  - configuration of the tree (max zoom, domain, rendering and error function) is taken from the snapshot header
+ */
+public class TilePyramidBuilder {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("usage: TilePyramidBuilder <raqt | raqtd> <snapshot file> <pyramid file> [maxZoom] [sampleBudget]");
+            return;
+        }
+        String algorithm = args[0];
+        String snapshotFileName = args[1];
+        String pyramidFileName = args[2];
+        int maxZoom = args.length > 3? Integer.valueOf(args[3]): Constants.PYRAMID_MAX_ZOOM;
+        int sampleBudget = args.length > 4? Integer.valueOf(args[4]): Constants.PYRAMID_SAMPLE_BUDGET;
+
+        RAQTSnapshot snapshot = RAQTSnapshot.open(snapshotFileName, false);
+        System.out.println("[TilePyramidBuilder] snapshot header = " + snapshot.describe());
+        Constants.MAX_ZOOM = snapshot.maxZoom;
+        Constants.MIN_X = snapshot.minX;
+        Constants.MIN_Y = snapshot.minY;
+        Constants.MAX_X = snapshot.maxX;
+        Constants.MAX_Y = snapshot.maxY;
+        Constants.RENDERING_FUNCTION = snapshot.renderingFunction;
+        Constants.ERROR_FUNCTION = snapshot.errorFunction;
+        snapshot.close();
+
+        TilePyramid.TileSource source;
+        boolean success;
+        switch (algorithm.toLowerCase()) {
+            case "raquadtreedistance":
+            case "raqtd":
+                RAQuadTreeDistance raQuadTreeDistance = new RAQuadTreeDistance();
+                success = raQuadTreeDistance.readFromFile(snapshotFileName);
+                source = raQuadTreeDistance;
+                break;
+            case "raquadtree":
+            case "raqt":
+                RAQuadTree raQuadTree = new RAQuadTree();
+                success = raQuadTree.readFromFile(snapshotFileName);
+                source = raQuadTree;
+                break;
+            default:
+                System.out.println("[TilePyramidBuilder] algorithm " + algorithm + " does not support tile pyramids.");
+                return;
+        }
+        if (!success) {
+            System.out.println("[TilePyramidBuilder] read tree from " + snapshotFileName + " failed!");
+            return;
+        }
+
+        TilePyramid.build(source, pyramidFileName, maxZoom, sampleBudget);
+    }
+}
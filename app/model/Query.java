@@ -1,7 +1,10 @@
 package model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class Query {
     public String key; // key of the algorithm
@@ -13,4 +16,9 @@ public class Query {
     public String aggregator; // for DataAggregator and QuadTreeAggregators: "gl-pixel" / "leaflet" / "deck-gl"
     public int sampleSize; // target sample size, <=0 - disabled
     public int samplePercentage; // target sample percentage (1 ~ 100), 0 - disabled
+    public int timeBudget; // latency budget in milliseconds, the search returns the best cut reached so far at the deadline, <= 0 - disabled
+    public String mode; // "viewport" (default) - answer the bbox as one range / "tile" - answer the 256px tiles covering the bbox
+                        // "pyramid" - answer with precomputed tiles / "refine" - stream a coarse result and refine it
+    @JsonIgnore
+    public AtomicBoolean cancelled; // set when a newer query of the same key supersedes this one, the search stops expanding nodes, null - never cancelled
 }
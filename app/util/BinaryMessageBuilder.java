@@ -10,8 +10,8 @@ public class BinaryMessageBuilder {
 
     /**
      * ---- header ----
-     *  progress  totalTime  treeTime   aggTime  msgType
-     * | 4 BYTES | 8 BYTES | 8 BYTES | 8 BYTES | 4 BYTES |
+     *  progress  totalTime  treeTime   aggTime  msgType   flags
+     * | 4 BYTES | 8 BYTES | 8 BYTES | 8 BYTES | 4 BYTES | 4 BYTES |
      * ---- binary data payload ----
      *   lat1      lng1      lat2      lng2      ...
      * | 8 BYTES | 8 BYTES | 8 BYTES | 8 BYTES | ...
@@ -75,6 +75,75 @@ public class BinaryMessageBuilder {
         count++;
     }
 
+    /**
+     * clear the data payload and flags, keep the buffer for the next message
+     */
+    public void reset() {
+        count = 0;
+        setFlags(0);
+    }
+
+    /**
+     * @param flags - bits of Constants.FLAG_*
+     */
+    public void setFlags(int flags) {
+        int j = Constants.FLAGS_OFFSET;
+        buffer[j+0] = (byte)((flags >> 24) & 0xff);
+        buffer[j+1] = (byte)((flags >> 16) & 0xff);
+        buffer[j+2] = (byte)((flags >>  8) & 0xff);
+        buffer[j+3] = (byte)((flags >>  0) & 0xff);
+    }
+
+    /**
+     * @param message - a binary message
+     * @return flags in the header of the message
+     */
+    public static int getFlags(byte[] message) {
+        int j = Constants.FLAGS_OFFSET;
+        return ((message[j+0] & 0xff) << 24) | ((message[j+1] & 0xff) << 16) | ((message[j+2] & 0xff) << 8) | (message[j+3] & 0xff);
+    }
+
+    /**
+     * @return a copy of the message with exact size of the data payload, this builder can still be reused
+     */
+    public byte[] copyBuffer() {
+        byte[] newBuffer = new byte[Constants.HEADER_SIZE + (DOUBLE_BYTES + DOUBLE_BYTES) * count];
+        System.arraycopy(buffer, 0, newBuffer, 0, newBuffer.length);
+        return newBuffer;
+    }
+
+    /**
+     * @return a copy of the data payload only, without header
+     */
+    public byte[] copyPayload() {
+        byte[] payload = new byte[(DOUBLE_BYTES + DOUBLE_BYTES) * count];
+        System.arraycopy(buffer, Constants.HEADER_SIZE, payload, 0, payload.length);
+        return payload;
+    }
+
+    /**
+     * append records encoded by another builder
+     *
+     * @param payload - from copyPayload()
+     */
+    public void addPayload(byte[] payload) {
+        int records = payload.length / (DOUBLE_BYTES + DOUBLE_BYTES);
+        if (count + records >= capacity) {
+            int newCapacity = capacity;
+            while (count + records >= newCapacity) newCapacity *= 2;
+            byte[] newBuffer = new byte[Constants.HEADER_SIZE + (DOUBLE_BYTES + DOUBLE_BYTES) * newCapacity];
+            System.arraycopy(buffer, 0, newBuffer, 0, Constants.HEADER_SIZE + (DOUBLE_BYTES + DOUBLE_BYTES) * count);
+            capacity = newCapacity;
+            buffer = newBuffer;
+        }
+        System.arraycopy(payload, 0, buffer, Constants.HEADER_SIZE + (DOUBLE_BYTES + DOUBLE_BYTES) * count, payload.length);
+        count += records;
+    }
+
+    public int size() {
+        return count;
+    }
+
     public byte[] getBuffer() {
         // shrink buffer to exact the size of data payload
         byte[] newBuffer = new byte[Constants.HEADER_SIZE + (DOUBLE_BYTES + DOUBLE_BYTES) * count];
@@ -0,0 +1,350 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * IDataSource keeping the batches fetched from another source in a directory on local disk,
+ * so that a later fetch of the same batch, e.g. by a build of the same keyword with another algorithm,
+ * streams from disk instead of the source
+ *
+ *  - a batch is the result of one call, keyed by (table, keyword, start, end, endInclusive), start = end = -1 for all points
+ *  - a batch is written to a temporary file while it is streamed to the consumer,
+ *    and renamed into place only if the source succeeded, so a failed or cancelled fetch leaves nothing behind
+ *  - at most maxBytes of batch files are kept, the least recently used files are deleted first,
+ *    files found in the directory at start are ordered by their modification time
+ *  - batches are never invalidated, the source table is assumed not to change
+ *
+ * ---- batch file ----
+ *   magic     version   keyLength  key (UTF-8)
+ * | 4 BYTES | 4 BYTES | 4 BYTES  | keyLength BYTES |
+ * ---- chunks ----
+ *   size      x                y
+ * | 4 BYTES | size * 8 BYTES | size * 8 BYTES |
+ * ---- trailer ----
+ *   -1        count
+ * | 4 BYTES | 8 BYTES |
+ */
+public class CachedDataSource implements IDataSource {
+
+    public static final int MAGIC = 0x52414243; // "RABC"
+    public static final int VERSION = 1;
+    static final String SUFFIX = ".batch";
+
+    IDataSource source;
+    String table;
+    File directory;
+    long maxBytes;
+    /**
+     * index of the batch files in the directory, in least recently used order
+     * key - file name
+     * value - file size in bytes
+     */
+    LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    long bytes = 0; // guarded by files
+    AtomicLong hits = new AtomicLong();
+    AtomicLong misses = new AtomicLong();
+    AtomicLong temporaries = new AtomicLong();
+
+    /**
+     * @param source - fetches the batches not in the cache
+     * @param table - name of the data of the source, part of the key of a batch
+     * @param directory - created if it does not exist
+     * @param maxBytes
+     */
+    public CachedDataSource(IDataSource source, String table, String directory, long maxBytes) {
+        this.source = source;
+        this.table = table;
+        this.directory = new File(directory);
+        this.maxBytes = maxBytes;
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            System.out.println("[CachedDataSource] create directory " + directory + " failed!");
+        }
+        File[] existing = this.directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (existing != null) {
+            Arrays.sort(existing, Comparator.comparingLong(File::lastModified));
+            synchronized (files) {
+                for (File file: existing) {
+                    files.put(file.getName(), file.length());
+                    bytes += file.length();
+                }
+                evict();
+            }
+        }
+        System.out.println("[CachedDataSource] " + describeCache());
+    }
+
+    @Override
+    public long streamPoints(String keyword, Date start, Date end, boolean endInclusive, Consumer<PointBuffer> consumer) {
+        String key = table + "|" + keyword + "|" + start.getTime() + "|" + end.getTime() + "|" + endInclusive;
+        return stream(key, consumer, sink -> source.streamPoints(keyword, start, end, endInclusive, sink));
+    }
+
+    @Override
+    public long streamPoints(String keyword, Consumer<PointBuffer> consumer) {
+        String key = table + "|" + keyword + "|-1|-1|true";
+        return stream(key, consumer, sink -> source.streamPoints(keyword, sink));
+    }
+
+    interface Fetch {
+        long fetch(Consumer<PointBuffer> sink);
+    }
+
+    long stream(String key, Consumer<PointBuffer> consumer, Fetch fetch) {
+        String fileName = fileName(key);
+        File file = new File(directory, fileName);
+        boolean cached;
+        synchronized (files) {
+            cached = files.get(fileName) != null;
+        }
+        if (cached) {
+            long count = read(file, key, consumer);
+            if (count >= 0) {
+                hits.incrementAndGet();
+                file.setLastModified(System.currentTimeMillis());
+                return count;
+            }
+            System.out.println("[CachedDataSource] batch file " + fileName + " is unreadable, removed!");
+            remove(fileName);
+            // the consumer has got a part of the batch, fetching it again would repeat points
+            if (count == -2) {
+                return -1;
+            }
+        }
+        misses.incrementAndGet();
+        return write(file, key, consumer, fetch);
+    }
+
+    // readable prefix of the key, and the hash of the whole key
+    static String fileName(String key) {
+        String[] parts = key.split("\\|");
+        String keyword = parts[1].replaceAll("[^A-Za-z0-9_-]", "_");
+        if (keyword.length() > 32) keyword = keyword.substring(0, 32);
+        return parts[0].replaceAll("[^A-Za-z0-9_-]", "_") + "-" + keyword + "-" + parts[2] + "-" + parts[3]
+                + (parts[4].equals("true")? "": "-e") + "-" + String.format("%08x", key.hashCode()) + SUFFIX;
+    }
+
+    /**
+     * stream the batch file to the consumer
+     *
+     *  - the chunk sizes and the trailer are checked first, so that a file of another key or an incomplete file
+     *    hands nothing to the consumer
+     *
+     * @param file
+     * @param key
+     * @param consumer
+     * @return number of points, -1 - if the file is missing, of another key or incomplete,
+     *         -2 - if reading failed after some chunks were handed to the consumer
+     */
+    long read(File file, String key, Consumer<PointBuffer> consumer) {
+        long count = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(3 * Constants.INT_BYTES);
+            if (!readFully(channel, header) || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return -1;
+            }
+            int keyLength = header.getInt();
+            if (keyLength < 0 || keyLength > channel.size()) {
+                return -1;
+            }
+            ByteBuffer keyBytes = ByteBuffer.allocate(keyLength);
+            if (!readFully(channel, keyBytes) || !new String(keyBytes.array(), StandardCharsets.UTF_8).equals(key)) {
+                return -1;
+            }
+            long chunksStart = channel.position();
+            long trailerStart = channel.size() - Constants.INT_BYTES - Constants.DOUBLE_BYTES;
+            ByteBuffer sizeBuffer = ByteBuffer.allocate(Constants.INT_BYTES);
+            long pos = chunksStart, total = 0;
+            while (pos < trailerStart) {
+                sizeBuffer.clear();
+                if (!readFully(channel.position(pos), sizeBuffer)) return -1;
+                int size = sizeBuffer.getInt();
+                if (size <= 0) return -1;
+                total += size;
+                pos += Constants.INT_BYTES + 2L * size * Constants.DOUBLE_BYTES;
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(Constants.INT_BYTES + Constants.DOUBLE_BYTES);
+            if (pos != trailerStart || !readFully(channel.position(trailerStart), trailer)
+                    || trailer.getInt() != -1 || trailer.getLong() != total) {
+                return -1;
+            }
+
+            channel.position(chunksStart);
+            while (channel.position() < trailerStart) {
+                sizeBuffer.clear();
+                if (!readFully(channel, sizeBuffer)) return count > 0? -2: -1;
+                int size = sizeBuffer.getInt();
+                ByteBuffer data = ByteBuffer.allocate(2 * size * Constants.DOUBLE_BYTES);
+                if (!readFully(channel, data)) return count > 0? -2: -1;
+                PointBuffer chunk = new PointBuffer(size);
+                data.asDoubleBuffer().get(chunk.xs, 0, size);
+                data.position(size * Constants.DOUBLE_BYTES);
+                data.asDoubleBuffer().get(chunk.ys, 0, size);
+                chunk.size = size;
+                count += size;
+                consumer.accept(chunk);
+            }
+            return count;
+        } catch (IOException e) {
+            return count > 0? -2: -1;
+        }
+    }
+
+    static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) return false;
+        }
+        buffer.flip();
+        return true;
+    }
+
+    /**
+     * fetch the batch from the source to the consumer, and write it to the batch file at the same time
+     *
+     * @param file
+     * @param key
+     * @param consumer
+     * @param fetch
+     * @return number of points, -1 - if the source failed
+     */
+    long write(File file, String key, Consumer<PointBuffer> consumer, Fetch fetch) {
+        File temporary = new File(directory, file.getName() + "." + temporaries.incrementAndGet() + ".tmp");
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(temporary, "rw");
+            raf.setLength(0);
+        } catch (IOException e) {
+            System.out.println("[CachedDataSource] create " + temporary + " failed, fetching without cache!");
+            return fetch.fetch(consumer);
+        }
+        boolean[] failed = {false};
+        long count = -1;
+        try (FileChannel channel = raf.getChannel()) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer header = ByteBuffer.allocate(3 * Constants.INT_BYTES + keyBytes.length);
+            header.putInt(MAGIC).putInt(VERSION).putInt(keyBytes.length).put(keyBytes);
+            header.flip();
+            writeFully(channel, header);
+            count = fetch.fetch(chunk -> {
+                if (!failed[0]) {
+                    try {
+                        ByteBuffer data = ByteBuffer.allocate(Constants.INT_BYTES + 2 * chunk.size() * Constants.DOUBLE_BYTES);
+                        data.putInt(chunk.size());
+                        data.asDoubleBuffer().put(chunk.xs, 0, chunk.size());
+                        data.position(Constants.INT_BYTES + chunk.size() * Constants.DOUBLE_BYTES);
+                        data.asDoubleBuffer().put(chunk.ys, 0, chunk.size());
+                        data.position(0);
+                        writeFully(channel, data);
+                    } catch (IOException e) {
+                        // e.g. the disk is full, the batch is still handed to the consumer
+                        failed[0] = true;
+                    }
+                }
+                consumer.accept(chunk);
+            });
+            if (count >= 0 && !failed[0]) {
+                ByteBuffer trailer = ByteBuffer.allocate(Constants.INT_BYTES + Constants.DOUBLE_BYTES);
+                trailer.putInt(-1).putLong(count);
+                trailer.flip();
+                writeFully(channel, trailer);
+            }
+        } catch (IOException e) {
+            failed[0] = true;
+        } finally {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                failed[0] = true;
+            }
+            // count is -1 if the source failed or the fetch was cancelled by an exception of the consumer
+            if (count < 0 || failed[0] || !add(temporary, file)) {
+                temporary.delete();
+            }
+        }
+        return count;
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // rename the written temporary file into place and evict the least recently used files over the size
+    boolean add(File temporary, File file) {
+        long size = temporary.length();
+        if (size > maxBytes) {
+            return false;
+        }
+        try {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("[CachedDataSource] move " + temporary + " to " + file + " failed!");
+            return false;
+        }
+        synchronized (files) {
+            Long previous = files.put(file.getName(), size);
+            bytes += size - (previous == null? 0: previous);
+            evict();
+        }
+        return true;
+    }
+
+    // guarded by files
+    void evict() {
+        List<String> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Long>> iterator = files.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            bytes -= entry.getValue();
+            evicted.add(entry.getKey());
+            iterator.remove();
+        }
+        for (String fileName: evicted) {
+            new File(directory, fileName).delete();
+        }
+    }
+
+    void remove(String fileName) {
+        synchronized (files) {
+            Long size = files.remove(fileName);
+            if (size != null) {
+                bytes -= size;
+            }
+        }
+        new File(directory, fileName).delete();
+    }
+
+    String describeCache() {
+        synchronized (files) {
+            return "batch cache " + directory + ": " + files.size() + " batches, " + bytes / 1024 / 1024 + " MB of "
+                    + maxBytes / 1024 / 1024 + " MB, " + hits.get() + " hits, " + misses.get() + " misses";
+        }
+    }
+
+    @Override
+    public String describe() {
+        return source.describe() + " with " + describeCache();
+    }
+
+    @Override
+    public void close() {
+        source.close();
+    }
+}
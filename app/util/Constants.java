@@ -21,6 +21,16 @@ public class Constants {
     public static String DB_USERNAME;
     public static String DB_PASSWORD;
     public static String DB_TABLENAME;
+    public static int DB_FETCH_SIZE = 10000; // rows per round trip of a streaming query
+    public static int DB_CHUNK_SIZE = 100000; // points per chunk a streaming query hands to the algorithm
+    public static int DB_POOL_SIZE = 8; // connections of the PostgreSQLPool shared by all builds
+
+    // Data source of builds
+    public static String DATA_SOURCE = "postgresql"; // postgresql / file
+    public static String DATA_SOURCE_FILE; // PointStore file of the file source
+    public static boolean BATCH_CACHE = true; // keep batches fetched from PostgreSQL on local disk
+    public static String BATCH_CACHE_DIRECTORY = "batch-cache";
+    public static long BATCH_CACHE_SIZE = 2048; // MB
 
     // Serialization
     public static String DATASET_NAME;
@@ -29,9 +39,12 @@ public class Constants {
     public static int DOUBLE_BYTES = 8;
     public static int INT_BYTES = 4;
     // ---- header ----
-    //  progress  totalTime  treeTime   aggTime  msgType   binary data payload
-    // | 4 BYTES | 8 BYTES | 8 BYTES | 8 BYTES | 4 BYTES | ...
-    public static int HEADER_SIZE = INT_BYTES + 3 * DOUBLE_BYTES + INT_BYTES;
+    //  progress  totalTime  treeTime   aggTime  msgType   flags     binary data payload
+    // | 4 BYTES | 8 BYTES | 8 BYTES | 8 BYTES | 4 BYTES | 4 BYTES | ...
+    public static int HEADER_SIZE = INT_BYTES + 3 * DOUBLE_BYTES + INT_BYTES + INT_BYTES;
+    public static int FLAGS_OFFSET = INT_BYTES + 3 * DOUBLE_BYTES + INT_BYTES;
+    public static int FLAG_PARTIAL = 1; // the search stopped at the time budget of the query
+    public static int FLAG_DELTA = 2; // samples of the message add to the previous messages of the same query
     public static int MSG_TYPE = 0;
 
     public static int RADIUS_IN_PIXELS = 1;
@@ -49,4 +62,53 @@ public class Constants {
 
     public static String RENDERING_FUNCTION = "snap";
     public static String ERROR_FUNCTION = "L1";
+
+    // Bulk loading a batch of points sorted by Morton code into the quadtrees
+    public static boolean BULK_LOAD = true;
+    // Load a key without a file at once (by a binary COPY export from PostgreSQL) instead of progressively by time slices
+    public static boolean LOAD_COPY = false;
+
+    // Parallel build of RAQuadTree subtrees
+    public static boolean BUILD_PARALLEL = false;
+    public static int BUILD_PARALLEL_DEPTH = 3; // subtrees below this level are built by one task
+    public static int BUILD_PARALLEL_THRESHOLD = 10000; // ranges with fewer points are built by one task
+    public static int BUILD_THREADS = 0; // 0 - number of available processors
+    public static int BUILD_SELECT_THRESHOLD = 100000; // subtrees with fewer points select samples in one task
+
+    // Lazy loading of RAQuadTree snapshots
+    public static boolean LAZY_LOADING = false;
+    public static int LAZY_EAGER_LEVELS = 12;
+    public static int LAZY_PAGE_LEVELS = 4;
+    public static long LAZY_MEMORY_BUDGET = 256; // MB per tree
+
+    // Result cache of answerQuery
+    public static boolean RESULT_CACHE = true;
+    public static long RESULT_CACHE_SIZE = 64; // MB per algorithm
+
+    // Tile mode of RAQuadTree queries
+    public static boolean TILE_PARALLEL = true; // compute missing tiles of a query in parallel
+    public static long TILE_CACHE_SIZE = 64; // MB per tree
+
+    // Tile pyramids of hot keywords
+    public static boolean PYRAMID_BUILD = false; // build the pyramid after a progressive load is done
+    public static int PYRAMID_MAX_ZOOM = 6;
+    public static int PYRAMID_SAMPLE_BUDGET = 4000; // per tile
+
+    // Parallel best first search of RAQuadTree
+    public static boolean SEARCH_PARALLEL = false;
+    public static int SEARCH_PARALLEL_FRONTIER = 64; // number of subtrees searched in parallel
+    public static int SEARCH_PARALLEL_THRESHOLD = 10000; // queries with smaller sample size are searched sequentially
+    public static double SEARCH_PARALLEL_MAX_SKEW = 2.0; // largest / smallest benefit the subtrees stop at, otherwise searched sequentially
+    public static double SEARCH_PARALLEL_MAX_SPARE = 0.01; // budget left unused by subtrees / sample size, otherwise searched sequentially
+
+    // Refinement mode of RAQuadTree queries
+    public static int REFINE_FIRST_FRAME = 5000; // samples of the first frame, each next frame doubles the result
+
+    // Shared algorithms of all sessions
+    public static long REGISTRY_MEMORY_BUDGET = 4096; // MB, estimated heap size of all algorithms kept in the registry
+    public static long REGISTRY_HALF_LIFE = 600; // seconds, hits of an algorithm count half after this long
+
+    // Builds of algorithms off the agents
+    public static int DISPATCHER_THREADS = 2; // builds running at the same time, 0 - number of available processors
+    public static int DISPATCHER_QUEUE = 16; // builds waiting for a thread, more builds are rejected
 }
@@ -0,0 +1,40 @@
+package util;
+
+import java.util.Date;
+import java.util.function.Consumer;
+
+/**
+ * Source of the points loaded into algorithms, filtered by keyword and time range
+ *
+ *  - points are handed to the consumer in chunks, every chunk is a new PointBuffer of at most Constants.DB_CHUNK_SIZE points,
+ *    so the consumer may keep it
+ *  - a source is shared by all builds, its methods may be called by several threads at the same time
+ *  - keyword "%" - all points
+ */
+public interface IDataSource {
+
+    /**
+     * stream points for given keyword and time range to the consumer chunk by chunk
+     *
+     * @param keyword
+     * @param start
+     * @param end
+     * @param endInclusive - false - [start, end), so that adjacent sub-ranges do not share points
+     * @param consumer
+     * @return number of points, -1 - if the source failed
+     */
+    long streamPoints(String keyword, Date start, Date end, boolean endInclusive, Consumer<PointBuffer> consumer);
+
+    /**
+     * stream all points for given keyword to the consumer chunk by chunk, in no particular order
+     *
+     * @param keyword
+     * @param consumer
+     * @return number of points, -1 - if the source failed
+     */
+    long streamPoints(String keyword, Consumer<PointBuffer> consumer);
+
+    String describe();
+
+    void close();
+}
@@ -0,0 +1,155 @@
+package util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A file mapped into memory through FileChannel.map,
+ * addressed by long offsets so that files larger than 2GB can be mapped.
+ *
+ *  - the file is mapped as chunks of CHUNK_SIZE bytes,
+ *    each chunk overlaps the next one by OVERLAP bytes,
+ *    so that any primitive value starting inside a chunk is fully readable from that chunk
+ */
+public class MappedFile {
+
+    static final int CHUNK_BITS = 30;
+    static final long CHUNK_SIZE = 1L << CHUNK_BITS; // 1GB
+    static final int OVERLAP = 64;
+
+    RandomAccessFile file;
+    FileChannel channel;
+    MappedByteBuffer[] chunks;
+    long size;
+
+    /**
+     * map an existing file read-only
+     *
+     * @param fileName
+     * @throws IOException
+     */
+    public MappedFile(String fileName) throws IOException {
+        this.file = new RandomAccessFile(fileName, "r");
+        this.channel = file.getChannel();
+        this.size = channel.size();
+        this.map(FileChannel.MapMode.READ_ONLY);
+    }
+
+    /**
+     * create (or truncate) a file of given size and map it read-write
+     *
+     * @param fileName
+     * @param size
+     * @throws IOException
+     */
+    public MappedFile(String fileName, long size) throws IOException {
+        this.file = new RandomAccessFile(fileName, "rw");
+        this.file.setLength(0);
+        this.file.setLength(size);
+        this.channel = file.getChannel();
+        this.size = size;
+        this.map(FileChannel.MapMode.READ_WRITE);
+    }
+
+    void map(FileChannel.MapMode mode) throws IOException {
+        int numberOfChunks = (int) ((size + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+        chunks = new MappedByteBuffer[Math.max(numberOfChunks, 1)];
+        for (int i = 0; i < chunks.length; i ++) {
+            long start = (long) i << CHUNK_BITS;
+            long length = Math.min(size - start, CHUNK_SIZE + OVERLAP);
+            chunks[i] = channel.map(mode, start, Math.max(length, 0));
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int getInt(long pos) {
+        return chunks[(int) (pos >>> CHUNK_BITS)].getInt((int) (pos & (CHUNK_SIZE - 1)));
+    }
+
+    public long getLong(long pos) {
+        return chunks[(int) (pos >>> CHUNK_BITS)].getLong((int) (pos & (CHUNK_SIZE - 1)));
+    }
+
+    public double getDouble(long pos) {
+        return chunks[(int) (pos >>> CHUNK_BITS)].getDouble((int) (pos & (CHUNK_SIZE - 1)));
+    }
+
+    public byte get(long pos) {
+        return chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & (CHUNK_SIZE - 1)));
+    }
+
+    public void get(long pos, byte[] dst, int offset, int length) {
+        for (int i = 0; i < length; i ++) {
+            dst[offset + i] = get(pos + i);
+        }
+    }
+
+    public void putInt(long pos, int value) {
+        chunks[(int) (pos >>> CHUNK_BITS)].putInt((int) (pos & (CHUNK_SIZE - 1)), value);
+    }
+
+    public void putLong(long pos, long value) {
+        chunks[(int) (pos >>> CHUNK_BITS)].putLong((int) (pos & (CHUNK_SIZE - 1)), value);
+    }
+
+    public void putDouble(long pos, double value) {
+        chunks[(int) (pos >>> CHUNK_BITS)].putDouble((int) (pos & (CHUNK_SIZE - 1)), value);
+    }
+
+    public void put(long pos, byte value) {
+        chunks[(int) (pos >>> CHUNK_BITS)].put((int) (pos & (CHUNK_SIZE - 1)), value);
+    }
+
+    public void put(long pos, byte[] src, int offset, int length) {
+        for (int i = 0; i < length; i ++) {
+            put(pos + i, src[offset + i]);
+        }
+    }
+
+    /**
+     * CRC32 checksum of bytes [from, to) of this file
+     *
+     * @param from
+     * @param to
+     * @return
+     */
+    public long checksum(long from, long to) {
+        CRC32 crc = new CRC32();
+        long pos = from;
+        while (pos < to) {
+            int chunk = (int) (pos >>> CHUNK_BITS);
+            int offset = (int) (pos & (CHUNK_SIZE - 1));
+            int length = (int) Math.min(to - pos, CHUNK_SIZE - offset);
+            ByteBuffer slice = chunks[chunk].duplicate();
+            slice.limit(offset + length);
+            slice.position(offset);
+            crc.update(slice);
+            pos += length;
+        }
+        return crc.getValue();
+    }
+
+    public void force() {
+        for (MappedByteBuffer chunk: chunks) {
+            chunk.force();
+        }
+    }
+
+    /**
+     * close the file channel,
+     * the mapped chunks stay valid until they are garbage collected
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        channel.close();
+        file.close();
+    }
+}
@@ -0,0 +1,90 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Binary max-heap of (double key, int value) pairs in two primitive arrays
+ *
+ *  - the arrays only grow, clear() keeps them, so a reused heap does not allocate
+ *  - sifting follows java.util.PriorityQueue, so entries with equal keys
+ *    come out in the same order as from a PriorityQueue ordered by descending key
+ */
+public class MaxHeap {
+
+    double[] keys;
+    int[] values;
+    int size;
+
+    public MaxHeap(int initialCapacity) {
+        keys = new double[Math.max(initialCapacity, 1)];
+        values = new int[Math.max(initialCapacity, 1)];
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void push(double key, int value) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        // sift up
+        int k = size ++;
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            if (keys[parent] >= key) break;
+            keys[k] = keys[parent];
+            values[k] = values[parent];
+            k = parent;
+        }
+        keys[k] = key;
+        values[k] = value;
+    }
+
+    public double peekKey() {
+        return keys[0];
+    }
+
+    public int peekValue() {
+        return values[0];
+    }
+
+    /**
+     * remove the entry with the largest key
+     *
+     * @return value of the removed entry
+     */
+    public int pop() {
+        int result = values[0];
+        int n = -- size;
+        if (n > 0) {
+            double key = keys[n];
+            int value = values[n];
+            // sift down
+            int k = 0;
+            int half = n >>> 1;
+            while (k < half) {
+                int child = 2 * k + 1;
+                int right = child + 1;
+                if (right < n && keys[right] > keys[child]) child = right;
+                if (keys[child] <= key) break;
+                keys[k] = keys[child];
+                values[k] = values[child];
+                k = child;
+            }
+            keys[k] = key;
+            values[k] = value;
+        }
+        return result;
+    }
+}
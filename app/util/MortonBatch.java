@@ -0,0 +1,93 @@
+package util;
+
+import model.Point;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static util.Mercator.*;
+
+/**
+ * A batch of points prepared for bulk loading into a quadtree
+ *
+ *  - points are projected by lngLatToXY and kept in their original order,
+ *  - Morton keys of the points inside the domain of the quadtree are sorted,
+ *    so the points of any quadtree node are one contiguous range of keys
+ */
+public class MortonBatch {
+
+    public Point[] points; // projected points in original order
+    public long[] keys; // sorted Morton keys of the points inside the domain
+    public int[] order; // order[i] is the index in points of keys[i]
+    public int size; // number of points inside the domain
+
+    /**
+     * @param lngLatPoints
+     * @param minX - domain of the quadtree
+     * @param minY
+     * @param maxX
+     * @param maxY
+     * @return
+     */
+    public static MortonBatch build(List<Point> lngLatPoints, double minX, double minY, double maxX, double maxY) {
+        MortonBatch batch = new MortonBatch();
+        int n = lngLatPoints.size();
+        Point[] points = lngLatPoints.toArray(new Point[n]);
+        long[] allKeys = new long[n];
+        boolean[] inside = new boolean[n];
+        double width = maxX - minX;
+        double height = maxY - minY;
+        // project the points and compute their keys, in parallel for large batches
+        IntStream indexes = IntStream.range(0, n);
+        if (n >= MortonCode.PARALLEL_SORT_THRESHOLD) indexes = indexes.parallel();
+        indexes.forEach(i -> {
+            Point point = lngLatToXY(points[i]);
+            double x = (point.getX() - minX) / width;
+            double y = (point.getY() - minY) / height;
+            // points outside the domain are skipped by the quadtree
+            if (x >= 0.0 && y >= 0.0 && x < 1.0 && y < 1.0) {
+                allKeys[i] = MortonCode.encode(x, y);
+                inside[i] = true;
+            }
+        });
+        batch.points = points;
+
+        long[] keys = new long[n];
+        int[] positions = new int[n];
+        int size = 0;
+        for (int i = 0; i < n; i ++) {
+            if (inside[i]) {
+                keys[size] = allKeys[i];
+                positions[size] = i;
+                size ++;
+            }
+        }
+        batch.size = size;
+        batch.keys = size == n? keys: Arrays.copyOf(keys, size);
+        int[] order = MortonCode.sort(batch.keys);
+        // map sorted positions back to indexes of points
+        for (int k = 0; k < size; k ++) {
+            order[k] = positions[order[k]];
+        }
+        batch.order = order;
+        return batch;
+    }
+
+    /**
+     * @param from
+     * @param to
+     * @return index in points of the earliest point among keys[from, to)
+     */
+    public int first(int from, int to) {
+        int first = order[from];
+        for (int k = from + 1; k < to; k ++) {
+            if (order[k] < first) first = order[k];
+        }
+        return first;
+    }
+
+    public Point point(int k) {
+        return points[order[k]];
+    }
+}
@@ -0,0 +1,165 @@
+package util;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Z-order (Morton) keys of points in the unit square [0, 1) x [0, 1)
+ *
+ *  - x and y are quantized into BITS bits each, the key interleaves them with y in the higher bit,
+ *    so the 2 bits of a key at a quadtree level are (y >= cY, x >= cX),
+ *    i.e. 0 - NW, 1 - NE, 2 - SW, 3 - SE, the same order as the children of the quadtrees
+ *  - quadrant of a point at level l is decided by bit (BITS - 1 - l) of the quantized coordinates,
+ *    which is exactly the comparison against the center of a dyadic node,
+ *    so keys can only split nodes down to level MAX_LEVEL
+ *  - keys are compared as unsigned longs
+ */
+public class MortonCode {
+
+    public static final int BITS = 32;
+    public static final int MAX_LEVEL = BITS - 1;
+    static final double SCALE = 4294967296.0; // 2^32
+
+    // batches larger than this are sorted in parallel
+    public static int PARALLEL_SORT_THRESHOLD = 1 << 16;
+
+    /**
+     * @param x - in [0, 1)
+     * @param y - in [0, 1)
+     * @return
+     */
+    public static long encode(double x, double y) {
+        return spread((long) (x * SCALE)) | (spread((long) (y * SCALE)) << 1);
+    }
+
+    // spread the lower 32 bits of v to the even bits of the result
+    static long spread(long v) {
+        v &= 0x00000000FFFFFFFFL;
+        v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+        v = (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+        v = (v | (v << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | (v << 2)) & 0x3333333333333333L;
+        v = (v | (v << 1)) & 0x5555555555555555L;
+        return v;
+    }
+
+    /**
+     * @param key
+     * @param level - level of the node being split, root is level 0
+     * @return quadrant of the key among the children of a node at given level
+     */
+    public static int quadrant(long key, int level) {
+        return (int) (key >>> (2 * (MAX_LEVEL - level))) & 3;
+    }
+
+    /**
+     * @param keys - sorted, and keys[from, to) are all in the same node at given level
+     * @param from
+     * @param to
+     * @param level
+     * @param quadrant
+     * @return the first index in [from, to) whose quadrant at given level is >= given quadrant
+     */
+    public static int lowerBound(long[] keys, int from, int to, int level, int quadrant) {
+        int low = from, high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (quadrant(keys[mid], level) < quadrant) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Sort keys (unsigned) in place with a radix sort,
+     * in parallel if there are more than PARALLEL_SORT_THRESHOLD keys
+     *
+     * @param keys
+     * @return order - order[i] is the original index of keys[i] after sorting,
+     *                 equal keys keep their original order
+     */
+    public static int[] sort(long[] keys) {
+        int n = keys.length;
+        int[] order = new int[n];
+        for (int i = 0; i < n; i ++) order[i] = i;
+        long[] tmpKeys = new long[n];
+        int[] tmpOrder = new int[n];
+
+        if (n < PARALLEL_SORT_THRESHOLD) {
+            radixSort(keys, order, tmpKeys, tmpOrder, 0, n, 8);
+            return order;
+        }
+
+        // partition by the highest byte in parallel, then sort each bucket by the lower 7 bytes in parallel
+        int chunks = Math.min(Runtime.getRuntime().availableProcessors() * 4, n / 1024 + 1);
+        int chunkSize = (n + chunks - 1) / chunks;
+        int[][] histograms = new int[chunks][256];
+        IntStream.range(0, chunks).parallel().forEach(c -> {
+            int[] histogram = histograms[c];
+            for (int i = c * chunkSize, end = Math.min(n, (c + 1) * chunkSize); i < end; i ++) {
+                histogram[(int) (keys[i] >>> 56)] ++;
+            }
+        });
+        int[] bucketStarts = new int[257];
+        int offset = 0;
+        for (int b = 0; b < 256; b ++) {
+            bucketStarts[b] = offset;
+            for (int c = 0; c < chunks; c ++) {
+                int count = histograms[c][b];
+                histograms[c][b] = offset;
+                offset += count;
+            }
+        }
+        bucketStarts[256] = n;
+        IntStream.range(0, chunks).parallel().forEach(c -> {
+            int[] offsets = histograms[c];
+            for (int i = c * chunkSize, end = Math.min(n, (c + 1) * chunkSize); i < end; i ++) {
+                int position = offsets[(int) (keys[i] >>> 56)] ++;
+                tmpKeys[position] = keys[i];
+                tmpOrder[position] = order[i];
+            }
+        });
+        System.arraycopy(tmpKeys, 0, keys, 0, n);
+        System.arraycopy(tmpOrder, 0, order, 0, n);
+        IntStream.range(0, 256).parallel().forEach(b ->
+                radixSort(keys, order, tmpKeys, tmpOrder, bucketStarts[b], bucketStarts[b + 1], 7));
+        return order;
+    }
+
+    /**
+     * LSD radix sort of keys[from, to) by their lowest given number of bytes,
+     * tmpKeys[from, to) and tmpOrder[from, to) are used as the buffer
+     */
+    static void radixSort(long[] keys, int[] order, long[] tmpKeys, int[] tmpOrder, int from, int to, int bytes) {
+        if (to - from < 2) return;
+        long[] srcKeys = keys, dstKeys = tmpKeys;
+        int[] srcOrder = order, dstOrder = tmpOrder;
+        int[] histogram = new int[256];
+        for (int pass = 0; pass < bytes; pass ++) {
+            int shift = pass * 8;
+            Arrays.fill(histogram, 0);
+            for (int i = from; i < to; i ++) {
+                histogram[(int) (srcKeys[i] >>> shift) & 0xFF] ++;
+            }
+            // skip the byte if all keys share it
+            if (histogram[(int) (srcKeys[from] >>> shift) & 0xFF] == to - from) continue;
+            int offset = from;
+            for (int b = 0; b < 256; b ++) {
+                int count = histogram[b];
+                histogram[b] = offset;
+                offset += count;
+            }
+            for (int i = from; i < to; i ++) {
+                int position = histogram[(int) (srcKeys[i] >>> shift) & 0xFF] ++;
+                dstKeys[position] = srcKeys[i];
+                dstOrder[position] = srcOrder[i];
+            }
+            long[] swapKeys = srcKeys; srcKeys = dstKeys; dstKeys = swapKeys;
+            int[] swapOrder = srcOrder; srcOrder = dstOrder; dstOrder = swapOrder;
+        }
+        if (srcKeys != keys) {
+            System.arraycopy(srcKeys, from, keys, from, to - from);
+            System.arraycopy(srcOrder, from, order, from, to - from);
+        }
+    }
+}
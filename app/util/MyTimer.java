@@ -2,24 +2,36 @@ package util;
 
 import java.util.*;
 
+/**
+ * Timers of the current thread,
+ * queries answered by different threads at the same time do not see each other's timings
+ */
 public class MyTimer {
-    public static Map<String, List<Double>> progressTimer = new HashMap<>();
-    public static Map<String, Double> temporaryTimer = new HashMap<>();
-    private static Stack<Long> startTimes = new Stack<>();
-    private static Queue<Double> durations = new LinkedList<>();
+    private static ThreadLocal<Map<String, List<Double>>> progressTimers = ThreadLocal.withInitial(HashMap::new);
+    private static ThreadLocal<Map<String, Double>> temporaryTimers = ThreadLocal.withInitial(HashMap::new);
+    private static ThreadLocal<Stack<Long>> startTimes = ThreadLocal.withInitial(Stack::new);
+    private static ThreadLocal<Queue<Double>> durations = ThreadLocal.withInitial(LinkedList::new);
+
+    public static Map<String, List<Double>> progressTimer() {
+        return progressTimers.get();
+    }
+
+    public static Map<String, Double> temporaryTimer() {
+        return temporaryTimers.get();
+    }
 
     public static void startTimer() {
         long startTime = System.nanoTime();
-        startTimes.push(startTime);
+        startTimes.get().push(startTime);
     }
 
     public static void stopTimer() {
         long endTime = System.nanoTime();
-        long startTime = startTimes.pop();
-        durations.add((double) (endTime - startTime) / 1000000000.0);
+        long startTime = startTimes.get().pop();
+        durations.get().add((double) (endTime - startTime) / 1000000000.0);
     }
 
     public static double durationSeconds() {
-        return durations.poll();
+        return durations.get().poll();
     }
 }
@@ -0,0 +1,144 @@
+package util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetch of one time range split into sub-ranges, streamed at the same time from an IDataSource
+ *
+ *  - sub-ranges are [start, end) but the last one, which includes end, so together they are the rows of
+ *    "create_at between start and end" without duplicates
+ *  - ordered - chunks are returned sub-range by sub-range in time order, each sub-range buffers at most capacity chunks,
+ *    unordered - chunks are returned as they arrive, all sub-ranges share one buffer of capacity chunks
+ *  - a sub-range blocks while its buffer is full
+ *  - a sub-range the source fails to stream (or that stops without its END) fails the whole fetch,
+ *    next throws instead of returning the chunks of the other sub-ranges as if the range was complete
+ */
+public class ParallelFetch {
+
+    // marks the end of a sub-range in a buffer
+    static final PointBuffer END = new PointBuffer(0);
+
+    boolean ordered;
+    int parts;
+    List<BlockingQueue<PointBuffer>> buffers = new ArrayList<>();
+    List<Future<?>> fetches = new ArrayList<>();
+    int ended = 0; // sub-ranges returned up to their END
+    volatile String failure; // the first sub-range failed, null - none
+
+    /**
+     * start fetching the sub-ranges on the executor
+     *
+     * @param executor - runs one sub-range per thread
+     * @param source
+     * @param keyword - "%" - all rows
+     * @param start
+     * @param end
+     * @param parts - number of sub-ranges
+     * @param ordered
+     * @param capacity - chunks buffered per sub-range (ordered) or in total (unordered)
+     */
+    public ParallelFetch(ExecutorService executor, IDataSource source, String keyword, Date start, Date end, int parts, boolean ordered, int capacity) {
+        this.ordered = ordered;
+        this.parts = Math.max(parts, 1);
+        for (int i = 0; i < (ordered? this.parts: 1); i ++) {
+            buffers.add(new ArrayBlockingQueue<>(Math.max(capacity, 1)));
+        }
+        long step = (end.getTime() - start.getTime()) / this.parts;
+        for (int i = 0; i < this.parts; i ++) {
+            Date from = new Date(start.getTime() + i * step);
+            boolean last = i == this.parts - 1;
+            Date to = last? end: new Date(start.getTime() + (i + 1) * step);
+            BlockingQueue<PointBuffer> buffer = buffers.get(ordered? i: 0);
+            fetches.add(executor.submit(() -> {
+                long count;
+                try {
+                    count = source.streamPoints(keyword, from, to, last, chunk -> put(buffer, chunk));
+                } catch (CancellationException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    fail(from, to, e.toString());
+                    throw e;
+                }
+                if (count < 0) {
+                    fail(from, to, source.describe() + " failed");
+                    return null;
+                }
+                buffer.put(END);
+                return null;
+            }));
+        }
+    }
+
+    static void put(BlockingQueue<PointBuffer> buffer, PointBuffer chunk) {
+        try {
+            buffer.put(chunk);
+        } catch (InterruptedException e) {
+            throw new CancellationException("fetch is cancelled");
+        }
+    }
+
+    synchronized void fail(Date from, Date to, String reason) {
+        if (failure == null) {
+            failure = "fetch of sub-range [" + from + ", " + to + "] failed: " + reason;
+        }
+    }
+
+    /**
+     * @return next chunk, null - if all sub-ranges are done
+     * @throws InterruptedException
+     * @throws IOException - if a sub-range failed, the chunks returned so far are not the whole range
+     */
+    public PointBuffer next() throws InterruptedException, IOException {
+        while (ended < parts) {
+            if (failure != null) {
+                throw new IOException(failure);
+            }
+            BlockingQueue<PointBuffer> buffer = buffers.get(ordered? ended: 0);
+            PointBuffer chunk = buffer.poll(100, TimeUnit.MILLISECONDS);
+            if (chunk == null) {
+                // sub-ranges stopped without END, failed or cancelled
+                if (stopped()) {
+                    chunk = buffer.poll();
+                    if (chunk == null) {
+                        throw new IOException(failure != null? failure: "fetch of a sub-range is cancelled");
+                    }
+                }
+                else {
+                    continue;
+                }
+            }
+            if (chunk == END) {
+                ended ++;
+                continue;
+            }
+            return chunk;
+        }
+        return null;
+    }
+
+    // the sub-ranges the buffer being drained is waiting for are all done
+    boolean stopped() {
+        if (ordered) {
+            return fetches.get(ended).isDone();
+        }
+        for (Future<?> fetch: fetches) {
+            if (!fetch.isDone()) return false;
+        }
+        return true;
+    }
+
+    public void cancel() {
+        for (Future<?> fetch: fetches) {
+            fetch.cancel(true);
+        }
+    }
+}
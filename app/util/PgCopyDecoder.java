@@ -0,0 +1,160 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Decoder of the PostgreSQL binary COPY format of (x float8, y float8) tuples,
+ * as the OutputStream of CopyManager.copyOut
+ *
+ *  - bytes written by the driver are parsed in place, tuples are decoded straight into PointBuffer chunks,
+ *    only a tuple split between two writes is carried over to the next write
+ *  - format: 11 bytes signature "PGCOPY\n\377\r\n\0", int32 flags, int32 length of the header extension, extension,
+ *            tuples of int16 number of fields and (int32 length, bytes) per field (length -1 - NULL),
+ *            int16 -1 trailer, all big endian
+ *  - tuples with a NULL coordinate are skipped
+ */
+public class PgCopyDecoder extends OutputStream {
+
+    static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0};
+
+    ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+    boolean header = false; // header is parsed
+    boolean trailer = false; // trailer is parsed
+
+    Consumer<PointBuffer> consumer;
+    int chunkSize;
+    PointBuffer chunk;
+    long count = 0;
+    long skipped = 0;
+
+    /**
+     * @param consumer - receives a new chunk of at most chunkSize points each time
+     * @param chunkSize
+     */
+    public PgCopyDecoder(Consumer<PointBuffer> consumer, int chunkSize) {
+        this.consumer = consumer;
+        this.chunkSize = chunkSize;
+        this.chunk = new PointBuffer(chunkSize);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                // a header extension or a tuple larger than the buffer
+                ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            int n = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, n);
+            offset += n;
+            length -= n;
+            buffer.flip();
+            parse();
+            buffer.compact();
+        }
+    }
+
+    // parse complete tuples from the flipped buffer, leave an incomplete one in it
+    void parse() throws IOException {
+        if (!header) {
+            if (buffer.remaining() < SIGNATURE.length + 8) return;
+            int start = buffer.position();
+            for (byte b: SIGNATURE) {
+                if (buffer.get() != b) throw new IOException("not a binary COPY stream");
+            }
+            buffer.getInt(); // flags
+            int extension = buffer.getInt();
+            if (buffer.remaining() < extension) {
+                buffer.position(start);
+                return;
+            }
+            buffer.position(buffer.position() + extension);
+            header = true;
+        }
+        while (!trailer && buffer.remaining() >= 2) {
+            int start = buffer.position();
+            short fields = buffer.getShort();
+            if (fields == -1) {
+                trailer = true;
+                buffer.position(buffer.limit());
+                return;
+            }
+            double x = 0.0, y = 0.0;
+            boolean isNull = fields < 2;
+            boolean complete = true;
+            for (int i = 0; i < fields; i ++) {
+                if (buffer.remaining() < 4) {
+                    complete = false;
+                    break;
+                }
+                int length = buffer.getInt();
+                if (length == -1) {
+                    isNull = true;
+                    continue;
+                }
+                if (buffer.remaining() < length) {
+                    complete = false;
+                    break;
+                }
+                if (i < 2 && length == 8) {
+                    if (i == 0) x = buffer.getDouble();
+                    else y = buffer.getDouble();
+                }
+                else {
+                    if (i < 2) isNull = true;
+                    buffer.position(buffer.position() + length);
+                }
+            }
+            if (!complete) {
+                buffer.position(start);
+                return;
+            }
+            if (isNull) {
+                skipped ++;
+                continue;
+            }
+            chunk.add(x, y);
+            if (chunk.isFull()) {
+                flush();
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (chunk.size() > 0) {
+            count += chunk.size();
+            consumer.accept(chunk);
+            chunk = new PointBuffer(chunkSize);
+        }
+    }
+
+    /**
+     * hand the last chunk to the consumer
+     *
+     * @return number of points decoded
+     * @throws IOException - if the stream ended before the trailer
+     */
+    public long finish() throws IOException {
+        flush();
+        if (!trailer) {
+            throw new IOException("binary COPY stream ended without trailer, " + count + " points decoded");
+        }
+        return count;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+}
@@ -0,0 +1,60 @@
+package util;
+
+import model.Point;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A fixed capacity chunk of points kept in primitive coordinate arrays
+ *
+ *  - rows streamed from the database are added without boxing,
+ *  - as a List for IAlgorithm.load, a Point instance is created only when an element is read
+ */
+public class PointBuffer extends AbstractList<Point> implements RandomAccess {
+
+    double[] xs;
+    double[] ys;
+    int size = 0;
+
+    public PointBuffer(int capacity) {
+        this.xs = new double[capacity];
+        this.ys = new double[capacity];
+    }
+
+    public void add(double x, double y) {
+        xs[size] = x;
+        ys[size] = y;
+        size ++;
+    }
+
+    public boolean isFull() {
+        return size == xs.length;
+    }
+
+    public double getX(int index) {
+        return xs[index];
+    }
+
+    public double getY(int index) {
+        return ys[index];
+    }
+
+    @Override
+    public Point get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index = " + index + ", size = " + size);
+        }
+        return new Point(xs[index], ys[index]);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,277 @@
+package util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Local columnar point store (.points file), an IDataSource read through MappedFile
+ *
+ * ---- header (HEADER_SIZE bytes) ----
+ *   magic     version   count     capacity  keywordsCount  minTime   maxTime   reserved
+ * | 4 BYTES | 4 BYTES | 8 BYTES | 8 BYTES | 4 BYTES      | 8 BYTES | 8 BYTES | 20 BYTES |
+ * ---- columns (capacity values each, the first count are valid) ----
+ *   x         y         time      keywords
+ * | 8 BYTES | 8 BYTES | 8 BYTES | 8 BYTES |
+ * ---- dictionary (keywordsCount entries) ----
+ *   length    UTF-8 bytes of the keyword
+ * | 4 BYTES | length BYTES |
+ *
+ *  - rows are sorted by time (milliseconds since epoch), so a time range is found by binary search
+ *  - keywords is the set of ids of the keywords the row matches, bit i - keyword i of the dictionary,
+ *    so a store has at most MAX_KEYWORDS keywords
+ *  - a keyword not in the dictionary can not be filtered by, streaming it fails
+ *  - written once by PointStoreExporter (or append / finish), read by several threads at the same time
+ */
+public class PointStore implements IDataSource {
+
+    public static final int MAGIC = 0x52415053; // "RAPS"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int MAX_KEYWORDS = 64;
+    static final int COLUMNS = 4;
+
+    public long count;
+    public long capacity;
+    public long minTime = Long.MAX_VALUE;
+    public long maxTime = Long.MIN_VALUE;
+    public String[] keywords;
+    Map<String, Integer> keywordIds = new HashMap<>();
+
+    String fileName;
+    MappedFile file;
+    long xStart, yStart, timeStart, keywordsStart;
+
+    PointStore() {
+    }
+
+    /**
+     * Create a new store file of given capacity, rows are added afterwards with append, then finish
+     *
+     * @param fileName
+     * @param capacity - maximum number of rows
+     * @param keywords - dictionary of the keyword ids, at most MAX_KEYWORDS
+     * @return
+     * @throws IOException
+     */
+    public static PointStore create(String fileName, long capacity, List<String> keywords) throws IOException {
+        if (keywords.size() > MAX_KEYWORDS) {
+            throw new IOException("a point store has at most " + MAX_KEYWORDS + " keywords, got " + keywords.size() + ".");
+        }
+        PointStore store = new PointStore();
+        store.fileName = fileName;
+        store.capacity = capacity;
+        store.count = 0;
+        store.setKeywords(keywords.toArray(new String[0]));
+        long size = store.dictionaryStart();
+        byte[][] names = new byte[keywords.size()][];
+        for (int i = 0; i < names.length; i ++) {
+            names[i] = keywords.get(i).getBytes(StandardCharsets.UTF_8);
+            size += Constants.INT_BYTES + names[i].length;
+        }
+        store.file = new MappedFile(fileName, size);
+        long pos = store.dictionaryStart();
+        for (byte[] name: names) {
+            store.file.putInt(pos, name.length);
+            store.file.put(pos + Constants.INT_BYTES, name, 0, name.length);
+            pos += Constants.INT_BYTES + name.length;
+        }
+        return store;
+    }
+
+    /**
+     * Open an existing store file and validate its header
+     *
+     * @param fileName
+     * @return
+     * @throws IOException - if the file is not a valid store
+     */
+    public static PointStore open(String fileName) throws IOException {
+        PointStore store = new PointStore();
+        store.fileName = fileName;
+        store.file = new MappedFile(fileName);
+        MappedFile file = store.file;
+        if (file.size() < HEADER_SIZE || file.getInt(0) != MAGIC) {
+            file.close();
+            throw new IOException("not a point store file: " + fileName);
+        }
+        int version = file.getInt(4);
+        if (version != VERSION) {
+            file.close();
+            throw new IOException("unsupported point store version " + version + " of file: " + fileName);
+        }
+        store.count = file.getLong(8);
+        store.capacity = file.getLong(16);
+        int keywordsCount = file.getInt(24);
+        store.minTime = file.getLong(28);
+        store.maxTime = file.getLong(36);
+        if (store.count > store.capacity || keywordsCount < 0 || keywordsCount > MAX_KEYWORDS
+                || file.size() < store.dictionaryStart()) {
+            file.close();
+            throw new IOException("point store file " + fileName + " is truncated or corrupted.");
+        }
+        String[] keywords = new String[keywordsCount];
+        long pos = store.dictionaryStart();
+        for (int i = 0; i < keywordsCount; i ++) {
+            int length = pos + Constants.INT_BYTES <= file.size()? file.getInt(pos): -1;
+            if (length < 0 || pos + Constants.INT_BYTES + length > file.size()) {
+                file.close();
+                throw new IOException("point store file " + fileName + " is truncated, dictionary entry " + i + " is incomplete.");
+            }
+            byte[] name = new byte[length];
+            file.get(pos + Constants.INT_BYTES, name, 0, length);
+            keywords[i] = new String(name, StandardCharsets.UTF_8);
+            pos += Constants.INT_BYTES + length;
+        }
+        store.setKeywords(keywords);
+        return store;
+    }
+
+    void setKeywords(String[] keywords) {
+        this.keywords = keywords;
+        for (int i = 0; i < keywords.length; i ++) {
+            keywordIds.put(keywords[i].toLowerCase(), i);
+        }
+        xStart = HEADER_SIZE;
+        yStart = xStart + capacity * Constants.DOUBLE_BYTES;
+        timeStart = yStart + capacity * Constants.DOUBLE_BYTES;
+        keywordsStart = timeStart + capacity * Constants.DOUBLE_BYTES;
+    }
+
+    long dictionaryStart() {
+        return HEADER_SIZE + capacity * COLUMNS * Constants.DOUBLE_BYTES;
+    }
+
+    /**
+     * @param keyword
+     * @return id of the keyword in the dictionary, -1 - if it is not in the dictionary
+     */
+    public int keywordId(String keyword) {
+        Integer id = keywordIds.get(keyword.toLowerCase());
+        return id == null? -1: id;
+    }
+
+    /**
+     * append a row, rows must be appended in time order
+     *
+     * @param x
+     * @param y
+     * @param time - milliseconds since epoch
+     * @param keywords - bit i set if the row matches keyword i of the dictionary
+     */
+    public void append(double x, double y, long time, long keywords) {
+        if (count == capacity) {
+            throw new IllegalStateException("point store " + fileName + " is full, capacity = " + capacity + ".");
+        }
+        if (count > 0 && time < maxTime) {
+            throw new IllegalArgumentException("rows of a point store must be appended in time order, " + time + " < " + maxTime + ".");
+        }
+        file.putDouble(xStart + count * Constants.DOUBLE_BYTES, x);
+        file.putDouble(yStart + count * Constants.DOUBLE_BYTES, y);
+        file.putLong(timeStart + count * Constants.DOUBLE_BYTES, time);
+        file.putLong(keywordsStart + count * Constants.DOUBLE_BYTES, keywords);
+        minTime = Math.min(minTime, time);
+        maxTime = time;
+        count ++;
+    }
+
+    /**
+     * write the header and flush the file to disk, the store can be read afterwards
+     */
+    public void finish() {
+        file.putInt(0, MAGIC);
+        file.putInt(4, VERSION);
+        file.putLong(8, count);
+        file.putLong(16, capacity);
+        file.putInt(24, keywords.length);
+        file.putLong(28, minTime);
+        file.putLong(36, maxTime);
+        file.force();
+    }
+
+    /**
+     * @param time
+     * @param inclusive - true - first row after time, false - first row at or after time
+     * @return index of the first row of the time column after (or at) given time
+     */
+    long lowerBound(long time, boolean inclusive) {
+        long low = 0, high = count;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            long value = file.getLong(timeStart + mid * Constants.DOUBLE_BYTES);
+            if (value < time || (inclusive && value == time)) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public long streamPoints(String keyword, Date start, Date end, boolean endInclusive, Consumer<PointBuffer> consumer) {
+        return scan(keyword, lowerBound(start.getTime(), false), lowerBound(end.getTime(), endInclusive), consumer);
+    }
+
+    @Override
+    public long streamPoints(String keyword, Consumer<PointBuffer> consumer) {
+        return scan(keyword, 0, count, consumer);
+    }
+
+    /**
+     * hand rows [from, to) matching the keyword to the consumer
+     *
+     * @param keyword
+     * @param from
+     * @param to
+     * @param consumer
+     * @return number of points, -1 - if the keyword is not in the dictionary
+     */
+    long scan(String keyword, long from, long to, Consumer<PointBuffer> consumer) {
+        boolean all = keyword.equals("%");
+        int id = all? 0: keywordId(keyword);
+        if (id < 0) {
+            System.err.println("[PointStore] keyword [" + keyword + "] is not in the dictionary of " + fileName + ".");
+            return -1;
+        }
+        long mask = 1L << id;
+        long count = 0;
+        PointBuffer chunk = new PointBuffer(Constants.DB_CHUNK_SIZE);
+        for (long i = from; i < to; i ++) {
+            if (!all && (file.getLong(keywordsStart + i * Constants.DOUBLE_BYTES) & mask) == 0) {
+                continue;
+            }
+            chunk.add(file.getDouble(xStart + i * Constants.DOUBLE_BYTES), file.getDouble(yStart + i * Constants.DOUBLE_BYTES));
+            if (chunk.isFull()) {
+                count += chunk.size();
+                consumer.accept(chunk);
+                chunk = new PointBuffer(Constants.DB_CHUNK_SIZE);
+            }
+        }
+        if (chunk.size() > 0) {
+            count += chunk.size();
+            consumer.accept(chunk);
+        }
+        return count;
+    }
+
+    @Override
+    public String describe() {
+        return "point store " + fileName + " (" + count + " points, time [" + new Date(minTime) + ", " + new Date(maxTime) + "], "
+                + keywords.length + " keywords)";
+    }
+
+    @Override
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
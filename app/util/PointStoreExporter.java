@@ -0,0 +1,123 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Offline job exporting a PostgreSQL table into a local columnar point store (.points file), see PointStore
+ *
+ * usage: PointStoreExporter <url> <username> <password> <tablename> <store file> <keyword,keyword,...>
+ *
+ *  - the table is read once in time order through a server side cursor,
+ *    each row is matched against all keywords of the dictionary (to_tsquery('english', keyword)) by the database
+ *  - rows without create_at are not exported
+ *  - the store file is finished (its header written) only if the whole table is exported, otherwise it is deleted
+ */
+public class PointStoreExporter {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 6) {
+            System.out.println("usage: PointStoreExporter <url> <username> <password> <tablename> <store file> <keyword,keyword,...>");
+            return;
+        }
+        Constants.DB_URL = args[0];
+        Constants.DB_USERNAME = args[1];
+        Constants.DB_PASSWORD = args[2];
+        Constants.DB_TABLENAME = args[3];
+        String storeFileName = args[4];
+        List<String> keywords = Arrays.asList(args[5].split(","));
+
+        PostgreSQL postgreSQL = new PostgreSQL();
+        if (!postgreSQL.connectDB()) {
+            return;
+        }
+        MyTimer.startTimer();
+        try {
+            long count = export(postgreSQL, storeFileName, keywords);
+            MyTimer.stopTimer();
+            System.out.println("[PointStoreExporter] exported " + count + " points of table " + Constants.DB_TABLENAME
+                    + " into " + storeFileName + " in " + MyTimer.durationSeconds() + " seconds.");
+        } catch (SQLException e) {
+            System.err.println("[PointStoreExporter] export failed: " + e.getMessage());
+        } finally {
+            postgreSQL.disconnectDB();
+        }
+    }
+
+    /**
+     * @param postgreSQL - connected
+     * @param storeFileName
+     * @param keywords
+     * @return number of points exported
+     * @throws SQLException
+     * @throws IOException
+     */
+    public static long export(PostgreSQL postgreSQL, String storeFileName, List<String> keywords) throws SQLException, IOException {
+        long capacity;
+        try (Statement statement = postgreSQL.conn.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT count(*) FROM " + Constants.DB_TABLENAME + " WHERE create_at IS NOT NULL")) {
+            rs.next();
+            capacity = rs.getLong(1);
+        }
+        System.out.println("[PointStoreExporter] exporting " + capacity + " rows, keywords = " + keywords + " ... ...");
+
+        StringBuilder sql = new StringBuilder("SELECT x, y, create_at");
+        for (int i = 0; i < keywords.size(); i ++) {
+            sql.append(", v @@ to_tsquery('english', ?)");
+        }
+        sql.append(" FROM (SELECT x, y, create_at, to_tsvector('english', text) AS v FROM ").append(Constants.DB_TABLENAME)
+                .append(" WHERE create_at IS NOT NULL) t ORDER BY create_at");
+
+        PointStore store = PointStore.create(storeFileName, capacity, keywords);
+        boolean success = false;
+        boolean autoCommit = postgreSQL.conn.getAutoCommit();
+        postgreSQL.conn.setAutoCommit(false);
+        try (PreparedStatement statement = postgreSQL.conn.prepareStatement(sql.toString())) {
+            for (int i = 0; i < keywords.size(); i ++) {
+                statement.setString(i + 1, keywords.get(i));
+            }
+            statement.setFetchSize(Constants.DB_FETCH_SIZE);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    if (store.count == store.capacity) {
+                        // rows inserted after counting
+                        System.out.println("[PointStoreExporter] table has grown during the export, the rest is not exported.");
+                        break;
+                    }
+                    long bits = 0;
+                    for (int i = 0; i < keywords.size(); i ++) {
+                        if (rs.getBoolean(4 + i)) {
+                            bits |= 1L << i;
+                        }
+                    }
+                    store.append(rs.getDouble(1), rs.getDouble(2), rs.getTimestamp(3).getTime(), bits);
+                    if (store.count % 1000000 == 0) {
+                        System.out.println("[PointStoreExporter] " + store.count + " rows exported.");
+                    }
+                }
+            }
+            success = true;
+        } finally {
+            try {
+                if (success) postgreSQL.conn.commit();
+                else postgreSQL.conn.rollback();
+                postgreSQL.conn.setAutoCommit(autoCommit);
+            } finally {
+                // without a header the file of a failed export is never opened as a (short) store
+                if (success) store.finish();
+                store.close();
+                if (!success) {
+                    System.out.println("[PointStoreExporter] export failed, store file " + storeFileName + " is deleted.");
+                    new File(storeFileName).delete();
+                }
+            }
+        }
+        return store.count;
+    }
+}
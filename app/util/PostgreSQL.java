@@ -1,12 +1,15 @@
 package util;
 
 import model.Point;
+import org.postgresql.PGConnection;
 
+import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Date;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class PostgreSQL {
 
@@ -48,12 +51,7 @@ public class PostgreSQL {
         try {
             PreparedStatement statement = conn.prepareStatement(sql);
             statement.setString(1, keyword);
-            ResultSet rs = statement.executeQuery();
-            while (rs.next()) {
-                Double x = rs.getDouble(1);
-                Double y = rs.getDouble(2);
-                result.add(new Point(x, y));
-            }
+            fetch(statement, result::addAll);
         } catch (SQLException e) {
             System.err.println(e.getMessage());
         }
@@ -81,12 +79,7 @@ public class PostgreSQL {
             statement.setString(1, keyword);
             statement.setTimestamp(2, new Timestamp(sd.getTime()));
             statement.setTimestamp(3, new Timestamp(ed.getTime()));
-            ResultSet rs = statement.executeQuery();
-            while (rs.next()) {
-                Double x = rs.getDouble(1);
-                Double y = rs.getDouble(2);
-                result.add(new Point(x, y));
-            }
+            fetch(statement, result::addAll);
         } catch (SQLException e) {
             System.err.println(e.getMessage());
         }
@@ -113,12 +106,7 @@ public class PostgreSQL {
             PreparedStatement statement = conn.prepareStatement(sql);
             statement.setTimestamp(1, new Timestamp(sd.getTime()));
             statement.setTimestamp(2, new Timestamp(ed.getTime()));
-            ResultSet rs = statement.executeQuery();
-            while (rs.next()) {
-                Double x = rs.getDouble(1);
-                Double y = rs.getDouble(2);
-                result.add(new Point(x, y));
-            }
+            fetch(statement, result::addAll);
         } catch (SQLException e) {
             System.err.println(e.getMessage());
         }
@@ -128,4 +116,172 @@ public class PostgreSQL {
         System.out.println("Result size: " + result.size());
         return result;
     }
+
+    public long streamPointsForKeywordAndTime(String keyword, Date sd, Date ed, Consumer<PointBuffer> consumer) {
+        return streamPointsForKeywordAndTime(keyword, sd, ed, true, consumer);
+    }
+
+    /**
+     * stream points for given keyword and time range to the consumer chunk by chunk, see fetch
+     *
+     * @param keyword
+     * @param sd
+     * @param ed
+     * @param endInclusive - false - [sd, ed), so that adjacent sub-ranges do not share rows
+     * @param consumer
+     * @return number of points, -1 - if the query failed
+     */
+    public long streamPointsForKeywordAndTime(String keyword, Date sd, Date ed, boolean endInclusive, Consumer<PointBuffer> consumer) {
+
+        if (this.conn == null) {
+            if(!this.connectDB()) {
+                return -1;
+            }
+        }
+
+        System.out.println("Streaming PostgreSQL with keyword: [" + keyword + "] and time [" + sd + ", " + ed + "]... ...");
+        String sql = "SELECT x, y FROM " + Constants.DB_TABLENAME + " WHERE to_tsvector('english', text)@@to_tsquery('english', ?) and "
+                + (endInclusive? "create_at between ? and ?": "create_at >= ? and create_at < ?");
+        long start = System.nanoTime();
+        long count;
+        try (PreparedStatement statement = conn.prepareStatement(sql)) {
+            statement.setString(1, keyword);
+            statement.setTimestamp(2, new Timestamp(sd.getTime()));
+            statement.setTimestamp(3, new Timestamp(ed.getTime()));
+            count = fetch(statement, consumer);
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+            return -1;
+        }
+        long end = System.nanoTime();
+        System.out.println("Streaming PostgreSQL with keyword: [" + keyword + "] and time [" + sd + ", " + ed +  "] is done! ");
+        System.out.println("Takes time: " + TimeUnit.SECONDS.convert(end - start, TimeUnit.NANOSECONDS) + " seconds");
+        System.out.println("Result size: " + count);
+        return count;
+    }
+
+    public long streamPointsForTime(Date sd, Date ed, Consumer<PointBuffer> consumer) {
+        return streamPointsForTime(sd, ed, true, consumer);
+    }
+
+    /**
+     * stream points for given time range to the consumer chunk by chunk, see fetch
+     *
+     * @param sd
+     * @param ed
+     * @param endInclusive - false - [sd, ed), so that adjacent sub-ranges do not share rows
+     * @param consumer
+     * @return number of points, -1 - if the query failed
+     */
+    public long streamPointsForTime(Date sd, Date ed, boolean endInclusive, Consumer<PointBuffer> consumer) {
+
+        if (this.conn == null) {
+            if(!this.connectDB()) {
+                return -1;
+            }
+        }
+
+        System.out.println("Streaming PostgreSQL with time [" + sd + ", " + ed + "]... ...");
+        String sql = "SELECT x, y FROM " + Constants.DB_TABLENAME + " WHERE "
+                + (endInclusive? "create_at between ? and ?": "create_at >= ? and create_at < ?");
+        long start = System.nanoTime();
+        long count;
+        try (PreparedStatement statement = conn.prepareStatement(sql)) {
+            statement.setTimestamp(1, new Timestamp(sd.getTime()));
+            statement.setTimestamp(2, new Timestamp(ed.getTime()));
+            count = fetch(statement, consumer);
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+            return -1;
+        }
+        long end = System.nanoTime();
+        System.out.println("Streaming PostgreSQL with time [" + sd + ", " + ed +  "] is done! ");
+        System.out.println("Database time: " + TimeUnit.SECONDS.convert(end - start, TimeUnit.NANOSECONDS) + " seconds");
+        System.out.println("Result size: " + count);
+        return count;
+    }
+
+    /**
+     * run the (x, y) query of the statement and hand its rows to the consumer in chunks
+     *
+     *  - rows are read through a server side cursor, Constants.DB_FETCH_SIZE rows per round trip,
+     *    instead of the driver buffering the whole result (the driver only uses a cursor with autocommit off)
+     *  - every chunk is a new PointBuffer of at most Constants.DB_CHUNK_SIZE points,
+     *    so the consumer may keep it, and at most one chunk is held here
+     *
+     * @param statement
+     * @param consumer
+     * @return number of points
+     * @throws SQLException
+     */
+    long fetch(PreparedStatement statement, Consumer<PointBuffer> consumer) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        long count = 0;
+        try {
+            statement.setFetchSize(Constants.DB_FETCH_SIZE);
+            try (ResultSet rs = statement.executeQuery()) {
+                PointBuffer chunk = new PointBuffer(Constants.DB_CHUNK_SIZE);
+                while (rs.next()) {
+                    chunk.add(rs.getDouble(1), rs.getDouble(2));
+                    if (chunk.isFull()) {
+                        count += chunk.size();
+                        consumer.accept(chunk);
+                        chunk = new PointBuffer(Constants.DB_CHUNK_SIZE);
+                    }
+                }
+                if (chunk.size() > 0) {
+                    count += chunk.size();
+                    consumer.accept(chunk);
+                }
+            }
+        } finally {
+            // closes the cursor
+            conn.commit();
+            conn.setAutoCommit(autoCommit);
+        }
+        return count;
+    }
+
+    /**
+     * stream points for given keyword to the consumer chunk by chunk
+     * by a binary COPY export (COPY ... TO STDOUT (FORMAT binary)) through the CopyManager of the driver,
+     * the COPY stream is decoded into PointBuffer chunks by PgCopyDecoder without a ResultSet
+     *
+     * @param keyword - "%" - all rows
+     * @param consumer - receives chunks of at most Constants.DB_CHUNK_SIZE points
+     * @return number of points, -1 - if the export failed
+     */
+    public long copyPointsForKeyword(String keyword, Consumer<PointBuffer> consumer) {
+
+        if (this.conn == null) {
+            if(!this.connectDB()) {
+                return -1;
+            }
+        }
+
+        System.out.println("Exporting PostgreSQL with keyword: [" + keyword + "] ... ...");
+        // COPY does not take parameters, the keyword is a quoted literal
+        String sql = "COPY (SELECT x::float8, y::float8 FROM " + Constants.DB_TABLENAME
+                + (keyword.equals("%")? "": " WHERE to_tsvector('english', text)@@to_tsquery('english', '" + keyword.replace("'", "''") + "')")
+                + ") TO STDOUT (FORMAT binary)";
+        long start = System.nanoTime();
+        long count;
+        try {
+            PgCopyDecoder decoder = new PgCopyDecoder(consumer, Constants.DB_CHUNK_SIZE);
+            conn.unwrap(PGConnection.class).getCopyAPI().copyOut(sql, decoder);
+            count = decoder.finish();
+            if (decoder.getSkipped() > 0) {
+                System.out.println("Skipped " + decoder.getSkipped() + " rows with NULL coordinates.");
+            }
+        } catch (SQLException | IOException e) {
+            System.err.println(e.getMessage());
+            return -1;
+        }
+        long end = System.nanoTime();
+        System.out.println("Exporting PostgreSQL with keyword: [" + keyword + "] is done! ");
+        System.out.println("Takes time: " + TimeUnit.SECONDS.convert(end - start, TimeUnit.NANOSECONDS) + " seconds");
+        System.out.println("Result size: " + count);
+        return count;
+    }
 }
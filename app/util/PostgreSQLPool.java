@@ -0,0 +1,56 @@
+package util;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Process wide pool of PostgreSQL connections for builds
+ *
+ *  - at most Constants.DB_POOL_SIZE connections are open, borrow waits until one is given back
+ *  - a PostgreSQL instance connects on its first query, an instance whose connection failed or is closed is not reused
+ */
+public class PostgreSQLPool {
+
+    private static final PostgreSQLPool instance = new PostgreSQLPool();
+
+    public static PostgreSQLPool getInstance() {
+        return instance;
+    }
+
+    Deque<PostgreSQL> idle = new ArrayDeque<>();
+    int borrowed = 0;
+
+    /**
+     * @return a PostgreSQL used by the calling thread only until it is given back
+     * @throws InterruptedException
+     */
+    public synchronized PostgreSQL borrow() throws InterruptedException {
+        while (idle.isEmpty() && borrowed >= Math.max(Constants.DB_POOL_SIZE, 1)) {
+            wait();
+        }
+        borrowed ++;
+        PostgreSQL postgreSQL = idle.poll();
+        return postgreSQL == null? new PostgreSQL(): postgreSQL;
+    }
+
+    public void giveBack(PostgreSQL postgreSQL) {
+        boolean reuse;
+        try {
+            reuse = postgreSQL.conn != null && !postgreSQL.conn.isClosed();
+        } catch (SQLException e) {
+            reuse = false;
+        }
+        synchronized (this) {
+            borrowed --;
+            if (reuse) {
+                idle.push(postgreSQL);
+            }
+            notifyAll();
+        }
+    }
+
+    public synchronized String describe() {
+        return "connections: " + borrowed + " borrowed, " + idle.size() + " idle, pool size = " + Constants.DB_POOL_SIZE;
+    }
+}
@@ -0,0 +1,60 @@
+package util;
+
+import java.util.Date;
+import java.util.function.Consumer;
+
+/**
+ * IDataSource of the Constants.DB_TABLENAME table, each call runs on a connection borrowed from the PostgreSQLPool
+ *
+ *  - time ranges are streamed through a server side cursor, see PostgreSQL.fetch
+ *  - all points of a keyword are streamed by a binary COPY export, see PostgreSQL.copyPointsForKeyword
+ */
+public class PostgreSQLSource implements IDataSource {
+
+    @Override
+    public long streamPoints(String keyword, Date start, Date end, boolean endInclusive, Consumer<PointBuffer> consumer) {
+        PostgreSQL postgreSQL;
+        try {
+            postgreSQL = PostgreSQLPool.getInstance().borrow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+        try {
+            if (keyword.equals("%")) {
+                return postgreSQL.streamPointsForTime(start, end, endInclusive, consumer);
+            }
+            else {
+                return postgreSQL.streamPointsForKeywordAndTime(keyword, start, end, endInclusive, consumer);
+            }
+        } finally {
+            PostgreSQLPool.getInstance().giveBack(postgreSQL);
+        }
+    }
+
+    @Override
+    public long streamPoints(String keyword, Consumer<PointBuffer> consumer) {
+        PostgreSQL postgreSQL;
+        try {
+            postgreSQL = PostgreSQLPool.getInstance().borrow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+        try {
+            return postgreSQL.copyPointsForKeyword(keyword, consumer);
+        } finally {
+            PostgreSQLPool.getInstance().giveBack(postgreSQL);
+        }
+    }
+
+    @Override
+    public String describe() {
+        return "PostgreSQL table " + Constants.DB_TABLENAME + " (" + PostgreSQLPool.getInstance().describe() + ")";
+    }
+
+    @Override
+    public void close() {
+        // connections are kept by the PostgreSQLPool
+    }
+}
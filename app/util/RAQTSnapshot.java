@@ -0,0 +1,275 @@
+package util;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary snapshot of a RA-QuadTree (.raqt file)
+ *
+ * ---- header (HEADER_SIZE bytes) ----
+ *   magic     version   maxZoom   errorsPerNode  minX      minY      maxX      maxY
+ * | 4 BYTES | 4 BYTES | 4 BYTES | 4 BYTES      | 8 BYTES | 8 BYTES | 8 BYTES | 8 BYTES |
+ *   renderingFunction  errorFunction  nodesCount  internalNodesCount  checksum  reserved
+ * | 16 BYTES         | 16 BYTES     | 8 BYTES   | 8 BYTES           | 8 BYTES | 24 BYTES |
+ * ---- node records (RECORD_SIZE bytes each, pre-order) ----
+ *   count     subtreeSize  sample.x  sample.y  errorsIndex
+ * | 4 BYTES | 4 BYTES    | 8 BYTES | 8 BYTES | 4 BYTES |
+ * ---- errors (errorsPerNode doubles for each internal node, indexed by errorsIndex) ----
+ * | 8 BYTES | 8 BYTES | ...
+ *
+ *  - subtreeSize is the number of records in the node's subtree (including itself),
+ *    1 means a leaf, so the first child of node i is record i + 1,
+ *    and the next sibling of node i is record i + subtreeSize(i)
+ *  - a node without sample has sample.x = sample.y = NaN
+ *  - a leaf has errorsIndex = -1, errors of a leaf are always 0
+ *  - checksum is the CRC32 of node records and errors
+ */
+public class RAQTSnapshot {
+
+    public static final int MAGIC = 0x52415154; // "RAQT"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 128;
+    public static final int RECORD_SIZE = 28;
+    static final int NAME_BYTES = 16;
+
+    public int version;
+    public int maxZoom;
+    public int errorsPerNode;
+    public double minX, minY, maxX, maxY;
+    public String renderingFunction;
+    public String errorFunction;
+    public long nodesCount;
+    public long internalNodesCount;
+    public long checksum;
+
+    MappedFile file;
+    long errorsStart;
+
+    RAQTSnapshot() {
+    }
+
+    /**
+     * Create a new snapshot file with the header describing current Constants,
+     * node records and errors are written afterwards with putNode / putError
+     *
+     * @param fileName
+     * @param nodesCount
+     * @param internalNodesCount
+     * @param errorsPerNode
+     * @param renderingFunction
+     * @param errorFunction
+     * @return
+     * @throws IOException
+     */
+    public static RAQTSnapshot create(String fileName, long nodesCount, long internalNodesCount, int errorsPerNode,
+                                      String renderingFunction, String errorFunction) throws IOException {
+        RAQTSnapshot snapshot = new RAQTSnapshot();
+        snapshot.version = VERSION;
+        snapshot.maxZoom = Constants.MAX_ZOOM;
+        snapshot.errorsPerNode = errorsPerNode;
+        snapshot.minX = Constants.MIN_X;
+        snapshot.minY = Constants.MIN_Y;
+        snapshot.maxX = Constants.MAX_X;
+        snapshot.maxY = Constants.MAX_Y;
+        snapshot.renderingFunction = renderingFunction;
+        snapshot.errorFunction = errorFunction;
+        snapshot.nodesCount = nodesCount;
+        snapshot.internalNodesCount = internalNodesCount;
+        snapshot.errorsStart = HEADER_SIZE + nodesCount * RECORD_SIZE;
+        long size = snapshot.errorsStart + internalNodesCount * errorsPerNode * Constants.DOUBLE_BYTES;
+        snapshot.file = new MappedFile(fileName, size);
+        return snapshot;
+    }
+
+    /**
+     * Open an existing snapshot file, validate its header and checksum
+     *
+     * @param fileName
+     * @return
+     * @throws IOException - if the file is not a valid snapshot
+     */
+    public static RAQTSnapshot open(String fileName) throws IOException {
+        return open(fileName, true);
+    }
+
+    /**
+     * Open an existing snapshot file and validate its header
+     *
+     * @param fileName
+     * @param verifyChecksum - false to skip the checksum, which reads through the whole file
+     * @return
+     * @throws IOException - if the file is not a valid snapshot
+     */
+    public static RAQTSnapshot open(String fileName, boolean verifyChecksum) throws IOException {
+        RAQTSnapshot snapshot = new RAQTSnapshot();
+        snapshot.file = new MappedFile(fileName);
+        MappedFile file = snapshot.file;
+        if (file.size() < HEADER_SIZE || file.getInt(0) != MAGIC) {
+            file.close();
+            throw new IOException("not a RA-QuadTree snapshot file: " + fileName);
+        }
+        snapshot.version = file.getInt(4);
+        if (snapshot.version != VERSION) {
+            file.close();
+            throw new IOException("unsupported snapshot version " + snapshot.version + " of file: " + fileName);
+        }
+        snapshot.maxZoom = file.getInt(8);
+        snapshot.errorsPerNode = file.getInt(12);
+        snapshot.minX = file.getDouble(16);
+        snapshot.minY = file.getDouble(24);
+        snapshot.maxX = file.getDouble(32);
+        snapshot.maxY = file.getDouble(40);
+        snapshot.renderingFunction = readName(file, 48);
+        snapshot.errorFunction = readName(file, 64);
+        snapshot.nodesCount = file.getLong(80);
+        snapshot.internalNodesCount = file.getLong(88);
+        snapshot.checksum = file.getLong(96);
+        snapshot.errorsStart = HEADER_SIZE + snapshot.nodesCount * RECORD_SIZE;
+
+        long size = snapshot.errorsStart + snapshot.internalNodesCount * snapshot.errorsPerNode * Constants.DOUBLE_BYTES;
+        if (file.size() != size) {
+            file.close();
+            throw new IOException("snapshot file " + fileName + " is truncated, expected " + size + " bytes, got " + file.size() + " bytes.");
+        }
+        if (verifyChecksum && file.checksum(HEADER_SIZE, size) != snapshot.checksum) {
+            file.close();
+            throw new IOException("snapshot file " + fileName + " checksum mismatch.");
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param fileName
+     * @return true - if the file starts with the snapshot magic number, false - otherwise (e.g. legacy text format)
+     */
+    public static boolean isSnapshot(String fileName) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(fileName))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param errorsPerNode
+     * @param renderingFunction
+     * @param errorFunction
+     * @return true - if this snapshot was built with current Constants and the given metric
+     */
+    public boolean matches(int errorsPerNode, String renderingFunction, String errorFunction) {
+        return this.maxZoom == Constants.MAX_ZOOM
+                && this.errorsPerNode == errorsPerNode
+                && this.minX == Constants.MIN_X
+                && this.minY == Constants.MIN_Y
+                && this.maxX == Constants.MAX_X
+                && this.maxY == Constants.MAX_Y
+                && this.renderingFunction.equalsIgnoreCase(renderingFunction)
+                && this.errorFunction.equalsIgnoreCase(errorFunction);
+    }
+
+    public String describe() {
+        return "{version: " + version + ", maxZoom: " + maxZoom + ", errorsPerNode: " + errorsPerNode +
+                ", domain: [(" + minX + ", " + minY + "), (" + maxX + ", " + maxY + ")]" +
+                ", metric: " + renderingFunction + "/" + errorFunction +
+                ", nodes: " + nodesCount + ", internalNodes: " + internalNodesCount + "}";
+    }
+
+    /**
+     * Node records
+     */
+    long recordPosition(long node) {
+        return HEADER_SIZE + node * RECORD_SIZE;
+    }
+
+    public int count(long node) {
+        return file.getInt(recordPosition(node));
+    }
+
+    public int subtreeSize(long node) {
+        return file.getInt(recordPosition(node) + 4);
+    }
+
+    public boolean isLeaf(long node) {
+        return subtreeSize(node) == 1;
+    }
+
+    public double sampleX(long node) {
+        return file.getDouble(recordPosition(node) + 8);
+    }
+
+    public double sampleY(long node) {
+        return file.getDouble(recordPosition(node) + 16);
+    }
+
+    public int errorsIndex(long node) {
+        return file.getInt(recordPosition(node) + 24);
+    }
+
+    public double error(int errorsIndex, int i) {
+        return file.getDouble(errorsStart + ((long) errorsIndex * errorsPerNode + i) * Constants.DOUBLE_BYTES);
+    }
+
+    public void putNode(long node, int count, int subtreeSize, double sampleX, double sampleY, int errorsIndex) {
+        long pos = recordPosition(node);
+        file.putInt(pos, count);
+        file.putInt(pos + 4, subtreeSize);
+        file.putDouble(pos + 8, sampleX);
+        file.putDouble(pos + 16, sampleY);
+        file.putInt(pos + 24, errorsIndex);
+    }
+
+    public void putError(int errorsIndex, int i, double error) {
+        file.putDouble(errorsStart + ((long) errorsIndex * errorsPerNode + i) * Constants.DOUBLE_BYTES, error);
+    }
+
+    /**
+     * Write the header with checksum of all records and flush the file
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        checksum = file.checksum(HEADER_SIZE, file.size());
+        file.putInt(0, MAGIC);
+        file.putInt(4, version);
+        file.putInt(8, maxZoom);
+        file.putInt(12, errorsPerNode);
+        file.putDouble(16, minX);
+        file.putDouble(24, minY);
+        file.putDouble(32, maxX);
+        file.putDouble(40, maxY);
+        writeName(file, 48, renderingFunction);
+        writeName(file, 64, errorFunction);
+        file.putLong(80, nodesCount);
+        file.putLong(88, internalNodesCount);
+        file.putLong(96, checksum);
+        file.force();
+        file.close();
+    }
+
+    /**
+     * Close the underlying file,
+     * records of an opened snapshot are still readable afterwards through the mapped chunks
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+
+    static String readName(MappedFile file, long pos) {
+        byte[] bytes = new byte[NAME_BYTES];
+        file.get(pos, bytes, 0, NAME_BYTES);
+        int length = 0;
+        while (length < NAME_BYTES && bytes[length] != 0) length ++;
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    static void writeName(MappedFile file, long pos, String name) {
+        byte[] bytes = new byte[NAME_BYTES];
+        byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(nameBytes, 0, bytes, 0, Math.min(nameBytes.length, NAME_BYTES));
+        file.put(pos, bytes, 0, NAME_BYTES);
+    }
+}
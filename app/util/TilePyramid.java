@@ -0,0 +1,250 @@
+package util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static util.Mercator.*;
+
+/**
+ * Pyramid of encoded sample tiles (.pyramid file)
+ *
+ * ---- header (HEADER_SIZE bytes) ----
+ *   magic     version   maxZoom   sampleBudget  tilesCount  pointsCount  reserved
+ * | 4 BYTES | 4 BYTES | 4 BYTES | 4 BYTES     | 8 BYTES   | 8 BYTES    | 32 BYTES |
+ * ---- index (INDEX_ENTRY_SIZE bytes per tile, zoom 0 .. maxZoom, row by row) ----
+ *   offset    count
+ * | 8 BYTES | 4 BYTES |
+ * ---- tiles ----
+ *   payload of BinaryMessageBuilder (lat, lng records, no header) for each tile
+ *
+ *  - tile (x, y) of zoom z is the index entry tileIndex(z, x, y) = (4^z - 1) / 3 + y * 2^z + x
+ *  - offset is the position of the payload in the file, count is the number of records
+ *  - a query is answered by looking up the index for the tiles covering its bbox and copying their payloads,
+ *    without touching the tree the pyramid was built from
+ */
+public class TilePyramid {
+
+    public static final int MAGIC = 0x52415150; // "RAQP"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int INDEX_ENTRY_SIZE = 12;
+    public static final int MAX_ZOOM = 12;
+    static final int RECORD_SIZE = 2 * Constants.DOUBLE_BYTES;
+
+    public int maxZoom;
+    public int sampleBudget;
+    public long tilesCount;
+    public long pointsCount;
+
+    MappedFile file;
+
+    TilePyramid() {
+    }
+
+    /**
+     * An algorithm that answers a tile on its own, e.g. RAQuadTree
+     */
+    public interface TileSource {
+        /**
+         * @param zoom
+         * @param tX
+         * @param tY
+         * @param sampleBudget
+         * @return payload of BinaryMessageBuilder (no header) with samples inside the tile
+         */
+        byte[] computeTile(int zoom, int tX, int tY, int sampleBudget);
+    }
+
+    public static long tileIndex(int zoom, int tX, int tY) {
+        return (((1L << (2 * zoom)) - 1) / 3) + ((long) tY << zoom) + tX;
+    }
+
+    /**
+     * @param bbox - lng0, lat0, lng1, lat1
+     * @param zoom
+     * @return [tX0, tY0, tX1, tY1] - range of tiles of given zoom level covering the bbox (inclusive)
+     */
+    public static int[] tileRange(double[] bbox, int zoom) {
+        int n = 1 << zoom;
+        // latitude -> y is reversed
+        int tX0 = Math.max((int) Math.floor(lngX(bbox[0]) * n), 0);
+        int tX1 = Math.min((int) Math.ceil(lngX(bbox[2]) * n), n) - 1;
+        int tY0 = Math.max((int) Math.floor(latY(bbox[3]) * n), 0);
+        int tY1 = Math.min((int) Math.ceil(latY(bbox[1]) * n), n) - 1;
+        return new int[]{tX0, tY0, tX1, tY1};
+    }
+
+    /**
+     * Materialize tiles of zoom levels 0 .. maxZoom computed by the source into a new pyramid file
+     *
+     * @param source
+     * @param fileName
+     * @param maxZoom
+     * @param sampleBudget - sample budget of each tile
+     * @throws IOException
+     */
+    public static void build(TileSource source, String fileName, int maxZoom, int sampleBudget) throws IOException {
+        // index of zoom 12 already has 22M entries
+        if (maxZoom < 0 || maxZoom > MAX_ZOOM) {
+            throw new IllegalArgumentException("maxZoom of a tile pyramid should be in [0, " + MAX_ZOOM + "], got " + maxZoom);
+        }
+        long tilesCount = tileIndex(maxZoom + 1, 0, 0);
+
+        System.out.println("[TilePyramid] building " + tilesCount + " tiles of zoom 0 ~ " + maxZoom + " into " + fileName + " ... ...");
+        long startTime = System.nanoTime();
+
+        // the pyramid is written to a temporary file renamed into place when it is complete,
+        // other sessions may have the previous file mapped, truncating it in place would fault their reads
+        File target = new File(fileName).getAbsoluteFile();
+        File temporary = File.createTempFile(target.getName() + ".", ".tmp", target.getParentFile());
+        boolean done = false;
+        long pointsCount;
+        try {
+            pointsCount = writeTiles(source, temporary, maxZoom, sampleBudget);
+            Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            done = true;
+        } finally {
+            if (!done) {
+                temporary.delete();
+            }
+        }
+
+        long endTime = System.nanoTime();
+        System.out.println("[TilePyramid] building " + fileName + " done with " + pointsCount + " points! Time: "
+                + ((double) (endTime - startTime) / 1000000000.0) + " seconds.");
+    }
+
+    /**
+     * write the tiles, then the header and index, of a pyramid into the file
+     *
+     * @return number of points of all tiles
+     */
+    static long writeTiles(TileSource source, File file, int maxZoom, int sampleBudget) throws IOException {
+        long tilesCount = tileIndex(maxZoom + 1, 0, 0);
+        long dataStart = HEADER_SIZE + tilesCount * INDEX_ENTRY_SIZE;
+        long[] offsets = new long[(int) tilesCount];
+        int[] counts = new int[(int) tilesCount];
+        long pointsCount = 0;
+        // tiles first, header and index are written afterwards
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20)) {
+            out.write(new byte[(int) dataStart]);
+            long offset = dataStart;
+            for (int z = 0; z <= maxZoom; z ++) {
+                int n = 1 << z;
+                long levelPoints = 0;
+                for (int tY = 0; tY < n; tY ++) {
+                    for (int tX = 0; tX < n; tX ++) {
+                        byte[] payload = source.computeTile(z, tX, tY, sampleBudget);
+                        int i = (int) tileIndex(z, tX, tY);
+                        offsets[i] = offset;
+                        counts[i] = payload.length / RECORD_SIZE;
+                        out.write(payload);
+                        offset += payload.length;
+                        levelPoints += counts[i];
+                    }
+                }
+                pointsCount += levelPoints;
+                System.out.println("[TilePyramid] zoom " + z + " done with " + levelPoints + " points.");
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) dataStart);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(maxZoom);
+        buffer.putInt(sampleBudget);
+        buffer.putLong(tilesCount);
+        buffer.putLong(pointsCount);
+        buffer.position(HEADER_SIZE);
+        for (int i = 0; i < tilesCount; i ++) {
+            buffer.putLong(offsets[i]);
+            buffer.putInt(counts[i]);
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.write(buffer.array());
+        }
+        return pointsCount;
+    }
+
+    /**
+     * Open an existing pyramid file and validate its header
+     *
+     * @param fileName
+     * @return
+     * @throws IOException - if the file is not a valid pyramid
+     */
+    public static TilePyramid open(String fileName) throws IOException {
+        TilePyramid pyramid = new TilePyramid();
+        pyramid.file = new MappedFile(fileName);
+        MappedFile file = pyramid.file;
+        if (file.size() < HEADER_SIZE || file.getInt(0) != MAGIC || file.getInt(4) != VERSION) {
+            file.close();
+            throw new IOException("not a tile pyramid file: " + fileName);
+        }
+        pyramid.maxZoom = file.getInt(8);
+        pyramid.sampleBudget = file.getInt(12);
+        pyramid.tilesCount = file.getLong(16);
+        pyramid.pointsCount = file.getLong(24);
+        if (pyramid.tilesCount != tileIndex(pyramid.maxZoom + 1, 0, 0)
+                || file.size() < HEADER_SIZE + pyramid.tilesCount * INDEX_ENTRY_SIZE) {
+            file.close();
+            throw new IOException("tile pyramid file " + fileName + " is truncated.");
+        }
+        return pyramid;
+    }
+
+    public String describe() {
+        return "{version: " + VERSION + ", maxZoom: " + maxZoom + ", sampleBudget: " + sampleBudget
+                + ", tiles: " + tilesCount + ", points: " + pointsCount + "}";
+    }
+
+    /**
+     * @param zoom
+     * @param tX
+     * @param tY
+     * @return number of records of the tile
+     */
+    public int count(int zoom, int tX, int tY) {
+        return file.getInt(HEADER_SIZE + tileIndex(zoom, tX, tY) * INDEX_ENTRY_SIZE + 8);
+    }
+
+    /**
+     * copy the payload of a tile into the message
+     *
+     * @param zoom
+     * @param tX
+     * @param tY
+     * @param messageBuilder
+     */
+    public void addTile(int zoom, int tX, int tY, BinaryMessageBuilder messageBuilder) {
+        long entry = HEADER_SIZE + tileIndex(zoom, tX, tY) * INDEX_ENTRY_SIZE;
+        long offset = file.getLong(entry);
+        int count = file.getInt(entry + 8);
+        if (count == 0) return;
+        byte[] payload = new byte[count * RECORD_SIZE];
+        file.get(offset, payload, 0, payload.length);
+        messageBuilder.addPayload(payload);
+    }
+
+    /**
+     * @param bbox - lng0, lat0, lng1, lat1
+     * @param zoom - <= maxZoom
+     * @return binary message (including preserved HEADER_SIZE header) of all tiles covering the bbox
+     */
+    public byte[] answerQuery(double[] bbox, int zoom) {
+        int[] range = tileRange(bbox, zoom);
+        BinaryMessageBuilder messageBuilder = new BinaryMessageBuilder();
+        for (int tY = range[1]; tY <= range[3]; tY ++) {
+            for (int tX = range[0]; tX <= range[2]; tX ++) {
+                addTile(zoom, tX, tY, messageBuilder);
+            }
+        }
+        return messageBuilder.getBuffer();
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+}
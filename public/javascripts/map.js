@@ -56,6 +56,9 @@ angular.module("clustermap.map", ["leaflet-directive", "clustermap.common"])
     // store request object for handle websocket onMessage
     $scope.request = {};
 
+    // accumulated samples of refinement frames
+    $scope.refineData = [];
+
     // store query object for "middleware" mode
     $scope.query = {
       key: "",
@@ -66,7 +69,8 @@ angular.module("clustermap.map", ["leaflet-directive", "clustermap.common"])
       resY: 978,
       aggregator: "QuadTreeAggregator",
       sampleSize: 0,
-      samplePercentage: 100
+      samplePercentage: 100,
+      timeBudget: 0 // ms, 0 - disabled
     };
 
     $scope.ws = new WebSocket("ws://" + location.host + "/ws");
@@ -655,8 +659,8 @@ angular.module("clustermap.map", ["leaflet-directive", "clustermap.common"])
 
     $scope.parseBinary = function(binaryData) {
       // ---- header ----
-      //  progress  totalTime  treeTime  aggTime   msgType
-      // | 4 BYTES | 8 BYTES | 8 BYTES | 8 BYTES | 4 BYTES |
+      //  progress  totalTime  treeTime  aggTime   msgType   flags
+      // | 4 BYTES | 8 BYTES | 8 BYTES | 8 BYTES | 4 BYTES | 4 BYTES |
       let dv = new DataView(binaryData);
       let response = {};
       let offset = 0; // offset by bytes
@@ -670,7 +674,14 @@ angular.module("clustermap.map", ["leaflet-directive", "clustermap.common"])
       offset = offset + 8;
       response.msgType = dv.getInt32(offset);
       offset = offset + 4;
-      const headerSize = 4 + 8 + 8 + 8 + 4;
+      response.flags = dv.getInt32(offset);
+      offset = offset + 4;
+      // flag bit 0: search stopped at the time budget, result is partial
+      response.partial = (response.flags & 1) !== 0;
+      if (response.partial) {
+        console.log("result is partial, search stopped at the time budget.");
+      }
+      const headerSize = 4 + 8 + 8 + 8 + 4 + 4;
       // message type = binary
       if (response.msgType == 0) {
         // ---- binary data payload ----
@@ -688,6 +699,11 @@ angular.module("clustermap.map", ["leaflet-directive", "clustermap.common"])
           record.push(dv.getFloat64(offset)); // lng
           data.push(record);
         }
+        // flag bit 1: refinement frame, samples add to the previous frames of the query
+        if (response.flags & 2) {
+          data = $scope.refineData.concat(data);
+        }
+        $scope.refineData = data;
         response.result = {data: data};
         console.log("==== websocket received binary data ====");
         console.log(binaryData);
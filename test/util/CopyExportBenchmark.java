@@ -0,0 +1,60 @@
+package util;
+
+import model.Point;
+
+import java.util.List;
+
+/**
+ * Compare the binary COPY export of PostgreSQL against the ResultSet query,
+ * fetching all points of a keyword from a live database (e.g. a local PostgreSQL in a container)
+ *
+ *  - time of both paths
+ *  - number of points and sum of coordinates, which should be the same
+ *
+ * usage: CopyExportBenchmark [url] [username] [password] [tablename] [keyword] [rounds]
+ */
+public class CopyExportBenchmark {
+    public static void main(String[] args) {
+        Constants.DB_URL = args.length > 0? args[0]: "jdbc:postgresql://localhost/twitter";
+        Constants.DB_USERNAME = args.length > 1? args[1]: "postgres";
+        Constants.DB_PASSWORD = args.length > 2? args[2]: "postgres";
+        Constants.DB_TABLENAME = args.length > 3? args[3]: "tweets";
+        String keyword = args.length > 4? args[4]: "coffee";
+        int rounds = args.length > 5? Integer.valueOf(args[5]): 3;
+
+        PostgreSQL postgreSQL = new PostgreSQL();
+        StringBuilder report = new StringBuilder();
+        for (int round = 0; round < rounds; round ++) {
+            // (1) ResultSet query
+            MyTimer.startTimer();
+            List<Point> points = postgreSQL.queryPointsForKeyword(keyword);
+            MyTimer.stopTimer();
+            double queryTime = MyTimer.durationSeconds();
+            double querySum = 0.0;
+            for (Point point: points) {
+                querySum += point.getX() + point.getY();
+            }
+
+            // (2) binary COPY export
+            double[] copySum = new double[1];
+            MyTimer.startTimer();
+            long count = postgreSQL.copyPointsForKeyword(keyword, chunk -> {
+                for (int i = 0; i < chunk.size(); i ++) {
+                    copySum[0] += chunk.getX(i) + chunk.getY(i);
+                }
+            });
+            MyTimer.stopTimer();
+            double copyTime = MyTimer.durationSeconds();
+
+            report.append("round " + round + ", query: " + points.size() + " points in " + queryTime + " seconds, sum = " + querySum
+                    + "; copy: " + count + " points in " + copyTime + " seconds, sum = " + copySum[0]
+                    + "; speedup = " + (copyTime > 0? queryTime / copyTime: 0.0) + "\n");
+        }
+        postgreSQL.disconnectDB();
+
+        System.out.println("========== COPY Export Benchmark ==========");
+        System.out.println("table = " + Constants.DB_TABLENAME + ", keyword = " + keyword + ", fetchSize = " + Constants.DB_FETCH_SIZE
+                + ", chunkSize = " + Constants.DB_CHUNK_SIZE + ".");
+        System.out.print(report);
+    }
+}
@@ -0,0 +1,129 @@
+package util;
+
+import algorithms.RAQuadTree;
+import model.Point;
+import model.Query;
+import util.render.DeckGLRenderer;
+import util.render.L1Error;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static util.Mercator.*;
+
+/**
+ * Compare the parallel budget-split best first search of RAQuadTree against the sequential one,
+ * on synthetic clustered points
+ *
+ *  - time of both searches
+ *  - quality loss = (error(parallel) - error(sequential)) / error(sequential),
+ *    where error is the L1 error between the rendering of the result and the rendering of all points,
+ *    samples are rendered in (x, y) order, so two results of the same cut in different orders have the same error
+ *  - fails (exit code 1) if the quality loss of any zoom level is larger than MAX_LOSS
+ *
+ * usage: ParallelSearchBenchmark [numberOfPoints] [sampleSize] [frontier]
+ */
+public class ParallelSearchBenchmark {
+
+    static final double MAX_LOSS = 0.05; // 5%
+
+    public static void main(String[] args) {
+        int size = 1000000; // 1M
+        int sampleSize = Constants.DEFAULT_SAMPLE_SIZE;
+        if (args.length > 0) size = Integer.valueOf(args[0]);
+        if (args.length > 1) sampleSize = Integer.valueOf(args[1]);
+        if (args.length > 2) Constants.SEARCH_PARALLEL_FRONTIER = Integer.valueOf(args[2]);
+        Constants.RENDERING_FUNCTION = "deckgl";
+        Constants.ERROR_FUNCTION = "L1";
+        Constants.SEARCH_PARALLEL_THRESHOLD = 0;
+
+        // (1) generate clustered points, [lng, lat] for the tree, [x, y] for the ground truth rendering
+        Random random = new Random(0);
+        List<Point> points = new ArrayList<>();
+        List<Point> truth = new ArrayList<>();
+        int clusters = 50;
+        for (int i = 0; i < size; i ++) {
+            Random center = new Random(i % clusters);
+            double lng = -170 + 340 * center.nextDouble() + random.nextGaussian() * 5;
+            double lat = -60 + 130 * center.nextDouble() + random.nextGaussian() * 3;
+            lng = Math.max(-179.9, Math.min(179.9, lng));
+            lat = Math.max(-84.9, Math.min(84.9, lat));
+            points.add(new Point(lng, lat));
+            truth.add(new Point(lngX(lng), latY(lat)));
+        }
+
+        // (2) build the tree
+        MyTimer.startTimer();
+        RAQuadTree raQuadTree = new RAQuadTree();
+        raQuadTree.load(points);
+        raQuadTree.finishLoad();
+        MyTimer.stopTimer();
+        double buildTime = MyTimer.durationSeconds();
+
+        // (3) world view queries at different zoom levels
+        DeckGLRenderer renderer = new DeckGLRenderer(Constants.RADIUS_IN_PIXELS);
+        L1Error errorMetric = new L1Error();
+        StringBuilder report = new StringBuilder();
+        boolean pass = true;
+        for (int zoom = 0; zoom <= 2; zoom ++) {
+            Query query = new Query();
+            query.bbox = new double[]{-180, -85, 180, 85};
+            query.zoom = zoom;
+            query.resX = 256 << zoom;
+            query.resY = 256 << zoom;
+            query.sampleSize = sampleSize;
+
+            MyTimer.temporaryTimer().put("treeTime", 0.0);
+            Constants.SEARCH_PARALLEL = false;
+            raQuadTree.answerQuery(query);
+            double sequentialTime = MyTimer.temporaryTimer().get("treeTime");
+            byte[] sequential = raQuadTree.answerQuery(query);
+
+            Constants.SEARCH_PARALLEL = true;
+            raQuadTree.answerQuery(query);
+            double parallelTime = MyTimer.temporaryTimer().get("treeTime");
+            byte[] parallel = raQuadTree.answerQuery(query);
+
+            int resolution = 256 << zoom;
+            byte[] truthRendering = render(renderer, truth, resolution);
+            double sequentialError = errorMetric.error(truthRendering, render(renderer, decode(sequential), resolution), renderer.realResolution(resolution));
+            double parallelError = errorMetric.error(truthRendering, render(renderer, decode(parallel), resolution), renderer.realResolution(resolution));
+            double loss = sequentialError > 0? (parallelError - sequentialError) / sequentialError: 0.0;
+
+            report.append("zoom = " + zoom + ", sequential: " + decode(sequential).size() + " samples in " + sequentialTime + " seconds, error = " + sequentialError
+                    + "; parallel: " + decode(parallel).size() + " samples in " + parallelTime + " seconds, error = " + parallelError
+                    + "; quality loss = " + (loss * 100) + "%" + (loss > MAX_LOSS? " > " + (MAX_LOSS * 100) + "%, FAIL": "") + "\n");
+            if (loss > MAX_LOSS) pass = false;
+        }
+
+        System.out.println("========== Parallel Search Benchmark ==========");
+        System.out.println("points = " + size + ", sampleSize = " + sampleSize + ", frontier = " + Constants.SEARCH_PARALLEL_FRONTIER
+                + ", processors = " + Runtime.getRuntime().availableProcessors() + ", build time = " + buildTime + " seconds.");
+        System.out.print(report);
+        System.out.println(pass? "PASS": "FAIL");
+        if (!pass) System.exit(1);
+    }
+
+    static byte[] render(DeckGLRenderer renderer, List<Point> points, int resolution) {
+        byte[] rendering = renderer.createRendering(resolution);
+        for (Point point: points) {
+            renderer.render(rendering, 0.5, 0.5, 0.5, resolution, point);
+        }
+        return rendering;
+    }
+
+    // binary message -> [x, y] points
+    static List<Point> decode(byte[] message) {
+        List<Point> points = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        for (int j = Constants.HEADER_SIZE; j + 2 * Constants.DOUBLE_BYTES <= message.length; j += 2 * Constants.DOUBLE_BYTES) {
+            double lat = buffer.getDouble(j);
+            double lng = buffer.getDouble(j + Constants.DOUBLE_BYTES);
+            points.add(new Point(lngX(lng), latY(lat)));
+        }
+        points.sort((a, b) -> a.getX() != b.getX()? Double.compare(a.getX(), b.getX()): Double.compare(a.getY(), b.getY()));
+        return points;
+    }
+}
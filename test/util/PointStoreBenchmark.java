@@ -0,0 +1,98 @@
+package util;
+
+import algorithms.RAQuadTree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Build a RAQuadTree from a local columnar point store, without a database,
+ * on synthetic clustered points of one year tagged with keywords
+ *
+ *  - time of writing the store, scanning it (all points / one keyword) and loading it slice by slice into the tree
+ *  - number of points of each scan, which should be the numbers written
+ *
+ * usage: PointStoreBenchmark [numberOfPoints] [intervalDays] [storeFile]
+ */
+public class PointStoreBenchmark {
+    public static void main(String[] args) throws IOException {
+        int size = 1000000; // 1M
+        int intervalDays = 30;
+        String fileName = "benchmark.points";
+        if (args.length > 0) size = Integer.valueOf(args[0]);
+        if (args.length > 1) intervalDays = Integer.valueOf(args[1]);
+        if (args.length > 2) fileName = args[2];
+        Constants.RENDERING_FUNCTION = "deckgl";
+        Constants.ERROR_FUNCTION = "L1";
+
+        // (1) write clustered points in time order, every 10th point matches "coffee", every 3rd "sports"
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2016, Calendar.JANUARY, 1, 0, 0, 0);
+        long start = calendar.getTimeInMillis();
+        long step = 365L * 24 * 3600 * 1000 / size;
+        Random random = new Random(0);
+        int clusters = 50;
+        long coffee = 0;
+        MyTimer.startTimer();
+        PointStore store = PointStore.create(fileName, size, Arrays.asList("coffee", "sports"));
+        for (int i = 0; i < size; i ++) {
+            Random center = new Random(i % clusters);
+            double lng = -170 + 340 * center.nextDouble() + random.nextGaussian() * 5;
+            double lat = -60 + 130 * center.nextDouble() + random.nextGaussian() * 3;
+            lng = Math.max(-179.9, Math.min(179.9, lng));
+            lat = Math.max(-84.9, Math.min(84.9, lat));
+            long keywords = (i % 10 == 0? 1L: 0L) | (i % 3 == 0? 2L: 0L);
+            if (i % 10 == 0) coffee ++;
+            store.append(lng, lat, start + i * step, keywords);
+        }
+        store.finish();
+        store.close();
+        MyTimer.stopTimer();
+        double writeTime = MyTimer.durationSeconds();
+
+        // (2) scan all points and one keyword
+        store = PointStore.open(fileName);
+        MyTimer.startTimer();
+        long all = store.streamPoints("%", chunk -> {});
+        MyTimer.stopTimer();
+        double scanAllTime = MyTimer.durationSeconds();
+        MyTimer.startTimer();
+        long keyword = store.streamPoints("coffee", chunk -> {});
+        MyTimer.stopTimer();
+        double scanKeywordTime = MyTimer.durationSeconds();
+
+        // (3) load the tree slice by slice, as a progressive build does
+        RAQuadTree raQuadTree = new RAQuadTree();
+        long loaded = 0;
+        int slices = 0;
+        MyTimer.startTimer();
+        Date sliceStart = new Date(store.minTime);
+        while (sliceStart.getTime() <= store.maxTime) {
+            calendar.setTime(sliceStart);
+            calendar.add(Calendar.DATE, intervalDays);
+            Date sliceEnd = calendar.getTime();
+            loaded += store.streamPoints("%", sliceStart, sliceEnd, false, raQuadTree::load);
+            sliceStart = sliceEnd;
+            slices ++;
+        }
+        raQuadTree.finishLoad();
+        MyTimer.stopTimer();
+        double buildTime = MyTimer.durationSeconds();
+        String description = store.describe();
+        store.close();
+        long fileSize = new File(fileName).length();
+        new File(fileName).delete();
+
+        System.out.println("========== Point Store Benchmark ==========");
+        System.out.println(description + ", file size = " + fileSize / 1024 / 1024 + " MB.");
+        System.out.println("write: " + size + " points in " + writeTime + " seconds.");
+        System.out.println("scan all: " + all + " points in " + scanAllTime + " seconds, "
+                + (scanAllTime > 0? fileSize / 1024.0 / 1024.0 / scanAllTime: 0.0) + " MB/s.");
+        System.out.println("scan keyword [coffee]: " + keyword + " points (expected " + coffee + ") in " + scanKeywordTime + " seconds.");
+        System.out.println("build RAQuadTree: " + loaded + " points of " + slices + " slices in " + buildTime + " seconds.");
+    }
+}